@@ -30,6 +30,7 @@ import android.opengl.EGL14;
 import android.opengl.EGLConfig;
 import android.opengl.EGLContext;
 import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
 import android.opengl.EGLSurface;
 import android.os.Build;
 import android.util.Log;
@@ -38,18 +39,36 @@ import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
-public class EGLBase {	// API >= 17 
+public class EGLBase implements EglApi.Context {	// API >= 17 
 	private static final boolean DEBUG = false;	// TODO set false on releasing
 	private static final String TAG = "EGLBase";
 
     private static final int EGL_RECORDABLE_ANDROID = 0x3142;
 
+	/**
+	 * EglApi that creates EGLBase
+	 */
+	public static final EglApi API = new EglApi() {
+		@Override
+		public boolean isSupportedSurface(final Object surface) {
+			return (surface instanceof Surface) || (surface instanceof SurfaceTexture)
+				|| (surface instanceof SurfaceHolder) || (surface instanceof SurfaceView);
+		}
+
+		@Override
+		public EglApi.Context createContext(final EGLContext shared_context,
+			final boolean with_depth_buffer, final boolean isRecordable) {
+
+			return new EGLBase(shared_context, with_depth_buffer, isRecordable);
+		}
+	};
+
     private EGLConfig mEglConfig = null;
 	private EGLContext mEglContext = EGL14.EGL_NO_CONTEXT;
 	private EGLDisplay mEglDisplay = EGL14.EGL_NO_DISPLAY;
 	private EGLContext mDefaultContext = EGL14.EGL_NO_CONTEXT;
 	
-	public static class EglSurface {
+	public static class EglSurface implements EglApi.Surface {
 		private final EGLBase mEgl;
 		private EGLSurface mEglSurface = EGL14.EGL_NO_SURFACE;
 		private final int mWidth, mHeight;
@@ -76,18 +95,40 @@ public class EGLBase {	// API >= 17
 			mHeight = height;
 		}
 
+		@Override
 		public void makeCurrent() {
 			mEgl.makeCurrent(mEglSurface);
 		}
 
+		@Override
 		public void swap() {
 			mEgl.swap(mEglSurface);
 		}
 
+		/**
+		 * set presentation time of the frame that is drawn next, this should be called before #swap
+		 * @param presentationTimeNs time based on System.nanoTime(ex. SurfaceTexture#getTimestamp)
+		 */
+		@Override
+		public void setPresentationTime(final long presentationTimeNs) {
+			mEgl.setPresentationTime(mEglSurface, presentationTimeNs);
+		}
+
 		public EGLContext getContext() {
 			return mEgl.getContext();
 		}
 
+		@Override
+		public int getWidth() {
+			return mWidth;
+		}
+
+		@Override
+		public int getHeight() {
+			return mHeight;
+		}
+
+		@Override
 		public void release() {
 			if (DEBUG) Log.v(TAG, "EglSurface:internal_release:");
 			mEgl.makeDefault();
@@ -101,17 +142,48 @@ public class EGLBase {	// API >= 17
 		init(shared_context, with_depth_buffer, isRecordable);
 	}
 
+	/**
+	 * Constructor to wrap EGLContext that is owned by EglPool,
+	 * display is not terminated and context is not destroyed by this object
+	 * @param display initialized display
+	 * @param config config that was used to create the context
+	 * @param context
+	 */
+	EGLBase(final EGLDisplay display, final EGLConfig config, final EGLContext context) {
+		if (DEBUG) Log.v(TAG, "EGLBase:pooled");
+		mEglDisplay = display;
+		mEglConfig = config;
+		mEglContext = context;
+	}
+
+	/**
+	 * detach the context from this object without destroying it,
+	 * the context is not current on the calling thread after this returns
+	 * so that the other thread can make it current
+	 */
+	void detach() {
+		if (DEBUG) Log.v(TAG, "detach:");
+		if (mEglDisplay != EGL14.EGL_NO_DISPLAY) {
+			makeDefault();
+		}
+		mEglDisplay = EGL14.EGL_NO_DISPLAY;
+		mEglContext = EGL14.EGL_NO_CONTEXT;
+	}
+
+	@Override
     public void release() {
 		if (DEBUG) Log.v(TAG, "internal_release:");
         if (mEglDisplay != EGL14.EGL_NO_DISPLAY) {
 	    	destroyContext();
-	        EGL14.eglTerminate(mEglDisplay);
+	        // never call eglTerminate, display is shared in this process
+	        // and terminating it destroys contexts of EglPool and the other EGLBase
 	        EGL14.eglReleaseThread();
         }
         mEglDisplay = EGL14.EGL_NO_DISPLAY;
         mEglContext = EGL14.EGL_NO_CONTEXT;
     }
 
+	@Override
 	public EglSurface createFromSurface(Object surface) {
 		if (DEBUG) Log.v(TAG, "createFromSurface:");
 		final EglSurface eglSurface = new EglSurface(this, surface);
@@ -119,6 +191,7 @@ public class EGLBase {	// API >= 17
 		return eglSurface;
 	}
 
+	@Override
 	public EglSurface createOffscreen(int width, int height) {
 		if (DEBUG) Log.v(TAG, "createOffscreen:");
 		final EglSurface eglSurface = new EglSurface(this, width, height);
@@ -126,6 +199,7 @@ public class EGLBase {	// API >= 17
 		return eglSurface;
 	}
 
+	@Override
 	public EGLContext getContext() {
 		return mEglContext;
 	}
@@ -155,12 +229,12 @@ public class EGLBase {	// API >= 17
 
 		shared_context = shared_context != null ? shared_context : EGL14.EGL_NO_CONTEXT;
         if (mEglContext == EGL14.EGL_NO_CONTEXT) {
-            mEglConfig = getConfig(with_depth_buffer, isRecordable);
+            mEglConfig = getConfig(mEglDisplay, with_depth_buffer, isRecordable);
             if (mEglConfig == null) {
                 throw new RuntimeException("chooseConfig failed");
             }
             // create EGL rendering context
-	        mEglContext = createContext(shared_context);
+	        mEglContext = createContext(mEglDisplay, mEglConfig, shared_context);
         }
         // confirm whether the EGL rendering context is successfully created
         final int[] values = new int[1];
@@ -200,6 +274,12 @@ public class EGLBase {	// API >= 17
         }
 	}
 	
+	private void setPresentationTime(final EGLSurface surface, final long presentationTimeNs) {
+		if (!EGLExt.eglPresentationTimeANDROID(mEglDisplay, surface, presentationTimeNs)) {
+			if (DEBUG) Log.w(TAG, "setPresentationTime:err=" + EGL14.eglGetError());
+		}
+	}
+
 	private int swap(EGLSurface surface) {
 //		if (DEBUG) Log.v(TAG, "swap:");
         if (!EGL14.eglSwapBuffers(mEglDisplay, surface)) {
@@ -210,14 +290,21 @@ public class EGLBase {	// API >= 17
         return EGL14.EGL_SUCCESS;
     }
 
-    private EGLContext createContext(EGLContext shared_context) {
+    /**
+     * create GLES2 context, this is also used by EglPool
+     * @param display
+     * @param config
+     * @param shared_context EGL14.EGL_NO_CONTEXT if no shared context
+     * @return
+     */
+    static EGLContext createContext(final EGLDisplay display, final EGLConfig config, final EGLContext shared_context) {
 //		if (DEBUG) Log.v(TAG, "createContext:");
 
         final int[] attrib_list = {
         	EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
         	EGL14.EGL_NONE
         };
-        final EGLContext context = EGL14.eglCreateContext(mEglDisplay, mEglConfig, shared_context, attrib_list, 0);
+        final EGLContext context = EGL14.eglCreateContext(display, config, shared_context, attrib_list, 0);
         checkEglError("eglCreateContext");
         return context;
     }
@@ -291,15 +378,22 @@ public class EGLBase {	// API >= 17
         if (DEBUG) Log.v(TAG, "destroySurface:finished");
 	}
 	
-    private void checkEglError(String msg) {
+    private static void checkEglError(String msg) {
         int error;
         if ((error = EGL14.eglGetError()) != EGL14.EGL_SUCCESS) {
             throw new RuntimeException(msg + ": EGL error: 0x" + Integer.toHexString(error));
         }
     }
 
+    /**
+     * choose RGBA8888 config, this is also used by EglPool
+     * @param display
+     * @param with_depth_buffer
+     * @param isRecordable
+     * @return null if no config found
+     */
     @SuppressWarnings("unused")
-    private EGLConfig getConfig(boolean with_depth_buffer, boolean isRecordable) {
+    static EGLConfig getConfig(final EGLDisplay display, final boolean with_depth_buffer, final boolean isRecordable) {
         final int[] attribList = {
                 EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
                 EGL14.EGL_RED_SIZE, 8,
@@ -330,7 +424,7 @@ public class EGLBase {	// API >= 17
         }
         final EGLConfig[] configs = new EGLConfig[1];
         final int[] numConfigs = new int[1];
-        if (!EGL14.eglChooseConfig(mEglDisplay, attribList, 0, configs, 0, configs.length, numConfigs, 0)) {
+        if (!EGL14.eglChooseConfig(display, attribList, 0, configs, 0, configs.length, numConfigs, 0)) {
         	// XXX it will be better to fallback to RGB565
             Log.w(TAG, "unable to find RGBA8888 / " + " EGLConfig");
             return null;
@@ -0,0 +1,92 @@
+package com.serenegiant.glutils;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: EglApi.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.opengl.EGLContext;
+
+/**
+ * Thin interface of EGL operations that RenderHandler needs.
+ * EGLBase#API is the implementation with EGL14, EglPool is the one that reuses EGL contexts
+ * and RecordingEglApi is a fake one that counts swaps etc. without EGL.
+ */
+public interface EglApi {
+	/**
+	 * EGL rendering context
+	 */
+	public interface Context {
+		/**
+		 * create window surface and make it current
+		 * @param surface Surface, SurfaceTexture, SurfaceHolder or SurfaceView
+		 * @return
+		 */
+		public Surface createFromSurface(Object surface);
+		/**
+		 * create offscreen surface and make it current
+		 */
+		public Surface createOffscreen(int width, int height);
+		/**
+		 * @return EGLContext to share with other context, may null on fake implementation
+		 */
+		public EGLContext getContext();
+		public void release();
+	}
+
+	/**
+	 * EGL surface to draw
+	 */
+	public interface Surface {
+		public void makeCurrent();
+		/**
+		 * set presentation time of the frame that is drawn next, this should be called before #swap
+		 * @param presentationTimeNs time based on System.nanoTime(ex. SurfaceTexture#getTimestamp)
+		 */
+		public void setPresentationTime(long presentationTimeNs);
+		public void swap();
+		/**
+		 * @return width of the surface, zero if unknown
+		 */
+		public int getWidth();
+		/**
+		 * @return height of the surface, zero if unknown
+		 */
+		public int getHeight();
+		public void release();
+	}
+
+	/**
+	 * @param surface
+	 * @return true if #createFromSurface accepts the surface
+	 */
+	public boolean isSupportedSurface(Object surface);
+
+	/**
+	 * create new rendering context
+	 * @param shared_context null if no shared context
+	 * @param with_depth_buffer
+	 * @param isRecordable true if the context draws to input Surface of MediaCodec
+	 * @return
+	 */
+	public Context createContext(EGLContext shared_context, boolean with_depth_buffer, boolean isRecordable);
+}
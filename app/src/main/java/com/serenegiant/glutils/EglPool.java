@@ -0,0 +1,250 @@
+package com.serenegiant.glutils;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: EglPool.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.annotation.TargetApi;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.os.Build;
+import android.util.Log;
+
+import com.serenegiant.utils.LatencyStats;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Process-wide EglApi that keeps EGL display initialized, caches EGLConfig
+ * and reuses released contexts instead of creating/destroying them every time.
+ * Released context is kept idle and it is reused only for the same shared context and config,
+ * so RenderHandler that is prepared again on each resume of the encoder does not need
+ * eglInitialize/eglChooseConfig/eglCreateContext. Least recently released idle context
+ * is destroyed when number of idle contexts exceeds MAX_IDLE_CONTEXTS.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public final class EglPool implements EglApi {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "EglPool";
+
+	private static final int MAX_IDLE_CONTEXTS = 2;
+
+	private static EglPool sInstance;
+
+	public static synchronized EglPool getInstance() {
+		if (sInstance == null) {
+			sInstance = new EglPool();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * idle context and the key to reuse it
+	 */
+	private static final class Entry {
+		private final EGLContext context;
+		private final EGLContext sharedContext;
+		private final int configIndex;
+
+		private Entry(final EGLContext context, final EGLContext shared_context, final int config_index) {
+			this.context = context;
+			this.sharedContext = shared_context;
+			this.configIndex = config_index;
+		}
+	}
+
+	/**
+	 * EGLBase whose context returns to the pool on #release
+	 */
+	private final class PooledEGLBase extends EGLBase {
+		private final EGLContext mSharedContext;
+		private final int mConfigIndex;
+		private boolean mReleased;
+
+		private PooledEGLBase(final EGLDisplay display, final EGLContext context,
+			final EGLContext shared_context, final int config_index) {
+
+			super(display, mConfigs[config_index], context);
+			mSharedContext = shared_context;
+			mConfigIndex = config_index;
+		}
+
+		@Override
+		public void release() {
+			if (mReleased) return;
+			mReleased = true;
+			final EGLContext context = getContext();
+			// the context should not be current on this thread to use it on other thread later
+			detach();
+			recycle(new Entry(context, mSharedContext, mConfigIndex));
+		}
+	}
+
+	private EGLDisplay mEglDisplay = EGL14.EGL_NO_DISPLAY;
+	/**
+	 * cached config, index is (with_depth_buffer ? 1 : 0) | (isRecordable ? 2 : 0)
+	 */
+	private final EGLConfig[] mConfigs = new EGLConfig[4];
+	/**
+	 * idle contexts, most recently released first
+	 */
+	private final LinkedList<Entry> mIdleContexts = new LinkedList<Entry>();
+	private long mCreatedCount, mReusedCount;
+	/**
+	 * time to get context when new context was created(including eglInitialize/eglChooseConfig if not cached)
+	 */
+	private final LatencyStats mColdSetupStats = new LatencyStats("egl-setup-cold");
+	/**
+	 * time to get context when idle context was reused
+	 */
+	private final LatencyStats mWarmSetupStats = new LatencyStats("egl-setup-warm");
+
+	private EglPool() {
+	}
+
+	@Override
+	public boolean isSupportedSurface(final Object surface) {
+		return EGLBase.API.isSupportedSurface(surface);
+	}
+
+	@Override
+	public synchronized EglApi.Context createContext(EGLContext shared_context,
+		final boolean with_depth_buffer, final boolean isRecordable) {
+
+		final long startNs = System.nanoTime();
+		shared_context = shared_context != null ? shared_context : EGL14.EGL_NO_CONTEXT;
+		final int config_index = (with_depth_buffer ? 1 : 0) | (isRecordable ? 2 : 0);
+		for (final Iterator<Entry> it = mIdleContexts.iterator(); it.hasNext(); ) {
+			final Entry entry = it.next();
+			if ((entry.configIndex == config_index) && entry.sharedContext.equals(shared_context)) {
+				it.remove();
+				mReusedCount++;
+				final EglApi.Context result
+					= new PooledEGLBase(mEglDisplay, entry.context, shared_context, config_index);
+				mWarmSetupStats.addSince(startNs);
+				if (DEBUG) Log.v(TAG, "createContext:reused," + mWarmSetupStats);
+				return result;
+			}
+		}
+		initDisplay();
+		if (mConfigs[config_index] == null) {
+			mConfigs[config_index] = EGLBase.getConfig(mEglDisplay, with_depth_buffer, isRecordable);
+			if (mConfigs[config_index] == null) {
+				throw new RuntimeException("chooseConfig failed");
+			}
+		}
+		final EGLContext context = EGLBase.createContext(mEglDisplay, mConfigs[config_index], shared_context);
+		mCreatedCount++;
+		final EglApi.Context result = new PooledEGLBase(mEglDisplay, context, shared_context, config_index);
+		mColdSetupStats.addSince(startNs);
+		if (DEBUG) Log.v(TAG, "createContext:created," + mColdSetupStats);
+		return result;
+	}
+
+	/**
+	 * destroy all idle contexts, display is kept initialized
+	 */
+	public synchronized void trim() {
+		if (DEBUG) Log.v(TAG, "trim:");
+		while (!mIdleContexts.isEmpty()) {
+			destroy(mIdleContexts.removeLast());
+		}
+	}
+
+	/**
+	 * @return number of contexts that were created by this pool
+	 */
+	public synchronized long getCreatedCount() {
+		return mCreatedCount;
+	}
+
+	/**
+	 * @return number of times that idle context was reused
+	 */
+	public synchronized long getReusedCount() {
+		return mReusedCount;
+	}
+
+	public synchronized int getIdleCount() {
+		return mIdleContexts.size();
+	}
+
+	public LatencyStats getColdSetupStats() {
+		return mColdSetupStats;
+	}
+
+	public LatencyStats getWarmSetupStats() {
+		return mWarmSetupStats;
+	}
+
+	/**
+	 * estimate setup time that is saved by each reuse of idle context(ex. on resume of encoder)
+	 * @return average cold setup time - average warm setup time[nano seconds], zero if not measured yet
+	 */
+	public long getSavedNsPerReuse() {
+		if ((mColdSetupStats.getCount() == 0) || (mWarmSetupStats.getCount() == 0)) return 0;
+		return mColdSetupStats.getAverage() - mWarmSetupStats.getAverage();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return TAG + "{created=" + mCreatedCount + ",reused=" + mReusedCount
+			+ ",idle=" + mIdleContexts.size() + ",savedNsPerReuse=" + getSavedNsPerReuse()
+			+ "," + mColdSetupStats + "," + mWarmSetupStats + "}";
+	}
+
+	/**
+	 * eglInitialize only once, display is never terminated
+	 * because eglTerminate affects all contexts on the display in this process
+	 */
+	private void initDisplay() {
+		if (mEglDisplay != EGL14.EGL_NO_DISPLAY) return;
+		final EGLDisplay display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+		if (display == EGL14.EGL_NO_DISPLAY) {
+			throw new RuntimeException("eglGetDisplay failed");
+		}
+		final int[] version = new int[2];
+		if (!EGL14.eglInitialize(display, version, 0, version, 1)) {
+			throw new RuntimeException("eglInitialize failed");
+		}
+		if (DEBUG) Log.v(TAG, "initDisplay:EGL" + version[0] + "." + version[1]);
+		mEglDisplay = display;
+	}
+
+	private synchronized void recycle(final Entry entry) {
+		if (DEBUG) Log.v(TAG, "recycle:");
+		mIdleContexts.addFirst(entry);
+		while (mIdleContexts.size() > MAX_IDLE_CONTEXTS) {
+			destroy(mIdleContexts.removeLast());
+		}
+	}
+
+	private void destroy(final Entry entry) {
+		if (!EGL14.eglDestroyContext(mEglDisplay, entry.context)) {
+			Log.e(TAG, "eglDestroyContext:" + EGL14.eglGetError());
+		}
+	}
+}
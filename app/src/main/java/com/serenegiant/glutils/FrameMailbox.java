@@ -0,0 +1,273 @@
+package com.serenegiant.glutils;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: FrameMailbox.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import com.serenegiant.utils.LatencyStats;
+
+/**
+ * Mailbox of draw requests between the thread that notifies new frame(ex. camera preview)
+ * and the rendering thread. Each request is copied into preallocated slot
+ * including texture matrix, so the caller can reuse it's array just after #post.
+ * When the renderer falls behind, pending frames are coalesced into the newest one
+ * or new frames are dropped depending on the policy, so the renderer never replays stale frames.
+ * This class does not depend on GL and all methods synchronize on the lock object
+ * that is passed to the constructor, the renderer can wait on the same lock for other requests.
+ */
+public final class FrameMailbox {
+
+	/**
+	 * #post waits until a slot becomes free and drops the frame if the deadline passed
+	 */
+	public static final int POLICY_BLOCK = 0;
+	/**
+	 * #post replaces oldest pending frame, the newest frame is always rendered
+	 */
+	public static final int POLICY_COALESCE = 1;
+	/**
+	 * #post drops new frame if all slots are pending
+	 */
+	public static final int POLICY_DROP_NEWEST = 2;
+
+	/**
+	 * frame to render
+	 */
+	public static final class Frame {
+		public int texId = -1;
+		/**
+		 * copy of texture matrix, only valid if hasTexMatrix is true
+		 */
+		public final float[] texMatrix = new float[16];
+		public boolean hasTexMatrix;
+		/**
+		 * capture time of the frame[nano seconds], zero means unknown
+		 */
+		public long timestampNs;
+
+		public void set(final Frame other) {
+			texId = other.texId;
+			hasTexMatrix = other.hasTexMatrix;
+			if (hasTexMatrix) {
+				System.arraycopy(other.texMatrix, 0, texMatrix, 0, 16);
+			}
+			timestampNs = other.timestampNs;
+		}
+	}
+
+	private final Object mLock;
+	private Frame[] mSlots;
+	private int mHead;
+	private int mCount;
+	private int mPolicy = POLICY_COALESCE;
+	private long mMaxBlockNs;
+	private boolean mClosed;
+	private long mPostedCount, mRenderedCount, mCoalescedCount, mDroppedCount;
+	/**
+	 * time spent for waiting in #post on POLICY_BLOCK
+	 */
+	private final LatencyStats mBlockedStats = new LatencyStats("draw-blocked");
+
+	/**
+	 * Constructor, the mailbox has one slot with POLICY_COALESCE(latest frame only)
+	 * @param lock lock object to synchronize, all waiting threads are notified with this object
+	 */
+	public FrameMailbox(final Object lock) {
+		mLock = lock != null ? lock : this;
+		mSlots = new Frame[] { new Frame() };
+	}
+
+	/**
+	 * set how #post behaves when rendering falls behind, pending frames are discarded
+	 * @param policy POLICY_BLOCK, POLICY_COALESCE or POLICY_DROP_NEWEST
+	 * @param max_pending number of slots
+	 * @param max_block_ms maximum waiting time on POLICY_BLOCK[milliseconds]
+	 */
+	public void setPolicy(final int policy, final int max_pending, final long max_block_ms) {
+		if ((policy < POLICY_BLOCK) || (policy > POLICY_DROP_NEWEST) || (max_pending <= 0))
+			throw new IllegalArgumentException();
+		synchronized (mLock) {
+			mPolicy = policy;
+			mMaxBlockNs = Math.max(max_block_ms, 0) * 1000000L;
+			if (mSlots.length != max_pending) {
+				mSlots = new Frame[max_pending];
+				for (int i = 0; i < max_pending; i++) {
+					mSlots[i] = new Frame();
+				}
+			}
+			mHead = mCount = 0;
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * post new frame
+	 * @param tex_id
+	 * @param tex_matrix this is copied, null means keeping the matrix of previous frame
+	 * @param timestamp_ns
+	 * @return true if the frame was queued(it may replace pending frame)
+	 */
+	public boolean post(final int tex_id, final float[] tex_matrix, final long timestamp_ns) {
+		synchronized (mLock) {
+			if (mClosed) return false;
+			mPostedCount++;
+			if (mCount >= mSlots.length) {
+				switch (mPolicy) {
+				case POLICY_DROP_NEWEST:
+					mDroppedCount++;
+					return false;
+				case POLICY_COALESCE:
+					// discard oldest pending frame
+					mCoalescedCount++;
+					mHead = (mHead + 1) % mSlots.length;
+					mCount--;
+					break;
+				default:
+					if (!waitFree()) {
+						mDroppedCount++;
+						return false;
+					}
+					break;
+				}
+			}
+			final Frame frame = mSlots[(mHead + mCount) % mSlots.length];
+			frame.texId = tex_id;
+			frame.hasTexMatrix = tex_matrix != null;
+			if (frame.hasTexMatrix) {
+				System.arraycopy(tex_matrix, 0, frame.texMatrix, 0, 16);
+			}
+			frame.timestampNs = timestamp_ns;
+			mCount++;
+			mLock.notifyAll();
+			return true;
+		}
+	}
+
+	/**
+	 * wait until any slot becomes free, should be called holding mLock
+	 * @return false if the deadline passed or closed
+	 */
+	private boolean waitFree() {
+		final long startNs = System.nanoTime();
+		try {
+			for ( ; !mClosed && (mCount >= mSlots.length) ; ) {
+				final long remain_ns = mMaxBlockNs - (System.nanoTime() - startNs);
+				if (remain_ns <= 0) break;
+				try {
+					mLock.wait(remain_ns / 1000000L, (int)(remain_ns % 1000000L));
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		} finally {
+			mBlockedStats.addSince(startNs);
+		}
+		return !mClosed && (mCount < mSlots.length);
+	}
+
+	/**
+	 * take oldest pending frame, this never blocks
+	 * @param dest the frame is copied into this
+	 * @return false if there is no pending frame
+	 */
+	public boolean take(final Frame dest) {
+		synchronized (mLock) {
+			if (mCount == 0) return false;
+			dest.set(mSlots[mHead]);
+			mHead = (mHead + 1) % mSlots.length;
+			mCount--;
+			mRenderedCount++;
+			// wake up #post that is waiting on POLICY_BLOCK
+			mLock.notifyAll();
+			return true;
+		}
+	}
+
+	/**
+	 * @return number of pending frames
+	 */
+	public int size() {
+		synchronized (mLock) {
+			return mCount;
+		}
+	}
+
+	/**
+	 * discard all pending frames
+	 */
+	public void clear() {
+		synchronized (mLock) {
+			mHead = mCount = 0;
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * discard all pending frames and reject following frames,
+	 * #post that is waiting is also released
+	 */
+	public void close() {
+		synchronized (mLock) {
+			mClosed = true;
+			mHead = mCount = 0;
+			mLock.notifyAll();
+		}
+	}
+
+	public long getPostedCount() {
+		synchronized (mLock) {
+			return mPostedCount;
+		}
+	}
+
+	/**
+	 * @return number of frames that were taken for rendering
+	 */
+	public long getRenderedCount() {
+		synchronized (mLock) {
+			return mRenderedCount;
+		}
+	}
+
+	/**
+	 * @return number of pending frames that were replaced by newer frame
+	 */
+	public long getCoalescedCount() {
+		synchronized (mLock) {
+			return mCoalescedCount;
+		}
+	}
+
+	/**
+	 * @return number of new frames that were dropped
+	 */
+	public long getDroppedCount() {
+		synchronized (mLock) {
+			return mDroppedCount;
+		}
+	}
+
+	public LatencyStats getBlockedStats() {
+		return mBlockedStats;
+	}
+}
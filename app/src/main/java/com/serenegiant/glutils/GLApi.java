@@ -0,0 +1,70 @@
+package com.serenegiant.glutils;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: GLApi.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.nio.Buffer;
+
+/**
+ * Thin interface of OpenGL|ES 2.0 calls that are used for rendering in this package.
+ * Method names and arguments are same as GLES20 so that the rendering code can be
+ * switched to a fake implementation(ex. RecordingGLApi) to count GL calls
+ * or to run rendering logic without GL context.
+ */
+public interface GLApi {
+	public void glUseProgram(int program);
+	public int glGetAttribLocation(int program, String name);
+	public int glGetUniformLocation(int program, String name);
+	public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset);
+	public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, Buffer ptr);
+	/**
+	 * @param offset offset in the buffer object that is bound to GL_ARRAY_BUFFER
+	 */
+	public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset);
+	public void glEnableVertexAttribArray(int index);
+	public void glGenBuffers(int n, int[] buffers, int offset);
+	public void glBindBuffer(int target, int buffer);
+	public void glBufferData(int target, int size, Buffer data, int usage);
+	public void glDeleteBuffers(int n, int[] buffers, int offset);
+	public void glActiveTexture(int texture);
+	public void glBindTexture(int target, int texture);
+	public void glDrawArrays(int mode, int first, int count);
+	public void glGenTextures(int n, int[] textures, int offset);
+	public void glTexParameteri(int target, int pname, int param);
+	public void glDeleteTextures(int n, int[] textures, int offset);
+	public int glCreateShader(int type);
+	public void glShaderSource(int shader, String source);
+	public void glCompileShader(int shader);
+	public void glGetShaderiv(int shader, int pname, int[] params, int offset);
+	public String glGetShaderInfoLog(int shader);
+	public void glDeleteShader(int shader);
+	public int glCreateProgram();
+	public void glAttachShader(int program, int shader);
+	public void glLinkProgram(int program);
+	public void glDeleteProgram(int program);
+	public void glViewport(int x, int y, int width, int height);
+	public void glClearColor(float red, float green, float blue, float alpha);
+	public void glClear(int mask);
+	public int glGetError();
+}
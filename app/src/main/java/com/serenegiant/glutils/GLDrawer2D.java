@@ -26,7 +26,6 @@ package com.serenegiant.glutils;
 
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
-import android.opengl.Matrix;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
@@ -34,7 +33,9 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 /**
- * Helper class to draw to whole view using specific texture and texture matrix
+ * Helper class to draw to whole view using specific texture and texture matrix.
+ * Vertices are kept in vertex buffer object, and program/buffer/attribute state and uniforms
+ * are set only when they are changed, so each #draw usually issues only a few GL calls.
  */
 public class GLDrawer2D {
 	private static final boolean DEBUG = false; // TODO set false on releasing
@@ -62,14 +63,29 @@ public class GLDrawer2D {
 	private static final float[] VERTICES = { 1.0f, 1.0f, -1.0f, 1.0f, 1.0f, -1.0f, -1.0f, -1.0f };
 	private static final float[] TEXCOORD = { 1.0f, 1.0f, 0.0f, 1.0f, 1.0f, 0.0f, 0.0f, 0.0f };
 
-	private final FloatBuffer pVertex;
-	private final FloatBuffer pTexCoord;
+	private final GLApi mGL;
 	private int hProgram;
+	/**
+	 * vertex buffer object that holds VERTICES and TEXCOORD
+	 */
+	private int hVertexBuffer;
     int maPositionLoc;
     int maTextureCoordLoc;
     int muMVPMatrixLoc;
     int muTexMatrixLoc;
 	private final float[] mMvpMatrix = new float[16];
+	/**
+	 * copy of texture matrix that was uploaded last
+	 */
+	private final float[] mTexMatrix = new float[16];
+	/**
+	 * GL state that this drawer set, redundant calls are skipped with these.
+	 * this drawer assumes that nobody else changes program/buffer/attribute state on the context,
+	 * call #invalidate if the state was changed by others
+	 */
+	private boolean mStateValid;
+	private boolean mMvpDirty = true;
+	private boolean mTexMatrixValid;
 
 	private static final int FLOAT_SZ = Float.SIZE / 8;
 	private static final int VERTEX_NUM = 4;
@@ -79,29 +95,39 @@ public class GLDrawer2D {
 	 * this should be called in GL context
 	 */
 	public GLDrawer2D() {
-		pVertex = ByteBuffer.allocateDirect(VERTEX_SZ * FLOAT_SZ)
-				.order(ByteOrder.nativeOrder()).asFloatBuffer();
-		pVertex.put(VERTICES);
-		pVertex.flip();
-		pTexCoord = ByteBuffer.allocateDirect(VERTEX_SZ * FLOAT_SZ)
+		this(GLES20Api.INSTANCE);
+	}
+
+	/**
+	 * Constructor
+	 * this should be called in GL context
+	 * @param gl GLApi to call GL, ex. RecordingGLApi to count GL calls
+	 */
+	public GLDrawer2D(final GLApi gl) {
+		mGL = gl;
+		// upload vertices and texture coordinates only once
+		final FloatBuffer vertices = ByteBuffer.allocateDirect(VERTEX_SZ * 2 * FLOAT_SZ)
 				.order(ByteOrder.nativeOrder()).asFloatBuffer();
-		pTexCoord.put(TEXCOORD);
-		pTexCoord.flip();
-
-		hProgram = loadShader(vss, fss);
-		GLES20.glUseProgram(hProgram);
-        maPositionLoc = GLES20.glGetAttribLocation(hProgram, "aPosition");
-        maTextureCoordLoc = GLES20.glGetAttribLocation(hProgram, "aTextureCoord");
-        muMVPMatrixLoc = GLES20.glGetUniformLocation(hProgram, "uMVPMatrix");
-        muTexMatrixLoc = GLES20.glGetUniformLocation(hProgram, "uTexMatrix");
-
-		Matrix.setIdentityM(mMvpMatrix, 0);
-        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mMvpMatrix, 0);
-        GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, mMvpMatrix, 0);
-		GLES20.glVertexAttribPointer(maPositionLoc, 2, GLES20.GL_FLOAT, false, VERTEX_SZ, pVertex);
-		GLES20.glVertexAttribPointer(maTextureCoordLoc, 2, GLES20.GL_FLOAT, false, VERTEX_SZ, pTexCoord);
-		GLES20.glEnableVertexAttribArray(maPositionLoc);
-		GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
+		vertices.put(VERTICES);
+		vertices.put(TEXCOORD);
+		vertices.flip();
+		final int[] buffers = new int[1];
+		gl.glGenBuffers(1, buffers, 0);
+		hVertexBuffer = buffers[0];
+		gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, hVertexBuffer);
+		gl.glBufferData(GLES20.GL_ARRAY_BUFFER, VERTEX_SZ * 2 * FLOAT_SZ, vertices, GLES20.GL_STATIC_DRAW);
+
+		hProgram = loadShader(gl, vss, fss);
+        maPositionLoc = gl.glGetAttribLocation(hProgram, "aPosition");
+        maTextureCoordLoc = gl.glGetAttribLocation(hProgram, "aTextureCoord");
+        muMVPMatrixLoc = gl.glGetUniformLocation(hProgram, "uMVPMatrix");
+        muTexMatrixLoc = gl.glGetUniformLocation(hProgram, "uTexMatrix");
+
+		setIdentity(mMvpMatrix);
+		setIdentity(mTexMatrix);
+		bindState();
+        gl.glUniformMatrix4fv(muTexMatrixLoc, 1, false, mTexMatrix, 0);
+        mTexMatrixValid = true;
 	}
 
 	/**
@@ -109,25 +135,48 @@ public class GLDrawer2D {
 	 */
 	public void release() {
 		if (hProgram >= 0)
-			GLES20.glDeleteProgram(hProgram);
+			mGL.glDeleteProgram(hProgram);
 		hProgram = -1;
+		if (hVertexBuffer > 0) {
+			mGL.glDeleteBuffers(1, new int[] {hVertexBuffer}, 0);
+		}
+		hVertexBuffer = 0;
+		mStateValid = false;
 	}
-	
+
+	/**
+	 * forget GL state that this drawer set,
+	 * all state is set again on next #draw. call this when other code changed GL state on the same context
+	 */
+	public void invalidate() {
+		mStateValid = false;
+		mTexMatrixValid = false;
+		mMvpDirty = true;
+	}
+
 	/**
 	 * draw specific texture with specific texture matrix
 	 * @param tex_id texture ID
 	 * @param tex_matrix texture matrix、if this is null, the last one use(we don't check size of this array and needs at least 16 of float)
 	 */
 	public void draw(int tex_id, float[] tex_matrix) {
-		GLES20.glUseProgram(hProgram);
-		if (tex_matrix != null)
-			GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, tex_matrix, 0);
-		GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mMvpMatrix, 0);
-		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-		GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, tex_id);
-		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, VERTEX_NUM);
-		GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
-        GLES20.glUseProgram(0);
+		if (!mStateValid) {
+			bindState();
+		}
+		if ((tex_matrix != null) && !(mTexMatrixValid && equals(mTexMatrix, tex_matrix))) {
+			System.arraycopy(tex_matrix, 0, mTexMatrix, 0, 16);
+			mGL.glUniformMatrix4fv(muTexMatrixLoc, 1, false, mTexMatrix, 0);
+			mTexMatrixValid = true;
+		}
+		if (mMvpDirty) {
+			mGL.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mMvpMatrix, 0);
+			mMvpDirty = false;
+		}
+		// external texture is bound on every draw even if it is same,
+		// because update of the texture in other(shared) context is guaranteed
+		// to be visible only after binding, and unbinding is not necessary
+		mGL.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, tex_id);
+		mGL.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, VERTEX_NUM);
 	}
 
 	/**
@@ -138,6 +187,38 @@ public class GLDrawer2D {
 	public void setMatrix(final float[] matrix, final int offset) {
 		if ((matrix != null) && (matrix.length >= offset + 16)) {
 			System.arraycopy(matrix, offset, mMvpMatrix, 0, 16);
+			mMvpDirty = true;
+		}
+	}
+
+	/**
+	 * bind program, vertex buffer and attributes, this is called only when the state is not valid
+	 */
+	private void bindState() {
+		mGL.glUseProgram(hProgram);
+		mGL.glBindBuffer(GLES20.GL_ARRAY_BUFFER, hVertexBuffer);
+		mGL.glVertexAttribPointer(maPositionLoc, 2, GLES20.GL_FLOAT, false, 2 * FLOAT_SZ, 0);
+		mGL.glVertexAttribPointer(maTextureCoordLoc, 2, GLES20.GL_FLOAT, false, 2 * FLOAT_SZ, VERTEX_SZ * FLOAT_SZ);
+		mGL.glEnableVertexAttribArray(maPositionLoc);
+		mGL.glEnableVertexAttribArray(maTextureCoordLoc);
+		mGL.glActiveTexture(GLES20.GL_TEXTURE0);
+		mStateValid = true;
+	}
+
+	private static boolean equals(final float[] a, final float[] b) {
+		for (int i = 0; i < 16; i++) {
+			if (a[i] != b[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * same as android.opengl.Matrix#setIdentityM(matrix, 0) but this does not depend on android.jar
+	 * @param matrix
+	 */
+	private static void setIdentity(final float[] matrix) {
+		for (int i = 0; i < 16; i++) {
+			matrix[i] = (i % 5) == 0 ? 1.0f : 0.0f;
 		}
 	}
 
@@ -146,17 +227,26 @@ public class GLDrawer2D {
 	 * @return texture ID
 	 */
 	public static int initTex() {
+		return initTex(GLES20Api.INSTANCE);
+	}
+
+	/**
+	 * create external texture
+	 * @param gl
+	 * @return texture ID
+	 */
+	public static int initTex(final GLApi gl) {
 		if (DEBUG) Log.v(TAG, "initTex:");
 		final int[] tex = new int[1];
-		GLES20.glGenTextures(1, tex, 0);
-		GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, tex[0]);
-		GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+		gl.glGenTextures(1, tex, 0);
+		gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, tex[0]);
+		gl.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
 				GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-		GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+		gl.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
 				GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-		GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+		gl.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
 				GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-		GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+		gl.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
 				GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
 		return tex[0];
 	}
@@ -165,9 +255,16 @@ public class GLDrawer2D {
 	 * delete specific texture
 	 */
 	public static void deleteTex(int hTex) {
+		deleteTex(GLES20Api.INSTANCE, hTex);
+	}
+
+	/**
+	 * delete specific texture
+	 */
+	public static void deleteTex(final GLApi gl, int hTex) {
 		if (DEBUG) Log.v(TAG, "deleteTex:");
 		final int[] tex = new int[] {hTex};
-		GLES20.glDeleteTextures(1, tex, 0);
+		gl.glDeleteTextures(1, tex, 0);
 	}
 
 	/**
@@ -177,34 +274,45 @@ public class GLDrawer2D {
 	 * @return
 	 */
 	public static int loadShader(String vss, String fss) {
+		return loadShader(GLES20Api.INSTANCE, vss, fss);
+	}
+
+	/**
+	 * load, compile and link shader
+	 * @param gl
+	 * @param vss source of vertex shader
+	 * @param fss source of fragment shader
+	 * @return
+	 */
+	public static int loadShader(final GLApi gl, String vss, String fss) {
 		if (DEBUG) Log.v(TAG, "loadShader:");
-		int vs = GLES20.glCreateShader(GLES20.GL_VERTEX_SHADER);
-		GLES20.glShaderSource(vs, vss);
-		GLES20.glCompileShader(vs);
+		int vs = gl.glCreateShader(GLES20.GL_VERTEX_SHADER);
+		gl.glShaderSource(vs, vss);
+		gl.glCompileShader(vs);
 		final int[] compiled = new int[1];
-		GLES20.glGetShaderiv(vs, GLES20.GL_COMPILE_STATUS, compiled, 0);
+		gl.glGetShaderiv(vs, GLES20.GL_COMPILE_STATUS, compiled, 0);
 		if (compiled[0] == 0) {
 			if (DEBUG) Log.e(TAG, "Failed to compile vertex shader:"
-					+ GLES20.glGetShaderInfoLog(vs));
-			GLES20.glDeleteShader(vs);
+					+ gl.glGetShaderInfoLog(vs));
+			gl.glDeleteShader(vs);
 			vs = 0;
 		}
 
-		int fs = GLES20.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
-		GLES20.glShaderSource(fs, fss);
-		GLES20.glCompileShader(fs);
-		GLES20.glGetShaderiv(fs, GLES20.GL_COMPILE_STATUS, compiled, 0);
+		int fs = gl.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
+		gl.glShaderSource(fs, fss);
+		gl.glCompileShader(fs);
+		gl.glGetShaderiv(fs, GLES20.GL_COMPILE_STATUS, compiled, 0);
 		if (compiled[0] == 0) {
 			if (DEBUG) Log.w(TAG, "Failed to compile fragment shader:"
-				+ GLES20.glGetShaderInfoLog(fs));
-			GLES20.glDeleteShader(fs);
+				+ gl.glGetShaderInfoLog(fs));
+			gl.glDeleteShader(fs);
 			fs = 0;
 		}
 
-		final int program = GLES20.glCreateProgram();
-		GLES20.glAttachShader(program, vs);
-		GLES20.glAttachShader(program, fs);
-		GLES20.glLinkProgram(program);
+		final int program = gl.glCreateProgram();
+		gl.glAttachShader(program, vs);
+		gl.glAttachShader(program, fs);
+		gl.glLinkProgram(program);
 
 		return program;
 	}
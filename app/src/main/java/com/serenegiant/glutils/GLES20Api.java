@@ -0,0 +1,200 @@
+package com.serenegiant.glutils;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: GLES20Api.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+
+/**
+ * GLApi that calls GLES20 as it is
+ */
+public final class GLES20Api implements GLApi {
+	public static final GLES20Api INSTANCE = new GLES20Api();
+
+	private GLES20Api() {
+	}
+
+	@Override
+	public void glUseProgram(final int program) {
+		GLES20.glUseProgram(program);
+	}
+
+	@Override
+	public int glGetAttribLocation(final int program, final String name) {
+		return GLES20.glGetAttribLocation(program, name);
+	}
+
+	@Override
+	public int glGetUniformLocation(final int program, final String name) {
+		return GLES20.glGetUniformLocation(program, name);
+	}
+
+	@Override
+	public void glUniformMatrix4fv(final int location, final int count, final boolean transpose,
+		final float[] value, final int offset) {
+
+		GLES20.glUniformMatrix4fv(location, count, transpose, value, offset);
+	}
+
+	@Override
+	public void glVertexAttribPointer(final int index, final int size, final int type,
+		final boolean normalized, final int stride, final Buffer ptr) {
+
+		GLES20.glVertexAttribPointer(index, size, type, normalized, stride, ptr);
+	}
+
+	@Override
+	public void glVertexAttribPointer(final int index, final int size, final int type,
+		final boolean normalized, final int stride, final int offset) {
+
+		GLES20.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+	}
+
+	@Override
+	public void glEnableVertexAttribArray(final int index) {
+		GLES20.glEnableVertexAttribArray(index);
+	}
+
+	@Override
+	public void glGenBuffers(final int n, final int[] buffers, final int offset) {
+		GLES20.glGenBuffers(n, buffers, offset);
+	}
+
+	@Override
+	public void glBindBuffer(final int target, final int buffer) {
+		GLES20.glBindBuffer(target, buffer);
+	}
+
+	@Override
+	public void glBufferData(final int target, final int size, final Buffer data, final int usage) {
+		GLES20.glBufferData(target, size, data, usage);
+	}
+
+	@Override
+	public void glDeleteBuffers(final int n, final int[] buffers, final int offset) {
+		GLES20.glDeleteBuffers(n, buffers, offset);
+	}
+
+	@Override
+	public void glActiveTexture(final int texture) {
+		GLES20.glActiveTexture(texture);
+	}
+
+	@Override
+	public void glBindTexture(final int target, final int texture) {
+		GLES20.glBindTexture(target, texture);
+	}
+
+	@Override
+	public void glDrawArrays(final int mode, final int first, final int count) {
+		GLES20.glDrawArrays(mode, first, count);
+	}
+
+	@Override
+	public void glGenTextures(final int n, final int[] textures, final int offset) {
+		GLES20.glGenTextures(n, textures, offset);
+	}
+
+	@Override
+	public void glTexParameteri(final int target, final int pname, final int param) {
+		GLES20.glTexParameteri(target, pname, param);
+	}
+
+	@Override
+	public void glDeleteTextures(final int n, final int[] textures, final int offset) {
+		GLES20.glDeleteTextures(n, textures, offset);
+	}
+
+	@Override
+	public int glCreateShader(final int type) {
+		return GLES20.glCreateShader(type);
+	}
+
+	@Override
+	public void glShaderSource(final int shader, final String source) {
+		GLES20.glShaderSource(shader, source);
+	}
+
+	@Override
+	public void glCompileShader(final int shader) {
+		GLES20.glCompileShader(shader);
+	}
+
+	@Override
+	public void glGetShaderiv(final int shader, final int pname, final int[] params, final int offset) {
+		GLES20.glGetShaderiv(shader, pname, params, offset);
+	}
+
+	@Override
+	public String glGetShaderInfoLog(final int shader) {
+		return GLES20.glGetShaderInfoLog(shader);
+	}
+
+	@Override
+	public void glDeleteShader(final int shader) {
+		GLES20.glDeleteShader(shader);
+	}
+
+	@Override
+	public int glCreateProgram() {
+		return GLES20.glCreateProgram();
+	}
+
+	@Override
+	public void glAttachShader(final int program, final int shader) {
+		GLES20.glAttachShader(program, shader);
+	}
+
+	@Override
+	public void glLinkProgram(final int program) {
+		GLES20.glLinkProgram(program);
+	}
+
+	@Override
+	public void glDeleteProgram(final int program) {
+		GLES20.glDeleteProgram(program);
+	}
+
+	@Override
+	public void glViewport(final int x, final int y, final int width, final int height) {
+		GLES20.glViewport(x, y, width, height);
+	}
+
+	@Override
+	public void glClearColor(final float red, final float green, final float blue, final float alpha) {
+		GLES20.glClearColor(red, green, blue, alpha);
+	}
+
+	@Override
+	public void glClear(final int mask) {
+		GLES20.glClear(mask);
+	}
+
+	@Override
+	public int glGetError() {
+		return GLES20.glGetError();
+	}
+}
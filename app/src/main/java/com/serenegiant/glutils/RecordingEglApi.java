@@ -0,0 +1,200 @@
+package com.serenegiant.glutils;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: RecordingEglApi.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.opengl.EGLContext;
+
+/**
+ * Fake EglApi that does not call actual EGL but counts operations.
+ * Any non-null object is accepted as a window surface and EGLContext is always null.
+ * Use together with RecordingGLApi to get number of GL calls per swap(=per frame).
+ */
+public class RecordingEglApi implements EglApi {
+	private long mContextCount, mSurfaceCount, mMakeCurrentCount, mSwapCount;
+	private int mLiveContexts, mLiveSurfaces;
+	private long mLastPresentationTimeNs;
+	/**
+	 * delay of each swap to emulate blocking of the surface[milliseconds]
+	 */
+	private volatile long mSwapDelayMs;
+
+	/**
+	 * set delay of each swap to emulate the consumer of the surface(ex. encoder) that falls behind
+	 * @param delay_ms
+	 */
+	public void setSwapDelay(final long delay_ms) {
+		mSwapDelayMs = Math.max(delay_ms, 0);
+	}
+
+	public synchronized void reset() {
+		mContextCount = mSurfaceCount = mMakeCurrentCount = mSwapCount = 0;
+	}
+
+	/**
+	 * @return number of contexts created since constructed or reset
+	 */
+	public synchronized long getContextCount() {
+		return mContextCount;
+	}
+
+	/**
+	 * @return number of surfaces created since constructed or reset
+	 */
+	public synchronized long getSurfaceCount() {
+		return mSurfaceCount;
+	}
+
+	/**
+	 * @return number of contexts and surfaces that are not released yet
+	 */
+	public synchronized int getLiveObjectCount() {
+		return mLiveContexts + mLiveSurfaces;
+	}
+
+	public synchronized long getMakeCurrentCount() {
+		return mMakeCurrentCount;
+	}
+
+	public synchronized long getSwapCount() {
+		return mSwapCount;
+	}
+
+	public synchronized long getLastPresentationTime() {
+		return mLastPresentationTimeNs;
+	}
+
+	@Override
+	public boolean isSupportedSurface(final Object surface) {
+		return surface != null;
+	}
+
+	@Override
+	public synchronized EglApi.Context createContext(final EGLContext shared_context,
+		final boolean with_depth_buffer, final boolean isRecordable) {
+
+		mContextCount++;
+		mLiveContexts++;
+		return new FakeContext();
+	}
+
+	private final class FakeContext implements EglApi.Context {
+		private boolean mReleased;
+
+		@Override
+		public EglApi.Surface createFromSurface(final Object surface) {
+			if (!isSupportedSurface(surface))
+				throw new IllegalArgumentException("unsupported surface");
+			return createSurface(0, 0);
+		}
+
+		@Override
+		public EglApi.Surface createOffscreen(final int width, final int height) {
+			return createSurface(width, height);
+		}
+
+		@Override
+		public EGLContext getContext() {
+			return null;
+		}
+
+		@Override
+		public void release() {
+			synchronized (RecordingEglApi.this) {
+				if (!mReleased) {
+					mReleased = true;
+					mLiveContexts--;
+				}
+			}
+		}
+
+		private EglApi.Surface createSurface(final int width, final int height) {
+			synchronized (RecordingEglApi.this) {
+				mSurfaceCount++;
+				mLiveSurfaces++;
+				mMakeCurrentCount++;
+			}
+			return new FakeSurface(width, height);
+		}
+	}
+
+	private final class FakeSurface implements EglApi.Surface {
+		private final int mWidth, mHeight;
+		private boolean mReleased;
+
+		private FakeSurface(final int width, final int height) {
+			mWidth = width;
+			mHeight = height;
+		}
+
+		@Override
+		public int getWidth() {
+			return mWidth;
+		}
+
+		@Override
+		public int getHeight() {
+			return mHeight;
+		}
+
+		@Override
+		public void makeCurrent() {
+			synchronized (RecordingEglApi.this) {
+				mMakeCurrentCount++;
+			}
+		}
+
+		@Override
+		public void setPresentationTime(final long presentationTimeNs) {
+			synchronized (RecordingEglApi.this) {
+				mLastPresentationTimeNs = presentationTimeNs;
+			}
+		}
+
+		@Override
+		public void swap() {
+			final long delay_ms = mSwapDelayMs;
+			if (delay_ms > 0) {
+				try {
+					Thread.sleep(delay_ms);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			}
+			synchronized (RecordingEglApi.this) {
+				mSwapCount++;
+			}
+		}
+
+		@Override
+		public void release() {
+			synchronized (RecordingEglApi.this) {
+				if (!mReleased) {
+					mReleased = true;
+					mLiveSurfaces--;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package com.serenegiant.glutils;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: RecordingGLApi.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fake GLApi that does not call actual GL but records number of calls and their parameters.
+ * Object names(program, shader, texture) are generated sequentially and shaders are always compiled,
+ * so the rendering code can run on any thread without GL context(ex. on JVM with android.jar stub).
+ * This is also useful to count GL calls per frame together with RecordingEglApi on device.
+ */
+public class RecordingGLApi implements GLApi {
+	private static final int MAX_LOG = 1024;
+
+	private final Map<String, long[]> mCallCounts = new HashMap<String, long[]>();
+	private final Map<String, Integer> mLocations = new HashMap<String, Integer>();
+	private final List<String> mLog = new ArrayList<String>();
+	private boolean mLogEnabled;
+	private long mTotalCalls;
+	private long mProgramBinds, mTextureBinds, mUniformUploads, mDrawCalls;
+	private long mBufferUploadBytes;
+	private int mNextName = 1;
+	private int mCurrentProgram;
+	private int mBoundTexture;
+	private final float[] mLastUniformMatrix = new float[16];
+
+	/**
+	 * set whether each call is logged with its parameters, at most last 1024 calls are kept
+	 * @param enabled
+	 */
+	public synchronized void setLogEnabled(final boolean enabled) {
+		mLogEnabled = enabled;
+	}
+
+	/**
+	 * @return copy of logged calls like "glBindTexture(36197,1)"
+	 */
+	public synchronized List<String> getLog() {
+		return new ArrayList<String>(mLog);
+	}
+
+	/**
+	 * clear all counters and log, generated names and current state are kept
+	 */
+	public synchronized void reset() {
+		mCallCounts.clear();
+		mLog.clear();
+		mTotalCalls = mProgramBinds = mTextureBinds = mUniformUploads = mDrawCalls = 0;
+		mBufferUploadBytes = 0;
+	}
+
+	public synchronized long getCallCount() {
+		return mTotalCalls;
+	}
+
+	/**
+	 * @param method method name, ex. "glUseProgram"
+	 * @return
+	 */
+	public synchronized long getCallCount(final String method) {
+		final long[] count = mCallCounts.get(method);
+		return count != null ? count[0] : 0;
+	}
+
+	/**
+	 * @return number of glUseProgram calls including unbinding(program 0)
+	 */
+	public synchronized long getProgramBindCount() {
+		return mProgramBinds;
+	}
+
+	/**
+	 * @return number of glBindTexture calls including unbinding(texture 0)
+	 */
+	public synchronized long getTextureBindCount() {
+		return mTextureBinds;
+	}
+
+	/**
+	 * @return number of uniform uploads
+	 */
+	public synchronized long getUniformUploadCount() {
+		return mUniformUploads;
+	}
+
+	public synchronized long getDrawCount() {
+		return mDrawCalls;
+	}
+
+	/**
+	 * @return total bytes uploaded with glBufferData
+	 */
+	public synchronized long getBufferUploadBytes() {
+		return mBufferUploadBytes;
+	}
+
+	public synchronized int getCurrentProgram() {
+		return mCurrentProgram;
+	}
+
+	public synchronized int getBoundTexture() {
+		return mBoundTexture;
+	}
+
+	/**
+	 * @param dest copy of last uploaded matrix is written into this
+	 */
+	public synchronized void getLastUniformMatrix(final float[] dest) {
+		System.arraycopy(mLastUniformMatrix, 0, dest, 0, 16);
+	}
+
+	private void record(final String method, final Object... args) {
+		mTotalCalls++;
+		long[] count = mCallCounts.get(method);
+		if (count == null) {
+			count = new long[1];
+			mCallCounts.put(method, count);
+		}
+		count[0]++;
+		if (mLogEnabled) {
+			final StringBuilder sb = new StringBuilder(method).append('(');
+			for (int i = 0; i < args.length; i++) {
+				if (i > 0) sb.append(',');
+				sb.append(args[i]);
+			}
+			if (mLog.size() >= MAX_LOG) {
+				mLog.remove(0);
+			}
+			mLog.add(sb.append(')').toString());
+		}
+	}
+
+	private int location(final int program, final String name) {
+		final String key = program + ":" + name;
+		Integer result = mLocations.get(key);
+		if (result == null) {
+			result = mLocations.size();
+			mLocations.put(key, result);
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized void glUseProgram(final int program) {
+		record("glUseProgram", program);
+		mProgramBinds++;
+		mCurrentProgram = program;
+	}
+
+	@Override
+	public synchronized int glGetAttribLocation(final int program, final String name) {
+		record("glGetAttribLocation", program, name);
+		return location(program, name);
+	}
+
+	@Override
+	public synchronized int glGetUniformLocation(final int program, final String name) {
+		record("glGetUniformLocation", program, name);
+		return location(program, name);
+	}
+
+	@Override
+	public synchronized void glUniformMatrix4fv(final int location, final int count, final boolean transpose,
+		final float[] value, final int offset) {
+
+		record("glUniformMatrix4fv", location, count, transpose);
+		mUniformUploads++;
+		System.arraycopy(value, offset, mLastUniformMatrix, 0, 16);
+	}
+
+	@Override
+	public synchronized void glVertexAttribPointer(final int index, final int size, final int type,
+		final boolean normalized, final int stride, final Buffer ptr) {
+
+		record("glVertexAttribPointer", index, size, type, normalized, stride);
+	}
+
+	@Override
+	public synchronized void glVertexAttribPointer(final int index, final int size, final int type,
+		final boolean normalized, final int stride, final int offset) {
+
+		record("glVertexAttribPointer", index, size, type, normalized, stride, offset);
+	}
+
+	@Override
+	public synchronized void glEnableVertexAttribArray(final int index) {
+		record("glEnableVertexAttribArray", index);
+	}
+
+	@Override
+	public synchronized void glGenBuffers(final int n, final int[] buffers, final int offset) {
+		record("glGenBuffers", n);
+		for (int i = 0; i < n; i++) {
+			buffers[offset + i] = mNextName++;
+		}
+	}
+
+	@Override
+	public synchronized void glBindBuffer(final int target, final int buffer) {
+		record("glBindBuffer", target, buffer);
+	}
+
+	@Override
+	public synchronized void glBufferData(final int target, final int size, final Buffer data, final int usage) {
+		record("glBufferData", target, size, usage);
+		mBufferUploadBytes += size;
+	}
+
+	@Override
+	public synchronized void glDeleteBuffers(final int n, final int[] buffers, final int offset) {
+		record("glDeleteBuffers", n);
+	}
+
+	@Override
+	public synchronized void glActiveTexture(final int texture) {
+		record("glActiveTexture", texture);
+	}
+
+	@Override
+	public synchronized void glBindTexture(final int target, final int texture) {
+		record("glBindTexture", target, texture);
+		mTextureBinds++;
+		mBoundTexture = texture;
+	}
+
+	@Override
+	public synchronized void glDrawArrays(final int mode, final int first, final int count) {
+		record("glDrawArrays", mode, first, count);
+		mDrawCalls++;
+	}
+
+	@Override
+	public synchronized void glGenTextures(final int n, final int[] textures, final int offset) {
+		record("glGenTextures", n);
+		for (int i = 0; i < n; i++) {
+			textures[offset + i] = mNextName++;
+		}
+	}
+
+	@Override
+	public synchronized void glTexParameteri(final int target, final int pname, final int param) {
+		record("glTexParameteri", target, pname, param);
+	}
+
+	@Override
+	public synchronized void glDeleteTextures(final int n, final int[] textures, final int offset) {
+		record("glDeleteTextures", n);
+	}
+
+	@Override
+	public synchronized int glCreateShader(final int type) {
+		record("glCreateShader", type);
+		return mNextName++;
+	}
+
+	@Override
+	public synchronized void glShaderSource(final int shader, final String source) {
+		record("glShaderSource", shader);
+	}
+
+	@Override
+	public synchronized void glCompileShader(final int shader) {
+		record("glCompileShader", shader);
+	}
+
+	@Override
+	public synchronized void glGetShaderiv(final int shader, final int pname, final int[] params, final int offset) {
+		record("glGetShaderiv", shader, pname);
+		params[offset] = 1;	// always succeeded
+	}
+
+	@Override
+	public synchronized String glGetShaderInfoLog(final int shader) {
+		record("glGetShaderInfoLog", shader);
+		return "";
+	}
+
+	@Override
+	public synchronized void glDeleteShader(final int shader) {
+		record("glDeleteShader", shader);
+	}
+
+	@Override
+	public synchronized int glCreateProgram() {
+		record("glCreateProgram");
+		return mNextName++;
+	}
+
+	@Override
+	public synchronized void glAttachShader(final int program, final int shader) {
+		record("glAttachShader", program, shader);
+	}
+
+	@Override
+	public synchronized void glLinkProgram(final int program) {
+		record("glLinkProgram", program);
+	}
+
+	@Override
+	public synchronized void glDeleteProgram(final int program) {
+		record("glDeleteProgram", program);
+	}
+
+	@Override
+	public synchronized void glViewport(final int x, final int y, final int width, final int height) {
+		record("glViewport", x, y, width, height);
+	}
+
+	@Override
+	public synchronized void glClearColor(final float red, final float green, final float blue, final float alpha) {
+		record("glClearColor", red, green, blue, alpha);
+	}
+
+	@Override
+	public synchronized void glClear(final int mask) {
+		record("glClear", mask);
+	}
+
+	@Override
+	public synchronized int glGetError() {
+		record("glGetError");
+		return 0;	// GL_NO_ERROR
+	}
+}
@@ -0,0 +1,499 @@
+package com.serenegiant.glutils;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: RenderFanout.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.opengl.EGLContext;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helper class to draw one texture(usually camera preview) into multiple Surfaces(ex. input Surface of encoders)
+ * on private thread with one shared EGL context.
+ * Each target has its own crop region and maximum frame rate, output size is the size of the target Surface.
+ * Only the latest frame is drawn when drawing falls behind. Note that all targets are drawn on the same thread,
+ * so a target whose swap blocks delays the other targets.
+ */
+public final class RenderFanout implements Runnable {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "RenderFanout";
+
+	/**
+	 * callback that is called on rendering thread just before drawing into the target
+	 */
+	public interface Callback {
+		/**
+		 * @param target
+		 * @param timestamp_ns
+		 * @return false to skip drawing this frame into the target
+		 */
+		public boolean onFrameAvailable(Target target, long timestamp_ns);
+	}
+
+	/**
+	 * drawing target of RenderFanout
+	 */
+	public static final class Target {
+		private final Object mSurface;
+		private final Callback mCallback;
+		/**
+		 * transform matrix of crop region in texture coordinates, guarded by this object
+		 */
+		private final float[] mCropMatrix = new float[16];
+		private boolean mHasCrop;
+		private volatile long mMinIntervalNs;
+		private volatile long mRenderedCount, mSkippedCount;
+		// following fields are only accessed on rendering thread
+		private EglApi.Surface mEglSurface;
+		private long mNextFrameNs;
+		private boolean mScheduled;
+		private boolean mFailed;
+
+		/**
+		 * Constructor
+		 * @param surface Surface, SurfaceHolder, SurfaceView or SurfaceTexture to draw
+		 * @param callback nullable
+		 */
+		public Target(final Object surface, final Callback callback) {
+			if (surface == null) throw new NullPointerException();
+			mSurface = surface;
+			mCallback = callback;
+		}
+
+		public Object getSurface() {
+			return mSurface;
+		}
+
+		/**
+		 * set crop region, the region is scaled to whole target Surface
+		 * @param x left of the region in normalized texture coordinates[0-1]
+		 * @param y bottom of the region in normalized texture coordinates[0-1]
+		 * @param width width of the region in normalized texture coordinates(0-1]
+		 * @param height height of the region in normalized texture coordinates(0-1]
+		 */
+		public void setCrop(final float x, final float y, final float width, final float height) {
+			if ((width <= 0) || (height <= 0)) throw new IllegalArgumentException();
+			synchronized (this) {
+				for (int i = 0; i < 16; i++) {
+					mCropMatrix[i] = 0;
+				}
+				mCropMatrix[0] = width;
+				mCropMatrix[5] = height;
+				mCropMatrix[10] = mCropMatrix[15] = 1.0f;
+				mCropMatrix[12] = x;
+				mCropMatrix[13] = y;
+				mHasCrop = (x != 0) || (y != 0) || (width != 1.0f) || (height != 1.0f);
+			}
+		}
+
+		/**
+		 * set maximum frame rate of this target, frames are decimated based on their timestamp
+		 * @param fps zero or negative value means drawing all frames
+		 */
+		public void setMaxFrameRate(final float fps) {
+			mMinIntervalNs = fps > 0 ? (long)(1000000000L / fps) : 0;
+		}
+
+		/**
+		 * @return number of frames that were drawn into this target
+		 */
+		public long getRenderedFrameCount() {
+			return mRenderedCount;
+		}
+
+		/**
+		 * @return number of frames that were skipped by the maximum frame rate
+		 */
+		public long getSkippedFrameCount() {
+			return mSkippedCount;
+		}
+
+		/**
+		 * check whether the frame should be drawn by the maximum frame rate and schedule next frame
+		 * @param timestamp_ns
+		 * @return
+		 */
+		private boolean isDue(final long timestamp_ns) {
+			final long interval = mMinIntervalNs;
+			if (interval <= 0) return true;
+			// accept a quarter of interval earlier than scheduled not to drop frame by jitter of timestamp
+			if (mScheduled && (timestamp_ns - mNextFrameNs < -(interval >> 2))) return false;
+			mNextFrameNs = mScheduled ? mNextFrameNs + interval : timestamp_ns + interval;
+			if (mNextFrameNs <= timestamp_ns) {
+				// fell behind more than one interval, restart scheduling from this frame
+				mNextFrameNs = timestamp_ns + interval;
+			}
+			mScheduled = true;
+			return true;
+		}
+
+		/**
+		 * @param tex_matrix
+		 * @param work
+		 * @return tex_matrix if no crop region, otherwise work that holds tex_matrix * crop matrix
+		 */
+		private float[] apply(final float[] tex_matrix, final float[] work) {
+			synchronized (this) {
+				if (!mHasCrop) return tex_matrix;
+				multiply(work, tex_matrix, mCropMatrix);
+			}
+			return work;
+		}
+
+		private void releaseSurface() {
+			if (mEglSurface != null) {
+				mEglSurface.release();
+				mEglSurface = null;
+			}
+		}
+	}
+
+	private final Object mSync = new Object();
+	private EGLContext mShard_context;
+	private int mTexId = -1;
+	private boolean mRequestSetEglContext;
+	private boolean mRequestRelease;
+	/**
+	 * all targets, guarded by mSync
+	 */
+	private final List<Target> mTargets = new ArrayList<Target>();
+	/**
+	 * removed targets whose Surface is not released yet, guarded by mSync
+	 */
+	private final List<Target> mRemoved = new ArrayList<Target>();
+	private boolean mTargetsChanged;
+	/**
+	 * pending frame, this synchronizes on mSync
+	 */
+	private final FrameMailbox mMailbox = new FrameMailbox(mSync);
+	private final GLApi mGL;
+	private final EglApi mEglApi;
+
+	private RenderFanout(final GLApi gl, final EglApi egl) {
+		if ((gl == null) || (egl == null)) throw new NullPointerException();
+		mGL = gl;
+		mEglApi = egl;
+	}
+
+	public static final RenderFanout createHandler(final String name) {
+		return createHandler(name, GLES20Api.INSTANCE, EglPool.getInstance());
+	}
+
+	/**
+	 * create RenderFanout with specific GL/EGL implementation
+	 * @param name
+	 * @param gl
+	 * @param egl
+	 * @return
+	 */
+	public static final RenderFanout createHandler(final String name, final GLApi gl, final EglApi egl) {
+		if (DEBUG) Log.v(TAG, "createHandler:");
+		final RenderFanout fanout = new RenderFanout(gl, egl);
+		synchronized (fanout.mSync) {
+			new Thread(fanout, (name != null) && (name.length() > 0) ? name : TAG).start();
+			try {
+				fanout.mSync.wait();
+			} catch (InterruptedException e) {
+			}
+		}
+		return fanout;
+	}
+
+	/**
+	 * set shared context and texture to draw, EGL Surfaces of all targets are created again on next frame
+	 * @param shared_context
+	 * @param tex_id
+	 */
+	public final void setEglContext(final EGLContext shared_context, final int tex_id) {
+		if (DEBUG) Log.i(TAG, "setEglContext:");
+		synchronized (mSync) {
+			if (mRequestRelease) return;
+			mShard_context = shared_context;
+			mTexId = tex_id;
+			mRequestSetEglContext = true;
+			mSync.notifyAll();
+			try {
+				mSync.wait();
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	/**
+	 * add drawing target, EGL Surface of the target is created on rendering thread when it is drawn first time
+	 * @param target
+	 */
+	public void addTarget(final Target target) {
+		if (!mEglApi.isSupportedSurface(target.getSurface()))
+			throw new RuntimeException("unsupported window type:" + target.getSurface());
+		synchronized (mSync) {
+			if (mRequestRelease || mTargets.contains(target)) return;
+			mTargets.add(target);
+			mTargetsChanged = true;
+		}
+	}
+
+	/**
+	 * remove drawing target, this waits until EGL Surface of the target is released
+	 * so that the caller can release the Surface(ex. MediaCodec) safely after this returns
+	 * @param target
+	 */
+	public void removeTarget(final Target target) {
+		synchronized (mSync) {
+			if (!mTargets.remove(target)) return;
+			mTargetsChanged = true;
+			mRemoved.add(target);
+			mSync.notifyAll();
+			while (!mRequestRelease && mRemoved.contains(target)) {
+				try {
+					mSync.wait();
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * remove all targets, this waits until their EGL Surfaces are released
+	 */
+	public void clearTargets() {
+		final Target[] targets;
+		synchronized (mSync) {
+			targets = mTargets.toArray(new Target[mTargets.size()]);
+		}
+		for (final Target target: targets) {
+			removeTarget(target);
+		}
+	}
+
+	/**
+	 * request drawing new frame into all targets
+	 * @param tex_matrix
+	 * @param timestamp_ns capture time of the frame based on System.nanoTime(ex. SurfaceTexture#getTimestamp),
+	 * 	this is used for decimation and set to the frame as presentation time, zero means the time when drawing
+	 */
+	public final void frameAvailable(final float[] tex_matrix, final long timestamp_ns) {
+		final int tex_id;
+		synchronized (mSync) {
+			if (mRequestRelease) return;
+			tex_id = mTexId;
+		}
+		mMailbox.post(tex_id, tex_matrix, timestamp_ns);
+	}
+
+	/**
+	 * get number of frames that were taken to draw
+	 * @return
+	 */
+	public long getRenderedFrameCount() {
+		return mMailbox.getRenderedCount();
+	}
+
+	/**
+	 * get number of frames that were replaced by newer frame because drawing fell behind
+	 * @return
+	 */
+	public long getDroppedFrameCount() {
+		return mMailbox.getCoalescedCount() + mMailbox.getDroppedCount();
+	}
+
+	public final void release() {
+		if (DEBUG) Log.i(TAG, "release:");
+		synchronized (mSync) {
+			if (mRequestRelease) return;
+			mRequestRelease = true;
+			mMailbox.close();
+			mSync.notifyAll();
+			try {
+				mSync.wait();
+			} catch (InterruptedException e) {
+				// ignore
+			}
+		}
+	}
+
+//********************************************************************************
+//********************************************************************************
+	private EglApi.Context mEgl;
+	/**
+	 * small offscreen surface to keep the context current while no target exists
+	 */
+	private EglApi.Surface mDummySurface;
+	private GLDrawer2D mDrawer;
+	private Target[] mRenderTargets = new Target[0];
+	private final FrameMailbox.Frame mFrame = new FrameMailbox.Frame();
+	private final float[] mTexMatrix = new float[16];
+	private final float[] mWorkMatrix = new float[16];
+
+	@Override
+	public final void run() {
+		if (DEBUG) Log.i(TAG, "RenderFanout thread started:");
+		synchronized (mSync) {
+			mRequestSetEglContext = mRequestRelease = false;
+			mMailbox.clear();
+			mSync.notifyAll();
+		}
+		for (int i = 0; i < 16; i++) {
+			mTexMatrix[i] = (i % 5) == 0 ? 1.0f : 0.0f;
+		}
+		for (;;) {
+			synchronized (mSync) {
+				if (mRequestRelease) break;
+				if (mRequestSetEglContext) {
+					mRequestSetEglContext = false;
+					internalPrepare();
+				}
+				if (!mRemoved.isEmpty()) {
+					for (final Target target: mRemoved) {
+						target.releaseSurface();
+					}
+					mRemoved.clear();
+					mSync.notifyAll();
+				}
+				if (mTargetsChanged) {
+					mTargetsChanged = false;
+					mRenderTargets = mTargets.toArray(new Target[mTargets.size()]);
+				}
+				if (!mMailbox.take(mFrame)) {
+					try {
+						mSync.wait();
+					} catch (InterruptedException e) {
+						break;
+					}
+					continue;
+				}
+			}
+			if ((mEgl != null) && (mFrame.texId >= 0)) {
+				renderFrame();
+			}
+		}
+		synchronized (mSync) {
+			mRequestRelease = true;
+			mTargets.addAll(mRemoved);
+			mRemoved.clear();
+			internalRelease();
+			mTargets.clear();
+			mRenderTargets = new Target[0];
+			mSync.notifyAll();
+		}
+		if (DEBUG) Log.i(TAG, "RenderFanout thread finished:");
+	}
+
+	private final void renderFrame() {
+		if (mFrame.hasTexMatrix) {
+			System.arraycopy(mFrame.texMatrix, 0, mTexMatrix, 0, 16);
+		}
+		final long timestamp_ns = mFrame.timestampNs != 0 ? mFrame.timestampNs : System.nanoTime();
+		for (final Target target: mRenderTargets) {
+			if (target.mFailed) continue;
+			if (!target.isDue(timestamp_ns)) {
+				target.mSkippedCount++;
+				continue;
+			}
+			if ((target.mCallback != null) && !target.mCallback.onFrameAvailable(target, timestamp_ns)) continue;
+			try {
+				if (target.mEglSurface == null) {
+					target.mEglSurface = mEgl.createFromSurface(target.mSurface);
+				}
+				final EglApi.Surface surface = target.mEglSurface;
+				surface.makeCurrent();
+				if ((surface.getWidth() > 0) && (surface.getHeight() > 0)) {
+					mGL.glViewport(0, 0, surface.getWidth(), surface.getHeight());
+				}
+				mDrawer.draw(mFrame.texId, target.apply(mTexMatrix, mWorkMatrix));
+				if (mFrame.timestampNs != 0) {
+					surface.setPresentationTime(mFrame.timestampNs);
+				}
+				surface.swap();
+				target.mRenderedCount++;
+			} catch (final RuntimeException e) {
+				// the Surface may be already released(ex. encoder stopped), stop drawing into this target
+				Log.w(TAG, "renderFrame:", e);
+				target.mFailed = true;
+				target.releaseSurface();
+			}
+		}
+	}
+
+	private final void internalPrepare() {
+		if (DEBUG) Log.i(TAG, "internalPrepare:");
+		internalRelease();
+		mEgl = mEglApi.createContext(mShard_context, false, true);
+		mDummySurface = mEgl.createOffscreen(1, 1);
+		mDummySurface.makeCurrent();
+		mDrawer = new GLDrawer2D(mGL);
+		mSync.notifyAll();
+	}
+
+	/**
+	 * release EGL Surfaces of all targets, drawer and EGL context,
+	 * targets are kept and their Surfaces are created again after next #internalPrepare
+	 */
+	private final void internalRelease() {
+		if (DEBUG) Log.i(TAG, "internalRelease:");
+		if (mDrawer != null) {
+			// releasing EGL Surface makes no context current, so release the drawer first
+			mDummySurface.makeCurrent();
+			mDrawer.release();
+			mDrawer = null;
+		}
+		for (final Target target: mRenderTargets) {
+			target.releaseSurface();
+			target.mFailed = false;
+		}
+		for (final Target target: mTargets) {
+			target.releaseSurface();
+			target.mFailed = false;
+		}
+		if (mDummySurface != null) {
+			mDummySurface.release();
+			mDummySurface = null;
+		}
+		if (mEgl != null) {
+			mEgl.release();
+			mEgl = null;
+		}
+	}
+
+	/**
+	 * result = a * b, same as android.opengl.Matrix#multiplyMM but this does not depend on android.jar
+	 * @param result
+	 * @param a
+	 * @param b
+	 */
+	private static void multiply(final float[] result, final float[] a, final float[] b) {
+		for (int i = 0; i < 4; i++) {
+			for (int j = 0; j < 4; j++) {
+				float sum = 0;
+				for (int k = 0; k < 4; k++) {
+					sum += a[i + k * 4] * b[k + j * 4];
+				}
+				result[i + j * 4] = sum;
+			}
+		}
+	}
+}
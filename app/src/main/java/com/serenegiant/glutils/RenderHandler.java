@@ -24,36 +24,77 @@ package com.serenegiant.glutils;
  * All files in the folder are under this Apache License, Version 2.0.
 */
 
-import android.graphics.SurfaceTexture;
 import android.opengl.EGLContext;
-import android.text.TextUtils;
 import android.util.Log;
 import android.view.Surface;
-import android.view.SurfaceHolder;
+
+import com.serenegiant.utils.LatencyStats;
 
 /**
- * Helper class to draw texture to whole view on private thread
+ * Helper class to draw texture to whole view on private thread.
+ * Draw requests are passed through FrameMailbox, so only the latest frames are drawn
+ * when drawing falls behind(ex. swap blocks on the input Surface of encoder).
  */
 public final class RenderHandler implements Runnable {
 	private static final boolean DEBUG = false;	// TODO set false on releasing
 	private static final String TAG = "RenderHandler";
 
+	/**
+	 * #draw waits until number of pending draw requests becomes less than the limit
+	 * and drops the frame if the deadline passed
+	 */
+	public static final int POLICY_BLOCK = FrameMailbox.POLICY_BLOCK;
+	/**
+	 * #draw coalesces oldest pending draw request into new one, the newest frame is always drawn
+	 */
+	public static final int POLICY_DROP_OLDEST = FrameMailbox.POLICY_COALESCE;
+	/**
+	 * #draw drops new frame if there are already too many pending draw requests
+	 */
+	public static final int POLICY_DROP_NEWEST = FrameMailbox.POLICY_DROP_NEWEST;
+
 	private final Object mSync = new Object();
     private EGLContext mShard_context;
     private boolean mIsRecordable;
     private Object mSurface;
 	private int mTexId = -1;
-	private float[] mTexMatrix;
 	
 	private boolean mRequestSetEglContext; 
 	private boolean mRequestRelease;
-	private int mRequestDraw;
+	/**
+	 * pending draw requests, this synchronizes on mSync
+	 */
+	private final FrameMailbox mMailbox = new FrameMailbox(mSync);
+	/**
+	 * frame that is drawing, only accessed on rendering thread
+	 */
+	private final FrameMailbox.Frame mFrame = new FrameMailbox.Frame();
+	private final GLApi mGL;
+	private final EglApi mEglApi;
+
+	private RenderHandler(final GLApi gl, final EglApi egl) {
+		if ((gl == null) || (egl == null)) throw new NullPointerException();
+		mGL = gl;
+		mEglApi = egl;
+	}
 
 	public static final RenderHandler createHandler(String name) {
+		return createHandler(name, GLES20Api.INSTANCE, EglPool.getInstance());
+	}
+
+	/**
+	 * create RenderHandler with specific GL/EGL implementation,
+	 * ex. RecordingGLApi and RecordingEglApi to count GL calls or to run without GL context
+	 * @param name
+	 * @param gl
+	 * @param egl
+	 * @return
+	 */
+	public static final RenderHandler createHandler(String name, final GLApi gl, final EglApi egl) {
 		if (DEBUG) Log.v(TAG, "createHandler:");
-		final RenderHandler handler = new RenderHandler();
+		final RenderHandler handler = new RenderHandler(gl, egl);
 		synchronized (handler.mSync) {
-			new Thread(handler, !TextUtils.isEmpty(name) ? name : TAG).start();
+			new Thread(handler, (name != null) && (name.length() > 0) ? name : TAG).start();
 			try {
 				handler.mSync.wait();
 			} catch (InterruptedException e) {
@@ -64,7 +105,7 @@ public final class RenderHandler implements Runnable {
 
 	public final void setEglContext(EGLContext shared_context, int tex_id, Object surface, boolean isRecordable) {
 		if (DEBUG) Log.i(TAG, "setEglContext:");
-		if (!(surface instanceof Surface) && !(surface instanceof SurfaceTexture) && !(surface instanceof SurfaceHolder))
+		if (!mEglApi.isSupportedSurface(surface))
 			throw new RuntimeException("unsupported window type:" + surface);
 		synchronized (mSync) {
 			if (mRequestRelease) return;
@@ -81,26 +122,78 @@ public final class RenderHandler implements Runnable {
 		}
 	}
 
+	/**
+	 * draw with the texture matrix of previous frame
+	 */
 	public final void draw() {
-		draw(mTexId, mTexMatrix);
+		draw(mTexId, null);
 	}
 
 	public final void draw(int tex_id) {
-		draw(tex_id, mTexMatrix);
+		draw(tex_id, null);
 	}
 
 	public final void draw(final float[] tex_matrix) {
 		draw(mTexId, tex_matrix);
 	}
+
+	/**
+	 * @param tex_matrix
+	 * @param timestamp_ns capture time of the frame based on System.nanoTime(ex. SurfaceTexture#getTimestamp),
+	 * 	this is set to the frame as presentation time, zero means the time when drawing
+	 */
+	public final void draw(final float[] tex_matrix, final long timestamp_ns) {
+		draw(mTexId, tex_matrix, timestamp_ns);
+	}
 	
+	/**
+	 * set how #draw behaves when rendering falls behind
+	 * @param policy POLICY_BLOCK, POLICY_DROP_OLDEST or POLICY_DROP_NEWEST
+	 * @param max_pending maximum number of pending draw requests
+	 * @param max_block_ms maximum waiting time on POLICY_BLOCK[milliseconds]
+	 */
+	public void setBackpressurePolicy(final int policy, final int max_pending, final long max_block_ms) {
+		mMailbox.setPolicy(policy, max_pending, max_block_ms);
+	}
+
+	/**
+	 * get number of frames that were not drawn by backpressure policy(coalesced or dropped)
+	 * @return
+	 */
+	public long getDroppedFrameCount() {
+		return mMailbox.getCoalescedCount() + mMailbox.getDroppedCount();
+	}
+
+	/**
+	 * get number of frames that were taken from the mailbox to draw
+	 * @return
+	 */
+	public long getRenderedFrameCount() {
+		return mMailbox.getRenderedCount();
+	}
+
+	/**
+	 * get number of pending frames that were replaced by newer frame on POLICY_DROP_OLDEST
+	 * @return
+	 */
+	public long getCoalescedFrameCount() {
+		return mMailbox.getCoalescedCount();
+	}
+
+	public LatencyStats getBlockedStats() {
+		return mMailbox.getBlockedStats();
+	}
+
 	public final void draw(int tex_id, final float[] tex_matrix) {
+		draw(tex_id, tex_matrix, 0);
+	}
+
+	public final void draw(int tex_id, final float[] tex_matrix, final long timestamp_ns) {
 		synchronized (mSync) {
 			if (mRequestRelease) return;
 			mTexId = tex_id;
-			mTexMatrix = tex_matrix;
-			mRequestDraw++;
-			mSync.notifyAll();
 		}
+		mMailbox.post(tex_id, tex_matrix, timestamp_ns);
 	}
 
 	public boolean isValid() {
@@ -114,6 +207,8 @@ public final class RenderHandler implements Runnable {
 		synchronized (mSync) {
 			if (mRequestRelease) return;
 			mRequestRelease = true;
+			// release #draw that is waiting on POLICY_BLOCK
+			mMailbox.close();
 			mSync.notifyAll();
 			try {
 				mSync.wait();
@@ -125,8 +220,8 @@ public final class RenderHandler implements Runnable {
 
 //********************************************************************************
 //********************************************************************************
-	private EGLBase mEgl;
-	private EGLBase.EglSurface mInputSurface;
+	private EglApi.Context mEgl;
+	private EglApi.Surface mInputSurface;
 	private GLDrawer2D mDrawer;
 
 	@Override
@@ -134,10 +229,9 @@ public final class RenderHandler implements Runnable {
 		if (DEBUG) Log.i(TAG, "RenderHandler thread started:");
 		synchronized (mSync) {
 			mRequestSetEglContext = mRequestRelease = false;
-			mRequestDraw = 0;
+			mMailbox.clear();
 			mSync.notifyAll();
 		}
-        boolean localRequestDraw;
         for (;;) {
         	synchronized (mSync) {
         		if (mRequestRelease) break;
@@ -145,27 +239,24 @@ public final class RenderHandler implements Runnable {
 	        		mRequestSetEglContext = false;
 	        		internalPrepare();
 	        	}
-	        	localRequestDraw = mRequestDraw > 0;
-	        	if (localRequestDraw) {
-					mRequestDraw--;
-//					mSync.notifyAll();
-				}
-        	}
-        	if (localRequestDraw) {
-        		if ((mEgl != null) && mTexId >= 0) {
-            		mInputSurface.makeCurrent();
-            		mDrawer.draw(mTexId, mTexMatrix);
-            		mInputSurface.swap();
-        		}
-        	} else {
-        		synchronized(mSync) {
+	        	// take only the latest frame(s), the matrix is copied into mFrame
+	        	if (!mMailbox.take(mFrame)) {
         			try {
 						mSync.wait();
 					} catch (InterruptedException e) {
 						break;
 					}
-        		}
+					continue;
+	        	}
         	}
+    		if ((mEgl != null) && (mFrame.texId >= 0)) {
+        		mInputSurface.makeCurrent();
+        		mDrawer.draw(mFrame.texId, mFrame.hasTexMatrix ? mFrame.texMatrix : null);
+        		if (mFrame.timestampNs != 0) {
+        			mInputSurface.setPresentationTime(mFrame.timestampNs);
+        		}
+        		mInputSurface.swap();
+    		}
         }
         synchronized (mSync) {
         	mRequestRelease = true;
@@ -178,26 +269,31 @@ public final class RenderHandler implements Runnable {
 	private final void internalPrepare() {
 		if (DEBUG) Log.i(TAG, "internalPrepare:");
 		internalRelease();
-		mEgl = new EGLBase(mShard_context, false, mIsRecordable);
+		mEgl = mEglApi.createContext(mShard_context, false, mIsRecordable);
 
 		mInputSurface = mEgl.createFromSurface(mSurface);
 
 		mInputSurface.makeCurrent();
-		mDrawer = new GLDrawer2D();
+		mDrawer = new GLDrawer2D(mGL);
 		mSurface = null;
 		mSync.notifyAll();
 	}
 
 	private final void internalRelease() {
 		if (DEBUG) Log.i(TAG, "internalRelease:");
-		if (mInputSurface != null) {
-			mInputSurface.release();
-			mInputSurface = null;
-		}
 		if (mDrawer != null) {
+			// delete GL objects while the context is current,
+			// otherwise they are leaked in the context that is reused by EglPool
+			if (mInputSurface != null) {
+				mInputSurface.makeCurrent();
+			}
 			mDrawer.release();
 			mDrawer = null;
 		}
+		if (mInputSurface != null) {
+			mInputSurface.release();
+			mInputSurface = null;
+		}
 		if (mEgl != null) {
 			mEgl.release();
 			mEgl = null;
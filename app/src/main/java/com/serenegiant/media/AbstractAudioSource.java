@@ -0,0 +1,126 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: AbstractAudioSource.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Base class of AudioSource that generates PCM data by itself(from file, generator and so on).
+ * Data is supplied as fast as it is generated(faster than real time) unless realtime mode is enabled,
+ * on realtime mode, #read blocks so that data is supplied at the speed of sampling rate like mic.
+ */
+public abstract class AbstractAudioSource implements AudioSource {
+	private final int mSampleRate;
+	private final int mChannelCount;
+	private final boolean mRealtime;
+	private long mStartNs;
+	private long mReadBytes;
+
+	/**
+	 * Constructor
+	 * @param sample_rate
+	 * @param channel_count
+	 * @param realtime true if #read blocks to supply data at the speed of sampling rate
+	 */
+	protected AbstractAudioSource(final int sample_rate, final int channel_count, final boolean realtime) {
+		if ((sample_rate <= 0) || (channel_count <= 0)) throw new IllegalArgumentException();
+		mSampleRate = sample_rate;
+		mChannelCount = channel_count;
+		mRealtime = realtime;
+	}
+
+	@Override
+	public int getSampleRate() {
+		return mSampleRate;
+	}
+
+	@Override
+	public int getChannelCount() {
+		return mChannelCount;
+	}
+
+	/**
+	 * @return true if data is supplied at the speed of sampling rate
+	 */
+	public boolean isRealtime() {
+		return mRealtime;
+	}
+
+	/**
+	 * if you override this method, you should call super.start()
+	 */
+	@Override
+	public void start() throws IOException {
+		mStartNs = System.nanoTime();
+		mReadBytes = 0;
+	}
+
+	@Override
+	public final int read(final ByteBuffer buffer, final int size) {
+		final ByteBuffer dst = buffer.duplicate();
+		// keep frame alignment
+		final int frameBytes = mChannelCount * 2;
+		dst.position(0).limit((Math.min(size, dst.capacity()) / frameBytes) * frameBytes);
+		final int n = fill(dst);
+		if (n > 0) {
+			mReadBytes += n;
+			if (mRealtime) {
+				waitRealtime();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * write PCM data into the buffer from it's position to limit
+	 * @param buffer
+	 * @return number of bytes written, negative value means end of stream or error
+	 */
+	protected abstract int fill(ByteBuffer buffer);
+
+	@Override
+	public void stop() {
+	}
+
+	@Override
+	public void release() {
+	}
+
+	/**
+	 * wait until the time that read data would be captured at the sampling rate
+	 */
+	private void waitRealtime() {
+		final long bytesPerSec = (long)mSampleRate * mChannelCount * 2;
+		final long wait_ns = mReadBytes * 1000000000L / bytesPerSec - (System.nanoTime() - mStartNs);
+		if (wait_ns > 0) {
+			try {
+				Thread.sleep(wait_ns / 1000000L, (int)(wait_ns % 1000000L));
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+	}
+}
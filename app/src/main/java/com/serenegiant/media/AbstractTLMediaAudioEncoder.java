@@ -24,16 +24,18 @@ package com.serenegiant.media;
  * All files in the folder are under this Apache License, Version 2.0.
 */
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.media.AudioFormat;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.util.Log;
 
+import com.serenegiant.utils.LatencyStats;
+import com.serenegiant.utils.PcmRingBuffer;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Encoder class to encode audio data with AAC encoder and save into intermediate files
@@ -45,11 +47,118 @@ public abstract class AbstractTLMediaAudioEncoder extends TLMediaEncoder {
 	private static final String MIME_TYPE = "audio/mp4a-latm";
     protected static final int DEFAULT_SAMPLE_RATE = 44100;	// 44.1[KHz] is only setting guaranteed to be available on all devices.
     protected static final int DEFAULT_BIT_RATE = 64000;
+	/**
+	 * number of samples per channel in one AAC frame
+	 */
+	protected static final int AAC_SAMPLES_PER_FRAME = 1024;
+	/**
+	 * number of PCM chunks between capturing and encoding, about 1.5 seconds at 44.1kHz
+	 */
+	private static final int PCM_CHUNK_NUM = 64;
+	/**
+	 * maximum number of PCM chunks that are batched into one codec input buffer,
+	 * actual number is limited by the capacity of codec input buffer
+	 */
+	private static final int MAX_CHUNKS_PER_BATCH = 8;
+	private static final long FEED_WAIT_NS = 20000000L;	// 20[msec]
+	private static final long JOIN_TIMEOUT_MS = 200;
+	/**
+	 * maximum waiting time of capturing thread while gate is off,
+	 * it is notified on resume/release, this is just for safety
+	 */
+	private static final long GATE_WAIT_MS = 1000;
+	/**
+	 * maximum difference between sample count based time and current time,
+	 * sample clock is re-anchored when it exceeds(ex. the source lost data)
+	 */
+	private static final long MAX_CLOCK_DRIFT_US = 40000;	// 40[msec]
 
     protected final int mSampleRate;	// 44100 = 44.1[KHz] is only setting guaranteed to be available on all devices.
+    protected final int mChannelCount;	// 1 or 2
     protected final int mBitRate;		// 64000
+	/**
+	 * size of each PCM chunk between capturing and encoding, one AAC frame of 16bit PCM
+	 */
+	protected final int mChunkBytes;
+	private AudioSource mAudioSource;
     
     private AudioThread mAudioThread = null;
+	private FeederThread mFeederThread = null;
+	/**
+	 * PCM chunks from capturing thread to feeder thread
+	 */
+	private final PcmRingBuffer mPcmRing;
+	/**
+	 * slot that capturing thread is writing, only accessed from capturing thread
+	 */
+	private PcmRingBuffer.Slot mCaptureSlot;
+	/**
+	 * buffer to read and discard PCM data while the ring is full, only accessed from capturing thread
+	 */
+	private ByteBuffer mDiscardBuffer;
+	/**
+	 * number of codec input buffers queued by feeder thread and total bytes of them
+	 */
+	private volatile long mBatchCount, mBatchBytes;
+	/**
+	 * true if PCM data is read directly into codec input buffer without the ring and feeder thread
+	 */
+	private volatile boolean mZeroCopyCapture;
+	/**
+	 * requested deferred encoding and the value that was applied on prepare
+	 */
+	private volatile boolean mDeferredEncoding;
+	private boolean mPassthrough;
+	/**
+	 * number of chunks discarded on zero copy capture because codec had no free input buffer
+	 */
+	private volatile long mZeroCopyOverrunCount;
+	/**
+	 * gate to skip encoding of silence, null means disabled
+	 */
+	private volatile SilenceGate mSilenceGate;
+	/**
+	 * duration of silence that was skipped since last encoded chunk,
+	 * only accessed from feeder thread(or capturing thread on zero copy capture)
+	 */
+	private long mSilenceUs;
+	/**
+	 * duration of audio that is kept while pausing and encoded on next resume, zero means disabled
+	 */
+	private volatile long mPreRollMs;
+	/**
+	 * PCM chunks captured while pausing, only written/read by capturing thread
+	 * except replaced on resume. presentationTimeUs of each slot is System#nanoTime based time[micro seconds]
+	 */
+	private volatile PcmRingBuffer mPreRollRing;
+	private volatile int mPreRollChunks;
+	/**
+	 * synchronize gating of capturing thread, guards mCaptureZeroCopy and mGateOnNs
+	 */
+	private final Object mCaptureSync = new Object();
+	/**
+	 * true while capturing thread should pass captured data to encoding,
+	 * set on resume and cleared on pause
+	 */
+	private volatile boolean mCaptureGateOn;
+	/**
+	 * capture mode of current sequence
+	 */
+	private boolean mCaptureZeroCopy;
+	private long mGateOnNs;
+	private volatile boolean mRequestStopCapture;
+	/**
+	 * time from resume of this encoder to the first chunk captured for the sequence
+	 */
+	private final LatencyStats mCaptureStartStats = new LatencyStats("capture-start");
+	/**
+	 * presentationTimeUs of the first sample since sample clock was anchored
+	 * and number of samples captured since then, only accessed on capturing thread
+	 */
+	private boolean mSampleClockAnchored;
+	private long mSampleBasePTSUs;
+	private long mSampleCount;
+	private volatile long mClockResyncCount;
 
 	/**
 	 * Constructor(this class only support monaural audio source)
@@ -63,27 +172,69 @@ public abstract class AbstractTLMediaAudioEncoder extends TLMediaEncoder {
 		final MediaEncoderListener listener,
 		final int sample_rate, final int bit_rate) {
 
-		super(context, base_path, 1, listener);
+		this(context, base_path, listener, sample_rate, bit_rate, null);
+	}
+
+	/**
+	 * Constructor(this class only support monaural audio source)
+	 * @param context
+	 * @param base_path
+	 * @param listener
+	 * @param sample_rate default value is 44100(44.1kHz, 44.1KHz is only guarantee value on all devices)
+	 * @param bit_rate  default value is 64000(64kbps)
+	 * @param executor shared executor to run this encoder, if null, this encoder creates private thread
+	 */
+	public AbstractTLMediaAudioEncoder(final Context context, final String base_path,
+		final MediaEncoderListener listener,
+		final int sample_rate, final int bit_rate, final EncoderExecutor executor) {
+
+		this(context, base_path, listener, sample_rate, 1, bit_rate, executor);
+	}
+
+	/**
+	 * Constructor
+	 * @param context
+	 * @param base_path
+	 * @param listener
+	 * @param sample_rate default value is 44100(44.1kHz, 44.1KHz is only guarantee value on all devices)
+	 * @param channel_count 1(monaural) or 2(stereo), this should match with AudioSource
+	 * @param bit_rate  default value is 64000(64kbps)
+	 * @param executor shared executor to run this encoder, if null, this encoder creates private thread
+	 */
+	public AbstractTLMediaAudioEncoder(final Context context, final String base_path,
+		final MediaEncoderListener listener,
+		final int sample_rate, final int channel_count, final int bit_rate, final EncoderExecutor executor) {
+
+		super(context, base_path, 1, listener, executor);
+		if ((channel_count != 1) && (channel_count != 2))
+			throw new IllegalArgumentException("unsupported channel count:" + channel_count);
 		mSampleRate = sample_rate > 0 ? sample_rate : DEFAULT_SAMPLE_RATE;
+		mChannelCount = channel_count;
 		mBitRate = bit_rate > 0 ? bit_rate : DEFAULT_BIT_RATE;
+		mChunkBytes = AAC_SAMPLES_PER_FRAME * 2 * channel_count;
+		mPcmRing = new PcmRingBuffer(PCM_CHUNK_NUM, mChunkBytes);
 	}
 
 	@Override
 	protected MediaFormat internal_prepare() throws IOException {
 		if (DEBUG) Log.v(TAG, "prepare:");
-		// prepare MediaCodec for AAC encoding of audio data from inernal mic.
-		final MediaCodecInfo audioCodecInfo = selectAudioCodec(MIME_TYPE);
-		if (audioCodecInfo == null) {
-			Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
-			return null;
+		mPassthrough = mDeferredEncoding;
+		if (!mPassthrough) {
+			// prepare MediaCodec for AAC encoding of audio data from inernal mic.
+			final String codecName = getBackendFactory().selectCodec(MIME_TYPE, false);
+			if (codecName == null) {
+				Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
+				return null;
+			}
+			if (DEBUG) Log.i(TAG, "selected codec: " + codecName);
 		}
-		if (DEBUG) Log.i(TAG, "selected codec: " + audioCodecInfo.getName());
 
-		final MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, mSampleRate, 1);
+		final MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, mSampleRate, mChannelCount);
 		format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-		format.setInteger(MediaFormat.KEY_CHANNEL_MASK, AudioFormat.CHANNEL_IN_MONO);
+		format.setInteger(MediaFormat.KEY_CHANNEL_MASK,
+			mChannelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO);
 		format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
-		format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
+		format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, mChannelCount);
 //		format.setLong(MediaFormat.KEY_MAX_INPUT_SIZE, inputFile.length());
 //      format.setLong(MediaFormat.KEY_DURATION, (long)durationInMs );
 		if (DEBUG) Log.i(TAG, "prepare finishing:format=" + format);
@@ -91,40 +242,552 @@ public abstract class AbstractTLMediaAudioEncoder extends TLMediaEncoder {
 	}
 
 	@Override
-	protected MediaCodec internal_configure(MediaCodec codec,
+	protected EncoderBackend internal_configure(EncoderBackend codec,
 		final MediaFormat format) throws IOException {
 
 		if (DEBUG) Log.v(TAG, "internal_configure:");
-		if (codec == null)
-			codec = MediaCodec.createEncoderByType(MIME_TYPE);
-		codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		if (codec == null) {
+			codec = mPassthrough
+				? attachBackend(new PcmPassthroughBackend(MAX_CHUNKS_PER_BATCH * mChunkBytes))
+				: createBackend(MIME_TYPE);
+		}
+		codec.configure(format, MediaCodec.CONFIGURE_FLAG_ENCODE);
 		return codec;
 	}
 
 	@Override
 	protected void callOnResume() {
 		super.callOnResume();
-		// create and execute audio capturing thread using internal mic
-		if (mAudioThread == null) {
-			mAudioThread = new AudioThread();
-			mAudioThread.start();
+		// capturing thread is created on first resume and keeps running until release,
+		// it is just gated on/off by resume/pause.
+		// feeder thread that writes captured data to the encoder runs only while recording
+		final boolean zeroCopy = mZeroCopyCapture;
+		// feeder of previous sequence may be still alive when it was blocked in #encode,
+		// never start another consumer of the ring until it finished
+		final FeederThread previous = awaitFeeder();
+		synchronized (mCaptureSync) {
+			if (previous == null) {
+				// discard data captured on previous session before the gate opens,
+				// otherwise alive feeder discards remaining data by itself when it finishes
+				mPcmRing.clear();
+			}
+			mCaptureZeroCopy = zeroCopy;
+			final long preroll_ms = mPreRollMs;
+			if (preroll_ms > 0) {
+				final int chunks = (int)((preroll_ms * mSampleRate / 1000L + AAC_SAMPLES_PER_FRAME - 1) / AAC_SAMPLES_PER_FRAME);
+				if ((mPreRollRing == null) || (mPreRollRing.getCapacity() < chunks)) {
+					mPreRollRing = new PcmRingBuffer(chunks, mChunkBytes);
+				}
+				mPreRollChunks = chunks;
+			} else {
+				mPreRollRing = null;
+			}
+			mGateOnNs = System.nanoTime();
+			mCaptureGateOn = true;
+			if ((mAudioThread == null) || !mAudioThread.isAlive()) {
+				mRequestStopCapture = false;
+				mAudioThread = new AudioThread();
+				mAudioThread.start();
+			} else {
+				mCaptureSync.notifyAll();
+			}
+		}
+		if (!zeroCopy) {
+			mFeederThread = new FeederThread(previous);
+			mFeederThread.start();
 		}
 	}
 
+	/**
+	 * presentationTimeUs of captured data are kept(they are back-dated on pre-roll)
+	 * instead of using the time when they are drained
+	 */
+	@Override
+	protected boolean useInputPTS() {
+		return true;
+	}
+
 	@Override
 	protected void callOnPause() {
-		mAudioThread = null;
+		super.callOnPause();
+		synchronized (mCaptureSync) {
+			mCaptureGateOn = false;
+		}
+		joinThreads(false);
+	}
+
+	@Override
+	protected void internal_release() {
+		if (DEBUG) Log.v(TAG, "internal_release:" + mCaptureStartStats);
+		joinThreads(true);
+		if (mAudioSource != null) {
+			mAudioSource.release();
+			mAudioSource = null;
+		}
+		super.internal_release();
+	}
+
+	/**
+	 * wait for feeder thread finishing, it finishes by itself within a few milliseconds
+	 * after the encoder left running state
+	 * @param capture true if also stop capturing thread and wait for it
+	 */
+	private void joinThreads(final boolean capture) {
+		final Thread audio = capture ? mAudioThread : null;
+		final FeederThread feeder = mFeederThread;
+		if (capture) {
+			synchronized (mCaptureSync) {
+				mRequestStopCapture = true;
+				mCaptureGateOn = false;
+				mAudioThread = null;
+				mCaptureSync.notifyAll();
+			}
+		}
+		if (feeder != null) {
+			feeder.mRequestStop = true;
+		}
+		try {
+			if (audio != null) audio.join(JOIN_TIMEOUT_MS);
+			if (feeder != null) feeder.join(JOIN_TIMEOUT_MS);
+		} catch (InterruptedException e) {
+			// ignore
+		}
+		// keep the reference while the feeder is still alive so that #awaitFeeder can wait for it
+		if ((feeder == null) || !feeder.isAlive()) {
+			mFeederThread = null;
+		}
+	}
+
+	/**
+	 * wait for the feeder thread of previous sequence finishing at most JOIN_TIMEOUT_MS,
+	 * the ring buffer is single consumer, so two feeder threads must not run at the same time.
+	 * the feeder finishes within the maximum blocking time of #encode after it was requested to stop
+	 * @return the feeder of previous sequence if it is still alive, next feeder should wait for it
+	 * 	before consuming the ring
+	 */
+	private FeederThread awaitFeeder() {
+		final FeederThread feeder = mFeederThread;
+		mFeederThread = null;
+		if (feeder == null) return null;
+		feeder.mRequestStop = true;
+		try {
+			feeder.join(JOIN_TIMEOUT_MS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (feeder.isAlive()) {
+			Log.w(TAG, "awaitFeeder:feeder of previous sequence is still alive");
+			return feeder;
+		}
+		return null;
 	}
 
 	/**
-	 * audio sampling loop. this method is executed on private thread
-	 * this method should return if mIsRunning=false or mRequestStop=true or mIsEOS=true.
+	 * get time from resume to the first captured chunk of the sequence,
+	 * this includes starting the audio source
+	 * @return
 	 */
-	protected abstract void recordingLoop();
+	public LatencyStats getCaptureStartStats() {
+		return mCaptureStartStats;
+	}
+
+	/**
+	 * get number of times sample clock was re-anchored to current time
+	 * because the time derived from sample count drifted too much
+	 * @return
+	 */
+	public long getClockResyncCount() {
+		return mClockResyncCount;
+	}
+
+	/**
+	 * set duration of audio that is captured while pausing and encoded on next resume,
+	 * so that the recording includes the moment just before resuming.
+	 * while pausing, captured data is only kept in preallocated ring without encoding.
+	 * this is applied when capturing thread starts next time.
+	 * @param preroll_ms zero to disable
+	 */
+	public void setPreRoll(final long preroll_ms) {
+		mPreRollMs = Math.max(0, preroll_ms);
+	}
+
+	public long getPreRoll() {
+		return mPreRollMs;
+	}
 
 	/**
-	 * Thread to capture audio data from internal mic as uncompressed 16bit PCM data
-	 * and write them to the MediaCodec encoder
+	 * get number of captured PCM chunks that were dropped because encoding fell behind
+	 * @return
+	 */
+	public long getCaptureOverrunCount() {
+		return mPcmRing.getOverrunCount() + mZeroCopyOverrunCount;
+	}
+
+	/**
+	 * set whether audio source reads PCM data directly into input buffer of codec.
+	 * this saves one copy of every PCM byte, but capturing waits for the codec
+	 * and the data is discarded if the codec has no free input buffer.
+	 * this is applied from next resume.
+	 * @param zero_copy
+	 */
+	public void setZeroCopyCapture(final boolean zero_copy) {
+		mZeroCopyCapture = zero_copy;
+	}
+
+	public boolean isZeroCopyCapture() {
+		return mZeroCopyCapture;
+	}
+
+	/**
+	 * set whether AAC encoding is deferred until building movie file.
+	 * if true, captured PCM data is stored into intermediate file as it is
+	 * and TLMediaMovieBuilder encodes it while building, so no audio codec runs while recording.
+	 * intermediate file becomes larger(about 88KB/sec at 44.1kHz mono).
+	 * this should be called before prepare.
+	 * @param deferred
+	 */
+	public void setDeferredEncoding(final boolean deferred) {
+		mDeferredEncoding = deferred;
+	}
+
+	public boolean isDeferredEncoding() {
+		return mDeferredEncoding;
+	}
+
+	/**
+	 * set gate to skip encoding and storing silent audio.
+	 * the duration of skipped silence is recorded in the intermediate file
+	 * and TLMediaMovieBuilder handles it depending on TLMediaMovieBuilder#setAudioGapMode.
+	 * the gate also works as level meter of captured audio.
+	 * this is applied from next resume.
+	 * @param gate null to disable, sampling rate and channel count should match with this encoder
+	 */
+	public void setSilenceGate(final SilenceGate gate) {
+		mSilenceGate = gate;
+	}
+
+	public SilenceGate getSilenceGate() {
+		return mSilenceGate;
+	}
+
+	/**
+	 * check captured data with silence gate
+	 * @param buffer
+	 * @param length
+	 * @param presentationTimeUs
+	 * @return true if the data should be encoded
+	 */
+	private boolean passGate(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
+		final SilenceGate gate = mSilenceGate;
+		if ((gate == null) || (length <= 0)) return true;
+		if (gate.process(buffer, length)) {
+			if (mSilenceUs > 0) {
+				markInputGap(presentationTimeUs, mSilenceUs);
+				mSilenceUs = 0;
+			}
+			return true;
+		}
+		mSilenceUs += length * 1000000L / (mSampleRate * mChannelCount * 2);
+		return false;
+	}
+
+	/**
+	 * get maximum number of PCM chunks that were waiting for encoding at the same time
+	 * @return
+	 */
+	public int getCaptureHighWaterMark() {
+		return mPcmRing.getHighWaterMark();
+	}
+
+	/**
+	 * get average number of bytes that was queued into each codec input buffer
+	 * @return
+	 */
+	public long getAverageBatchBytes() {
+		final long n = mBatchCount;
+		return n > 0 ? mBatchBytes / n : 0;
+	}
+
+	/**
+	 * get buffer to read captured PCM data into, this never blocks.
+	 * this should be called only from #recordingLoop and
+	 * #commitCapture should be called after reading data into the returned buffer.
+	 * @return cleared buffer with mChunkBytes capacity.
+	 * 		if encoding fell behind, this returns buffer to discard data
+	 */
+	protected final ByteBuffer obtainCaptureBuffer() {
+		mCaptureSlot = mPcmRing.obtain();
+		if (mCaptureSlot != null) {
+			return mCaptureSlot.buffer;
+		}
+		return obtainDiscardBuffer();
+	}
+
+	private ByteBuffer obtainDiscardBuffer() {
+		if (mDiscardBuffer == null) {
+			mDiscardBuffer = ByteBuffer.allocateDirect(mChunkBytes);
+		}
+		mDiscardBuffer.clear();
+		return mDiscardBuffer;
+	}
+
+	/**
+	 * pass captured PCM data in the buffer returned by #obtainCaptureBuffer to encoding stage
+	 * @param length number of bytes that was read
+	 * @param presentationTimeUs
+	 */
+	protected final void commitCapture(final int length, final long presentationTimeUs) {
+		final PcmRingBuffer.Slot slot = mCaptureSlot;
+		mCaptureSlot = null;
+		if ((slot != null) && (length > 0)) {
+			slot.length = length;
+			slot.presentationTimeUs = presentationTimeUs;
+			mPcmRing.commit();
+		}
+	}
+
+	/**
+	 * create AudioSource that supplies PCM data, this is called on capturing thread on the first resume.
+	 * the returned source is started on every resume, stopped on every pause(kept running if pre-roll is enabled)
+	 * and released when this encoder is released.
+	 * sampling rate and channel count of the source should match with this encoder.
+	 * @return
+	 * @throws IOException
+	 */
+	protected abstract AudioSource createAudioSource() throws IOException;
+
+	/**
+	 * audio sampling loop. this method is executed on private thread that is created on first resume
+	 * and keeps running while pausing until this encoder is released.
+	 * if you override this method, it may return on pausing, then new thread is created on next resume.
+	 * captured data should be passed with #obtainCaptureBuffer and #commitCapture
+	 * so that capturing never blocks by encoding.
+	 */
+	protected void recordingLoop() {
+		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+		try {
+			if (mAudioSource == null) {
+				mAudioSource = createAudioSource();
+				if ((mAudioSource.getSampleRate() != mSampleRate)
+					|| (mAudioSource.getChannelCount() != mChannelCount)) {
+					Log.w(TAG, "AudioSource does not match with encoder:sampleRate="
+						+ mAudioSource.getSampleRate() + ",channels=" + mAudioSource.getChannelCount());
+				}
+			}
+			captureLoop(mAudioSource);
+		} catch (Exception e) {
+			Log.e(TAG, "AudioThread#run", e);
+		} finally {
+			android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_DEFAULT);
+		}
+	}
+
+	/**
+	 * capture PCM data while gate is on, and also while pausing if pre-roll is enabled.
+	 * audio source is started only while capturing.
+	 * @param source
+	 */
+	private void captureLoop(final AudioSource source) throws IOException, InterruptedException {
+		boolean sourceStarted = false;
+		boolean recording = false;
+		boolean zeroCopy = false;
+		long gateOnNs = 0;
+		try {
+			while (mIsRunning && !mRequestStopCapture) {
+				final PcmRingBuffer preRoll = mPreRollRing;
+				if (mCaptureGateOn && isRecording()) {
+					if (!recording) {
+						// first chunk of this sequence
+						recording = true;
+						synchronized (mCaptureSync) {
+							zeroCopy = mCaptureZeroCopy;
+							gateOnNs = mGateOnNs;
+						}
+						if (DEBUG) Log.v(TAG, "captureLoop:gate on,zeroCopy=" + zeroCopy);
+						mSampleClockAnchored = false;
+						if (zeroCopy) {
+							resetGate();
+						}
+						if (!sourceStarted) {
+							source.start();
+							sourceStarted = true;
+						}
+						flushPreRoll(preRoll, zeroCopy);
+					}
+					if (!(zeroCopy ? captureDirect(source) : captureChunk(source))) break;
+					if (gateOnNs != 0) {
+						mCaptureStartStats.addSince(gateOnNs);
+						gateOnNs = 0;
+					}
+				} else if ((preRoll != null) && isStarted()) {
+					recording = false;
+					if (!sourceStarted) {
+						source.start();
+						sourceStarted = true;
+					}
+					if (!capturePreRoll(source, preRoll)) break;
+				} else {
+					// gate off, stop the source and wait for next resume
+					recording = false;
+					if (sourceStarted) {
+						source.stop();
+						sourceStarted = false;
+					}
+					synchronized (mCaptureSync) {
+						if (mIsRunning && !mRequestStopCapture && !mCaptureGateOn
+							&& !((mPreRollRing != null) && isStarted())) {
+
+							mCaptureSync.wait(GATE_WAIT_MS);
+						}
+					}
+				}
+			}
+		} finally {
+			if (sourceStarted) {
+				source.stop();
+			}
+		}
+	}
+
+	/**
+	 * read one chunk of PCM data into the ring, encoding is done on feeder thread
+	 * @param source
+	 * @return false if the source reached end of stream
+	 */
+	private boolean captureChunk(final AudioSource source) {
+		// read one AAC frame(1024 samples of 16bit PCM per channel) at once
+		final ByteBuffer buf = obtainCaptureBuffer();
+		final int readBytes = source.read(buf, mChunkBytes);
+		final long pts = samplePTSUs(readBytes, toPTSUs(System.nanoTime()));
+		// drop the chunk if pausing was requested while reading
+		commitCapture(mCaptureGateOn && isRecording() ? readBytes : 0, pts);
+		return readBytes >= 0;
+	}
+
+	/**
+	 * read PCM data directly into input buffer of codec
+	 * @param source
+	 * @return false if the source reached end of stream
+	 */
+	private boolean captureDirect(final AudioSource source) {
+		final ByteBuffer buf = obtainInputBuffer(TIMEOUT_USEC);
+		if (buf == null) {
+			if (!isRecording()) return true;
+			// codec is busy, read and discard one chunk not to make the source overflow
+			final int readBytes = source.read(obtainDiscardBuffer(), mChunkBytes);
+			if (readBytes < 0) return false;
+			// discarded samples still advance the clock
+			samplePTSUs(readBytes, toPTSUs(System.nanoTime()));
+			mZeroCopyOverrunCount++;
+			return true;
+		}
+		// fill input buffer with multiple of AAC frame same as FeederThread
+		int size = Math.min((buf.capacity() / mChunkBytes) * mChunkBytes,
+			mChunkBytes * MAX_CHUNKS_PER_BATCH);
+		if (size <= 0) size = buf.capacity();
+		final int readBytes = source.read(buf, size);
+		final long pts = samplePTSUs(readBytes, toPTSUs(System.nanoTime()));
+		if (!passGate(buf, readBytes, pts)) {
+			// just return the buffer to codec
+			queueObtainedInput(0, pts);
+			return true;
+		}
+		queueObtainedInput(readBytes, pts);
+		if (readBytes > 0) {
+			mBatchCount++;
+			mBatchBytes += readBytes;
+			frameAvailableSoon();
+		}
+		return readBytes >= 0;
+	}
+
+	/**
+	 * read one chunk of PCM data into pre-roll ring while pausing, the oldest chunk is overwritten
+	 * @param source
+	 * @param preRoll
+	 * @return false if the source reached end of stream
+	 */
+	private boolean capturePreRoll(final AudioSource source, final PcmRingBuffer preRoll) {
+		// this thread is both of producer and consumer of the pre-roll ring
+		if (preRoll.size() >= mPreRollChunks) {
+			preRoll.peek();
+			preRoll.release();
+		}
+		final PcmRingBuffer.Slot slot = preRoll.obtain();
+		final int readBytes = source.read(slot.buffer, mChunkBytes);
+		if (readBytes > 0) {
+			slot.length = readBytes;
+			slot.presentationTimeUs = toPTSUs(System.nanoTime());
+			preRoll.commit();
+		}
+		return readBytes >= 0;
+	}
+
+	/**
+	 * pass PCM data captured while pausing to encoding with back-dated presentationTimeUs.
+	 * the source keeps running while pausing, so sample clock is anchored at the oldest chunk
+	 * and continues to following live chunks.
+	 * @param preRoll
+	 * @param zeroCopy
+	 */
+	private void flushPreRoll(final PcmRingBuffer preRoll, final boolean zeroCopy) {
+		if ((preRoll == null) || (preRoll.size() == 0)) return;
+		for (PcmRingBuffer.Slot slot = preRoll.peek(); slot != null; slot = preRoll.peek()) {
+			final long pts = samplePTSUs(slot.length, slot.presentationTimeUs);
+			final ByteBuffer src = slot.buffer.duplicate();
+			src.position(0).limit(slot.length);
+			if (zeroCopy) {
+				// there is no feeder thread, encode on this thread
+				if (passGate(src, slot.length, pts) && encode(src, slot.length, pts)) {
+					frameAvailableSoon();
+				}
+			} else {
+				obtainCaptureBuffer().duplicate().put(src);
+				commitCapture(slot.length, pts);
+			}
+			preRoll.release();
+		}
+	}
+
+	/**
+	 * get presentationTimeUs of captured PCM data from number of samples captured since anchored,
+	 * so that the time does not have jitter of reading from the source.
+	 * this should be called on capturing thread for every data that was read from the source in order.
+	 * @param bytes number of bytes that was read
+	 * @param end_pts_us presentationTimeUs when reading completed
+	 * @return presentationTimeUs of the first sample of the data
+	 */
+	private long samplePTSUs(final int bytes, final long end_pts_us) {
+		final int frames = Math.max(bytes, 0) / (2 * mChannelCount);
+		final long start_pts_us = end_pts_us - frames * 1000000L / mSampleRate;
+		long pts = mSampleBasePTSUs + mSampleCount * 1000000L / mSampleRate;
+		if (!mSampleClockAnchored || (Math.abs(start_pts_us - pts) > MAX_CLOCK_DRIFT_US)) {
+			if (mSampleClockAnchored) {
+				mClockResyncCount++;
+			}
+			mSampleClockAnchored = true;
+			mSampleBasePTSUs = pts = start_pts_us;
+			mSampleCount = 0;
+		}
+		mSampleCount += frames;
+		return pts;
+	}
+
+	/**
+	 * reset state of silence gate at the beginning of each sequence,
+	 * this should be called on the thread that calls #passGate
+	 */
+	private void resetGate() {
+		final SilenceGate gate = mSilenceGate;
+		if (gate != null) {
+			gate.reset();
+		}
+		mSilenceUs = 0;
+	}
+
+	/**
+	 * Thread to capture audio data from AudioSource as uncompressed 16bit PCM data
+	 * and pass them to the MediaCodec encoder, this thread is gated on/off by resume/pause
 	 */
     private final class AudioThread extends Thread {
     	@Override
@@ -138,34 +801,101 @@ public abstract class AbstractTLMediaAudioEncoder extends TLMediaEncoder {
     	}
     }
 
-    /**
-     * select the first codec that match a specific MIME type
-     * @param mimeType
-     * @return
-     */
-    @SuppressLint("LongLogTag")
-	private static final MediaCodecInfo selectAudioCodec(final String mimeType) {
-    	if (DEBUG) Log.v("AbstractTLMediaAudioEncoder", "selectAudioCodec:");
-
-    	MediaCodecInfo result = null;
-    	// get the list of available codecs
-        final int numCodecs = MediaCodecList.getCodecCount();
-LOOP:	for (int i = 0; i < numCodecs; i++) {
-        	final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-            if (!codecInfo.isEncoder()) {	// skip decoder
-                continue;
-            }
-            final String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-            	if (DEBUG) Log.i("AbstractTLMediaAudioEncoder",
-            		"supportedType:" + codecInfo.getName() + ",MIME=" + types[j]);
-                if (types[j].equalsIgnoreCase(mimeType)) {
-               		result = codecInfo;
-           			break LOOP;
-                }
-            }
-        }
-   		return result;
-    }
+	/**
+	 * Thread to write captured PCM data from the ring to the MediaCodec encoder
+	 */
+	private final class FeederThread extends Thread {
+		private final ByteBuffer mBatch = ByteBuffer.allocateDirect(mChunkBytes * MAX_CHUNKS_PER_BATCH);
+		private long mBatchPTSUs;
+		/**
+		 * set by #joinThreads/#awaitFeeder, this feeder must finish even if the encoder
+		 * already resumed next sequence
+		 */
+		private volatile boolean mRequestStop;
+		/**
+		 * feeder of previous sequence that did not finish in #awaitFeeder
+		 */
+		private final FeederThread mPrevious;
+
+		public FeederThread(final FeederThread previous) {
+			mPrevious = previous;
+		}
+
+		@Override
+		public final void run() {
+			if (mPrevious != null) {
+				// never consume the ring while previous feeder is alive
+				try {
+					mPrevious.join();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			resetGate();
+			try {
+				while (!mRequestStop && mIsRunning && isRecording()) {
+					final PcmRingBuffer.Slot slot = mPcmRing.take(FEED_WAIT_NS);
+					if (slot == null) continue;
+					try {
+						if (!passGate(slot.buffer, slot.length, slot.presentationTimeUs)) {
+							// batched data before the silence should be encoded with it's own pts
+							flush();
+							continue;
+						}
+						final int limit = getBatchLimit();
+						if (mBatch.position() + slot.length > limit) {
+							flush();
+						}
+						if (mBatch.position() == 0) {
+							// chunks are contiguous, so pts of the batch is pts of it's first chunk
+							mBatchPTSUs = slot.presentationTimeUs;
+						}
+						final ByteBuffer src = slot.buffer.duplicate();
+						src.position(0).limit(slot.length);
+						mBatch.put(src);
+						if (mBatch.position() >= limit) {
+							flush();
+						}
+					} finally {
+						mPcmRing.release();
+					}
+				}
+				flush();
+				frameAvailableSoon();
+			} catch (Exception e) {
+				Log.e(TAG, "FeederThread#run", e);
+			}
+			// discard remaining data, capturing thread may keep running while pausing
+			mPcmRing.clear();
+			if (DEBUG) Log.v(TAG, "FeederThread:finished,overrun=" + mPcmRing.getOverrunCount()
+				+ ",highWater=" + mPcmRing.getHighWaterMark() + ",avgBatch=" + getAverageBatchBytes());
+		}
+
+		/**
+		 * fill codec input buffer up to it's capacity with multiple of AAC frame,
+		 * capacity is unknown until the first input buffer is queued, so use one chunk until then
+		 */
+		private int getBatchLimit() {
+			final int capacity = getInputCapacity();
+			if (capacity < mChunkBytes) {
+				return mChunkBytes;
+			}
+			return Math.min(mBatch.capacity(), (capacity / mChunkBytes) * mChunkBytes);
+		}
+
+		/**
+		 * queue batched data into codec and request one drain for them
+		 */
+		private void flush() {
+			final int length = mBatch.position();
+			if (length == 0) return;
+			mBatch.flip();
+			encode(mBatch, length, mBatchPTSUs);
+			mBatch.clear();
+			mBatchCount++;
+			mBatchBytes += length;
+			frameAvailableSoon();
+		}
+	}
 
 }
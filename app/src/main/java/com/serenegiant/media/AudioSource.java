@@ -0,0 +1,73 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: AudioSource.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Interface to hide where PCM data comes from(internal mic, file and so on) from audio encoder.
+ * All methods are called on the capturing thread of AbstractTLMediaAudioEncoder.
+ * PCM data should be 16bit little endian(native order of Android devices) and interleaved.
+ */
+public interface AudioSource {
+	/**
+	 * @return sampling rate[Hz]
+	 */
+	public int getSampleRate();
+
+	/**
+	 * @return number of channels
+	 */
+	public int getChannelCount();
+
+	/**
+	 * start supplying PCM data, this is called on every resume
+	 * @throws IOException
+	 */
+	public void start() throws IOException;
+
+	/**
+	 * read PCM data into specific buffer. the encoder pulls data by calling this method in loop,
+	 * live source(ex. mic) blocks until requested size of data is available,
+	 * other sources may return immediately to supply data faster than real time.
+	 * data is written from position zero of the buffer and position/limit of buffer are not changed
+	 * like AudioRecord#read(ByteBuffer, int).
+	 * @param buffer direct buffer, this may be input buffer of codec
+	 * @param size maximum number of bytes to read
+	 * @return number of bytes read, negative value means end of stream or error
+	 */
+	public int read(ByteBuffer buffer, int size);
+
+	/**
+	 * stop supplying PCM data, this is called on every pause
+	 */
+	public void stop();
+
+	/**
+	 * release all related resources, this is called after #stop
+	 */
+	public void release();
+}
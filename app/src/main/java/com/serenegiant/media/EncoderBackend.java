@@ -0,0 +1,160 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: EncoderBackend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Interface to hide actual codec from TLMediaEncoder and it's inheritor.
+ * Method names and return values(index or MediaCodec.INFO_XXX) are same as MediaCodec
+ * so that the drain/encode loop of TLMediaEncoder can treat any implementation in the same way.
+ */
+public interface EncoderBackend {
+	/**
+	 * factory interface to query available codec and create EncoderBackend
+	 */
+	public interface Factory {
+		/**
+		 * select codec that can encode specific MIME type
+		 * @param mime_type
+		 * @param surface_input true if the codec need to accept input from Surface
+		 * @return name of selected codec, null if not found
+		 */
+		public String selectCodec(String mime_type, boolean surface_input);
+		/**
+		 * create EncoderBackend instance for specific MIME type
+		 * @param mime_type
+		 * @return
+		 * @throws IOException
+		 */
+		public EncoderBackend create(String mime_type) throws IOException;
+	}
+
+	/**
+	 * callback interface to push codec events to the encoder thread.
+	 * this is only used when backend is running on asynchronous mode.
+	 * these methods are called on the private thread of backend,
+	 * so you should not execute heavy work in them.
+	 */
+	public interface Callback {
+		/**
+		 * called when input buffer(s) are available
+		 * @param backend
+		 */
+		public void onInputAvailable(EncoderBackend backend);
+		/**
+		 * called when encoded data or output format change is available
+		 * @param backend
+		 */
+		public void onOutputAvailable(EncoderBackend backend);
+		/**
+		 * called when error occurred in codec
+		 * @param backend
+		 * @param e
+		 */
+		public void onError(EncoderBackend backend, Exception e);
+	}
+
+	/**
+	 * request asynchronous(callback driven) mode. should be called before #configure
+	 * @param callback
+	 * @return false if this backend does not support asynchronous mode,
+	 * 	in that case you should use polling with timeout to dequeue buffers
+	 */
+	public boolean setCallback(Callback callback);
+
+	/**
+	 * @return true if this backend is running on asynchronous mode
+	 */
+	public boolean isAsync();
+
+	/**
+	 * @param format
+	 * @param flags MediaCodec.CONFIGURE_FLAG_ENCODE
+	 * @throws IOException
+	 */
+	public void configure(MediaFormat format, int flags) throws IOException;
+
+	/**
+	 * get Surface for input, should be called between #configure and #start
+	 * @return
+	 */
+	public Surface createInputSurface();
+
+	public void start();
+
+	public void stop();
+
+	/**
+	 * discard all pending input/output data and make the codec ready to accept input again
+	 * without re-configuring, the codec keeps running state.
+	 */
+	public void flush();
+
+	/**
+	 * request the codec to encode next frame as sync(key) frame
+	 * @return false if the codec does not support this request
+	 */
+	public boolean requestSyncFrame();
+
+	public void release();
+
+	/**
+	 * @param timeoutUs
+	 * @return index of input buffer or MediaCodec.INFO_TRY_AGAIN_LATER
+	 */
+	public int dequeueInputBuffer(long timeoutUs);
+
+	public ByteBuffer getInputBuffer(int index);
+
+	public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+	/**
+	 * @param info
+	 * @param timeoutUs
+	 * @return index of output buffer or MediaCodec.INFO_XXX
+	 */
+	public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+	public ByteBuffer getOutputBuffer(int index);
+
+	public void releaseOutputBuffer(int index);
+
+	/**
+	 * get output format, should be called after MediaCodec.INFO_OUTPUT_FORMAT_CHANGED came
+	 * @return
+	 */
+	public MediaFormat getOutputFormat();
+
+	/**
+	 * send EOS, only available for Surface input
+	 */
+	public void signalEndOfInputStream();
+}
@@ -0,0 +1,154 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: EncoderExecutor.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small thread pool shared by TLMediaEncoder instances instead of one private thread per encoder.
+ * Each encoder handles at most #getRequestsPerStep requests per step and then is queued again
+ * at the tail of FIFO queue, so that busy encoder can not starve other encoders.
+ * Only drain requests run on these worker threads and they never wait for the codec.
+ * Lifecycle requests(prepare/resume/pause/reset/stop) may block for long time
+ * while configuring the codec or waiting remaining output/EOS until the deadline,
+ * so they are handed over to separate lifecycle threads that are created on demand.
+ * Idle worker threads are terminated after KEEP_ALIVE_SECONDS.
+ */
+public final class EncoderExecutor {
+	private static final String TAG = "EncoderExecutor";
+
+	public static final int DEFAULT_NUM_THREADS = 2;
+	public static final int DEFAULT_REQUESTS_PER_STEP = 4;
+	private static final long KEEP_ALIVE_SECONDS = 10;
+
+	private static EncoderExecutor sDefault;
+
+	/**
+	 * get process wide shared executor, this is created on first call
+	 * @return
+	 */
+	public static synchronized EncoderExecutor getDefault() {
+		if (sDefault == null) {
+			sDefault = new EncoderExecutor(DEFAULT_NUM_THREADS, DEFAULT_REQUESTS_PER_STEP);
+		}
+		return sDefault;
+	}
+
+	private final ThreadPoolExecutor mExecutor;
+	private final ThreadPoolExecutor mLifecycleExecutor;
+	private final int mRequestsPerStep;
+	private final AtomicInteger mStepCount = new AtomicInteger();
+	private final AtomicInteger mLifecycleStepCount = new AtomicInteger();
+
+	/**
+	 * Constructor
+	 * @param num_threads maximum number of worker threads
+	 * @param requests_per_step maximum number of requests that one encoder handles before yielding
+	 */
+	public EncoderExecutor(final int num_threads, final int requests_per_step) {
+		if ((num_threads <= 0) || (requests_per_step <= 0)) throw new IllegalArgumentException();
+		mRequestsPerStep = requests_per_step;
+		mExecutor = new ThreadPoolExecutor(num_threads, num_threads,
+			KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new WorkerFactory(TAG));
+		mExecutor.allowCoreThreadTimeOut(true);
+		mLifecycleExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+			KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new WorkerFactory(TAG + "-lifecycle"));
+	}
+
+	/**
+	 * @return maximum number of requests that one encoder handles on each step
+	 */
+	public int getRequestsPerStep() {
+		return mRequestsPerStep;
+	}
+
+	/**
+	 * @return total number of executed steps
+	 */
+	public int getStepCount() {
+		return mStepCount.get();
+	}
+
+	/**
+	 * @return total number of steps that were handed over to lifecycle threads
+	 */
+	public int getLifecycleStepCount() {
+		return mLifecycleStepCount.get();
+	}
+
+	/**
+	 * @return current number of worker threads
+	 */
+	public int getPoolSize() {
+		return mExecutor.getPoolSize();
+	}
+
+	/**
+	 * shutdown worker threads after executing already queued steps,
+	 * encoders that use this executor should be released before calling this method.
+	 */
+	public void shutdown() {
+		synchronized (EncoderExecutor.class) {
+			if (sDefault == this) sDefault = null;
+		}
+		mExecutor.shutdown();
+		mLifecycleExecutor.shutdown();
+	}
+
+	/*package*/void execute(final Runnable step) {
+		mStepCount.incrementAndGet();
+		mExecutor.execute(step);
+	}
+
+	/**
+	 * run step that may block on lifecycle thread, so that it does not delay steps of other encoders
+	 * @param step
+	 */
+	/*package*/void executeLifecycle(final Runnable step) {
+		mLifecycleStepCount.incrementAndGet();
+		mLifecycleExecutor.execute(step);
+	}
+
+	private static final class WorkerFactory implements ThreadFactory {
+		private final String mName;
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		private WorkerFactory(final String name) {
+			mName = name;
+		}
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(r, mName + "-" + mCount.incrementAndGet());
+		}
+	}
+}
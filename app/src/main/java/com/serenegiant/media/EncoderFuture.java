@@ -0,0 +1,230 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: EncoderFuture.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of asynchronous lifecycle request of TLMediaEncoder.
+ * This completes when the encoder reaches requested state or fails.
+ * Cancellation is not supported because requests that were already queued can not be withdrawn.
+ */
+public final class EncoderFuture implements Future<TLMediaEncoder> {
+	private static final String TAG = "EncoderFuture";
+
+	/**
+	 * callback interface to get notified when EncoderFuture completes
+	 */
+	public interface Callback {
+		/**
+		 * called only once when the future completes.
+		 * this is called on the thread that completed the future(usually encoder thread)
+		 * or on the caller thread of #addCallback if the future is already completed,
+		 * so you should not execute heavy task nor wait for encoder here.
+		 * @param future
+		 */
+		public void onComplete(EncoderFuture future);
+	}
+
+	private final Object mSync = new Object();
+	private final TLMediaEncoder mEncoder;
+	private final List<Callback> mCallbacks = new ArrayList<Callback>();
+	private boolean mDone;
+	private Exception mException;
+
+	/**
+	 * Constructor
+	 * @param encoder target encoder, can be null if this future is not for specific encoder
+	 */
+	/*package*/EncoderFuture(final TLMediaEncoder encoder) {
+		mEncoder = encoder;
+	}
+
+	/**
+	 * create future that completes when all of specific futures complete.
+	 * this fails with the first exception of futures if any of them fails.
+	 * @param futures
+	 * @return
+	 */
+	public static EncoderFuture allOf(final EncoderFuture... futures) {
+		final EncoderFuture result = new EncoderFuture(null);
+		if ((futures == null) || (futures.length == 0)) {
+			result.complete(null);
+			return result;
+		}
+		final Callback callback = new Callback() {
+			private int mRemain = futures.length;
+			private Exception mFirstException;
+
+			@Override
+			public void onComplete(final EncoderFuture future) {
+				final boolean last;
+				final Exception e;
+				synchronized (this) {
+					if ((mFirstException == null) && (future.getException() != null)) {
+						mFirstException = future.getException();
+					}
+					last = (--mRemain == 0);
+					e = mFirstException;
+				}
+				if (last) {
+					result.complete(e);
+				}
+			}
+		};
+		for (final EncoderFuture future: futures) {
+			future.addCallback(callback);
+		}
+		return result;
+	}
+
+	/**
+	 * get target encoder
+	 * @return null if this future is created by #allOf
+	 */
+	public TLMediaEncoder getEncoder() {
+		return mEncoder;
+	}
+
+	/**
+	 * add callback, if this future is already completed, the callback is called immediately
+	 * @param callback
+	 * @return this
+	 */
+	public EncoderFuture addCallback(final Callback callback) {
+		if (callback == null) throw new NullPointerException();
+		synchronized (mSync) {
+			if (!mDone) {
+				mCallbacks.add(callback);
+				return this;
+			}
+		}
+		callCallback(callback);
+		return this;
+	}
+
+	/**
+	 * @return exception if the request failed, null if succeeded or not completed yet
+	 */
+	public Exception getException() {
+		synchronized (mSync) {
+			return mException;
+		}
+	}
+
+	/**
+	 * @return true if the request is completed without exception
+	 */
+	public boolean isSuccess() {
+		synchronized (mSync) {
+			return mDone && (mException == null);
+		}
+	}
+
+	@Override
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		synchronized (mSync) {
+			return mDone;
+		}
+	}
+
+	@Override
+	public TLMediaEncoder get() throws InterruptedException, ExecutionException {
+		synchronized (mSync) {
+			for (; !mDone ;) {
+				mSync.wait();
+			}
+			return getResult();
+		}
+	}
+
+	@Override
+	public TLMediaEncoder get(final long timeout, final TimeUnit unit)
+		throws InterruptedException, ExecutionException, TimeoutException {
+
+		final long limitNs = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (mSync) {
+			for (; !mDone ;) {
+				final long remain_ns = limitNs - System.nanoTime();
+				if (remain_ns <= 0) throw new TimeoutException();
+				mSync.wait(remain_ns / 1000000L, (int)(remain_ns % 1000000L));
+			}
+			return getResult();
+		}
+	}
+
+	/**
+	 * complete this future, this is ignored if already completed
+	 * @param e null if succeeded
+	 * @return false if already completed
+	 */
+	/*package*/boolean complete(final Exception e) {
+		final Callback[] callbacks;
+		synchronized (mSync) {
+			if (mDone) return false;
+			mDone = true;
+			mException = e;
+			callbacks = mCallbacks.toArray(new Callback[mCallbacks.size()]);
+			mCallbacks.clear();
+			mSync.notifyAll();
+		}
+		for (final Callback callback: callbacks) {
+			callCallback(callback);
+		}
+		return true;
+	}
+
+	private TLMediaEncoder getResult() throws ExecutionException {
+		if (mException != null) {
+			throw new ExecutionException(mException);
+		}
+		return mEncoder;
+	}
+
+	private void callCallback(final Callback callback) {
+		try {
+			callback.onComplete(this);
+		} catch (final Exception e) {
+			Log.w(TAG, "callCallback:", e);
+		}
+	}
+}
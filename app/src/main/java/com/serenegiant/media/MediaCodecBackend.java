@@ -0,0 +1,471 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: MediaCodecBackend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EncoderBackend implementation using android.media.MediaCodec.
+ * On API >= 23, this class can run on asynchronous mode using MediaCodec.Callback
+ * and buffer indices that came from callbacks are queued until the encoder thread dequeues them,
+ * otherwise(or when no callback is set) this class just polls MediaCodec with timeout.
+ */
+public class MediaCodecBackend implements EncoderBackend {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "MediaCodecBackend";
+
+	/**
+	 * private thread to receive MediaCodec.Callback, shared with all instances
+	 */
+	private static HandlerThread sCallbackThread;
+	private static Handler sCallbackHandler;
+
+	/**
+	 * factory to select codec from MediaCodecList and create MediaCodecBackend
+	 */
+	public static final Factory FACTORY = new Factory() {
+		@Override
+		public String selectCodec(final String mime_type, final boolean surface_input) {
+			// scanning codec list is slow and the result never changes while running,
+			// so the result is cached and shared by all encoders
+			final String key = mime_type + (surface_input ? ":surface" : ":buffer");
+			synchronized (sSelectedCodecs) {
+				final String name = sSelectedCodecs.get(key);
+				if (name != null) return name;
+			}
+			final MediaCodecInfo info = surface_input
+				? selectVideoCodec(mime_type) : selectAudioCodec(mime_type);
+			final String name = info != null ? info.getName() : null;
+			if (name != null) {
+				synchronized (sSelectedCodecs) {
+					sSelectedCodecs.put(key, name);
+				}
+			}
+			return name;
+		}
+
+		@Override
+		public EncoderBackend create(final String mime_type) throws IOException {
+			return new MediaCodecBackend(mime_type);
+		}
+	};
+
+	/**
+	 * cache of selected codec names, key is MIME type + input type
+	 */
+	private static final Map<String, String> sSelectedCodecs = new HashMap<String, String>();
+
+	private final MediaCodec mMediaCodec;
+	private Callback mCallback;
+	private ByteBuffer[] encoderInputBuffers;
+	private ByteBuffer[] encoderOutputBuffers;
+	private final LinkedBlockingQueue<Integer> mInputIndices = new LinkedBlockingQueue<Integer>();
+	private final LinkedBlockingQueue<OutputEntry> mOutputEntries = new LinkedBlockingQueue<OutputEntry>();
+
+	/**
+	 * Constructor
+	 * @param mime_type
+	 * @throws IOException
+	 */
+	public MediaCodecBackend(final String mime_type) throws IOException {
+		mMediaCodec = MediaCodec.createEncoderByType(mime_type);
+	}
+
+	@Override
+	public boolean setCallback(final Callback callback) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+			// MediaCodec.setCallback with Handler is only available on API >= 23
+			mCallback = null;
+			return false;
+		}
+		mCallback = callback;
+		setCodecCallback(callback != null);
+		return true;
+	}
+
+	@Override
+	public boolean isAsync() {
+		return mCallback != null;
+	}
+
+	@Override
+	public void configure(final MediaFormat format, final int flags) throws IOException {
+		mMediaCodec.configure(format, null, null, flags);
+	}
+
+	@Override
+	public Surface createInputSurface() {
+		return mMediaCodec.createInputSurface();	// API >= 18
+	}
+
+	@Override
+	public void start() {
+		mInputIndices.clear();
+		mOutputEntries.clear();
+		mMediaCodec.start();
+		if (mCallback == null) {
+			encoderInputBuffers = mMediaCodec.getInputBuffers();
+			encoderOutputBuffers = mMediaCodec.getOutputBuffers();
+		}
+	}
+
+	@Override
+	public void stop() {
+		mMediaCodec.stop();
+		encoderInputBuffers = encoderOutputBuffers = null;
+		mInputIndices.clear();
+		mOutputEntries.clear();
+	}
+
+	@Override
+	public void flush() {
+		mMediaCodec.flush();
+		mInputIndices.clear();
+		mOutputEntries.clear();
+		if (mCallback != null) {
+			// on asynchronous mode, MediaCodec needs #start to resume after #flush
+			mMediaCodec.start();
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	@Override
+	public boolean requestSyncFrame() {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+			return false;
+		}
+		final Bundle params = new Bundle();
+		params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+		try {
+			mMediaCodec.setParameters(params);	// API >= 19
+		} catch (IllegalStateException e) {
+			if (DEBUG) Log.w(TAG, "requestSyncFrame:", e);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void release() {
+		mMediaCodec.release();
+		encoderInputBuffers = encoderOutputBuffers = null;
+		mInputIndices.clear();
+		mOutputEntries.clear();
+	}
+
+	@Override
+	public int dequeueInputBuffer(final long timeoutUs) {
+		if (mCallback == null) {
+			return mMediaCodec.dequeueInputBuffer(timeoutUs);
+		}
+		Integer index = null;
+		try {
+			index = timeoutUs > 0
+				? mInputIndices.poll(timeoutUs, TimeUnit.MICROSECONDS)
+				: mInputIndices.poll();
+		} catch (InterruptedException e) {
+			// ignore
+		}
+		return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+	}
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	@Override
+	public ByteBuffer getInputBuffer(final int index) {
+		return mCallback == null ? encoderInputBuffers[index] : mMediaCodec.getInputBuffer(index);
+	}
+
+	@Override
+	public void queueInputBuffer(final int index, final int offset, final int size,
+		final long presentationTimeUs, final int flags) {
+
+		mMediaCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+	}
+
+	@Override
+	public int dequeueOutputBuffer(final MediaCodec.BufferInfo info, final long timeoutUs) {
+		if (mCallback == null) {
+			final int result = mMediaCodec.dequeueOutputBuffer(info, timeoutUs);
+			if (result == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+				// this should not come when encoding
+				encoderOutputBuffers = mMediaCodec.getOutputBuffers();
+			}
+			return result;
+		}
+		OutputEntry entry = null;
+		try {
+			entry = timeoutUs > 0
+				? mOutputEntries.poll(timeoutUs, TimeUnit.MICROSECONDS)
+				: mOutputEntries.poll();
+		} catch (InterruptedException e) {
+			// ignore
+		}
+		if (entry == null) {
+			return MediaCodec.INFO_TRY_AGAIN_LATER;
+		}
+		if (entry.index >= 0) {
+			info.offset = entry.offset;
+			info.size = entry.size;
+			info.presentationTimeUs = entry.presentationTimeUs;
+			info.flags = entry.flags;
+		}
+		return entry.index;
+	}
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	@Override
+	public ByteBuffer getOutputBuffer(final int index) {
+		return mCallback == null ? encoderOutputBuffers[index] : mMediaCodec.getOutputBuffer(index);
+	}
+
+	@Override
+	public void releaseOutputBuffer(final int index) {
+		mMediaCodec.releaseOutputBuffer(index, false);
+	}
+
+	@Override
+	public MediaFormat getOutputFormat() {
+		return mMediaCodec.getOutputFormat();	// API >= 16
+	}
+
+	@Override
+	public void signalEndOfInputStream() {
+		mMediaCodec.signalEndOfInputStream();	// API >= 18
+	}
+
+//********************************************************************************
+//********************************************************************************
+	/**
+	 * holder of the values that came from MediaCodec.Callback#onOutputBufferAvailable
+	 * or MediaCodec.Callback#onOutputFormatChanged(index=MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)
+	 */
+	private static final class OutputEntry {
+		private final int index;
+		private int offset;
+		private int size;
+		private long presentationTimeUs;
+		private int flags;
+
+		private OutputEntry(final int index) {
+			this.index = index;
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.M)
+	private void setCodecCallback(final boolean enable) {
+		if (enable) {
+			// create callback here because MediaCodec.Callback does not exist on API < 21
+			mMediaCodec.setCallback(new CodecCallback(), getCallbackHandler());
+		} else {
+			mMediaCodec.setCallback(null);
+		}
+	}
+
+    /**
+     * select the first codec that match a specific MIME type
+     * @param mimeType
+     * @return
+     */
+	private static final MediaCodecInfo selectAudioCodec(final String mimeType) {
+    	if (DEBUG) Log.v(TAG, "selectAudioCodec:");
+
+    	MediaCodecInfo result = null;
+    	// get the list of available codecs
+        final int numCodecs = MediaCodecList.getCodecCount();
+LOOP:	for (int i = 0; i < numCodecs; i++) {
+        	final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+            if (!codecInfo.isEncoder()) {	// skip decoder
+                continue;
+            }
+            final String[] types = codecInfo.getSupportedTypes();
+            for (int j = 0; j < types.length; j++) {
+            	if (DEBUG) Log.i(TAG, "supportedType:" + codecInfo.getName() + ",MIME=" + types[j]);
+                if (types[j].equalsIgnoreCase(mimeType)) {
+               		result = codecInfo;
+           			break LOOP;
+                }
+            }
+        }
+   		return result;
+    }
+
+    /**
+     * select first encoder matched to specific MIME
+     * @param mimeType
+     * @return return null if not found
+     */
+    @SuppressWarnings("deprecation")
+	private static final MediaCodecInfo selectVideoCodec(final String mimeType) {
+    	if (DEBUG) Log.v(TAG, "selectVideoCodec:");
+
+    	// get the list of available codecs
+        final int numCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < numCodecs; i++) {
+        	final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+
+            if (!codecInfo.isEncoder()) {	// skipp decoder
+                continue;
+            }
+            // select first codec that match a specific MIME type and color format
+            final String[] types = codecInfo.getSupportedTypes();
+			for (String type : types) {
+				if (type.equalsIgnoreCase(mimeType)) {
+					if (DEBUG) Log.i(TAG, "codec:" + codecInfo.getName() + ",MIME=" + type);
+					int format = selectColorFormat(codecInfo, mimeType);
+					if (format > 0) {
+						return codecInfo;
+					}
+				}
+			}
+        }
+        return null;
+    }
+
+    /**
+     * select color format that the specific codec supports
+     * @return return 0 if not found
+     */
+    private static final int selectColorFormat(final MediaCodecInfo codecInfo, final String mimeType) {
+		if (DEBUG) Log.i(TAG, "selectColorFormat: ");
+    	int result = 0;
+    	final MediaCodecInfo.CodecCapabilities caps;
+    	try {
+    		Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
+    		caps = codecInfo.getCapabilitiesForType(mimeType);
+    	} finally {
+    		Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
+    	}
+        for (int colorFormat: caps.colorFormats) {
+            if (isRecognizedVideoFormat(colorFormat)) {
+           		result = colorFormat;
+                break;
+            }
+        }
+        if (result == 0)
+        	Log.e(TAG, "couldn't find a good color format for " + codecInfo.getName() + " / " + mimeType);
+        return result;
+    }
+
+	/**
+	 * color format values that this class supports(only COLOR_FormatSurface)
+	 */
+    private static int[] recognizedFormats;
+	static {
+		recognizedFormats = new int[] {
+//        	MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar,
+//        	MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
+//        	MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar,
+        	MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface,
+		};
+	}
+
+	/**
+	 * return whether specific color format can be used on this class
+	 * @param colorFormat
+	 * @return return true if this class supports specific color format
+	 */
+    private static final boolean isRecognizedVideoFormat(final int colorFormat) {
+		if (DEBUG) Log.i(TAG, "isRecognizedVideoFormat:colorFormat=" + colorFormat);
+    	final int n = recognizedFormats != null ? recognizedFormats.length : 0;
+    	for (int i = 0; i < n; i++) {
+    		if (recognizedFormats[i] == colorFormat) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+
+	private static synchronized Handler getCallbackHandler() {
+		if (sCallbackHandler == null) {
+			sCallbackThread = new HandlerThread(TAG);
+			sCallbackThread.start();
+			sCallbackHandler = new Handler(sCallbackThread.getLooper());
+		}
+		return sCallbackHandler;
+	}
+
+	@TargetApi(Build.VERSION_CODES.M)
+	private final class CodecCallback extends MediaCodec.Callback {
+		@Override
+		public void onInputBufferAvailable(final MediaCodec codec, final int index) {
+			mInputIndices.offer(index);
+			final Callback callback = mCallback;
+			if (callback != null) {
+				callback.onInputAvailable(MediaCodecBackend.this);
+			}
+		}
+
+		@Override
+		public void onOutputBufferAvailable(final MediaCodec codec,
+			final int index, final MediaCodec.BufferInfo info) {
+
+			final OutputEntry entry = new OutputEntry(index);
+			entry.offset = info.offset;
+			entry.size = info.size;
+			entry.presentationTimeUs = info.presentationTimeUs;
+			entry.flags = info.flags;
+			mOutputEntries.offer(entry);
+			final Callback callback = mCallback;
+			if (callback != null) {
+				callback.onOutputAvailable(MediaCodecBackend.this);
+			}
+		}
+
+		@Override
+		public void onError(final MediaCodec codec, final MediaCodec.CodecException e) {
+			if (DEBUG) Log.w(TAG, "onError:", e);
+			final Callback callback = mCallback;
+			if (callback != null) {
+				callback.onError(MediaCodecBackend.this, e);
+			}
+		}
+
+		@Override
+		public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+			mOutputEntries.offer(new OutputEntry(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED));
+			final Callback callback = mCallback;
+			if (callback != null) {
+				callback.onOutputAvailable(MediaCodecBackend.this);
+			}
+		}
+	}
+}
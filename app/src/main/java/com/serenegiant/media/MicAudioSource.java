@@ -0,0 +1,102 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: MicAudioSource.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * AudioSource to capture 16bit monaural PCM from internal mic with AudioRecord
+ */
+public class MicAudioSource implements AudioSource {
+	private static final int SAMPLES_PER_FRAME = 1024;	// AAC, samples/frame/channel
+	private static final int FRAMES_PER_BUFFER = 25; 	// AAC, frame/buffer/sec
+
+	private final int mSampleRate;
+	private AudioRecord mAudioRecord;
+
+	/**
+	 * Constructor
+	 * @param sample_rate
+	 */
+	public MicAudioSource(final int sample_rate) {
+		mSampleRate = sample_rate;
+	}
+
+	@Override
+	public int getSampleRate() {
+		return mSampleRate;
+	}
+
+	@Override
+	public int getChannelCount() {
+		return 1;
+	}
+
+	@Override
+	public void start() throws IOException {
+		if (mAudioRecord == null) {
+			final int min_buffer_size = AudioRecord.getMinBufferSize(
+					mSampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+			int buffer_size = SAMPLES_PER_FRAME * FRAMES_PER_BUFFER;
+			if (buffer_size < min_buffer_size)
+				buffer_size = ((min_buffer_size / SAMPLES_PER_FRAME) + 1) * SAMPLES_PER_FRAME * 2;
+
+			final AudioRecord audioRecord = new AudioRecord(
+				MediaRecorder.AudioSource.MIC, mSampleRate,
+				AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, buffer_size);
+			if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+				audioRecord.release();
+				throw new IOException("failed to initialize AudioRecord");
+			}
+			mAudioRecord = audioRecord;
+		}
+		mAudioRecord.startRecording();
+	}
+
+	@Override
+	public int read(final ByteBuffer buffer, final int size) {
+		return mAudioRecord.read(buffer, size);
+	}
+
+	@Override
+	public void stop() {
+		if (mAudioRecord != null) {
+			mAudioRecord.stop();
+		}
+	}
+
+	@Override
+	public void release() {
+		if (mAudioRecord != null) {
+			mAudioRecord.release();
+			mAudioRecord = null;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: PcmFileAudioSource.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * AudioSource to read 16bit PCM from raw PCM file(without any header) or WAV file.
+ * This does not depend on Android audio framework, so this can drive the audio encoder
+ * on JVM benchmark or emulator without mic.
+ * Reading position is kept across pause/resume.
+ */
+public class PcmFileAudioSource extends AbstractAudioSource {
+	private static final int WAVE_FORMAT_PCM = 1;
+	private static final int WAVE_FORMAT_EXTENSIBLE = 0xfffe;
+
+	private final File mFile;
+	private final long mDataOffset;
+	private final long mDataLength;
+	private final boolean mLoop;
+	private FileChannel mChannel;
+	private long mPosition;
+
+	/**
+	 * Constructor for raw PCM file
+	 * @param file raw PCM file
+	 * @param sample_rate
+	 * @param channel_count
+	 * @param loop true if read from the beginning of file again after reaching the end
+	 * @param realtime true if #read blocks to supply data at the speed of sampling rate
+	 */
+	public PcmFileAudioSource(final File file, final int sample_rate, final int channel_count,
+		final boolean loop, final boolean realtime) {
+
+		this(file, 0, -1, sample_rate, channel_count, loop, realtime);
+	}
+
+	/**
+	 * Constructor
+	 * @param file
+	 * @param data_offset offset of PCM data in the file
+	 * @param data_length length of PCM data, negative value means until the end of file
+	 * @param sample_rate
+	 * @param channel_count
+	 * @param loop
+	 * @param realtime
+	 */
+	protected PcmFileAudioSource(final File file, final long data_offset, final long data_length,
+		final int sample_rate, final int channel_count,
+		final boolean loop, final boolean realtime) {
+
+		super(sample_rate, channel_count, realtime);
+		mFile = file;
+		mDataOffset = data_offset;
+		mDataLength = data_length;
+		mLoop = loop;
+	}
+
+	/**
+	 * create AudioSource from 16bit PCM WAV file
+	 * @param file
+	 * @param loop true if read from the beginning of data again after reaching the end
+	 * @param realtime true if #read blocks to supply data at the speed of sampling rate
+	 * @return
+	 * @throws IOException the file is not WAV file or is not 16bit PCM
+	 */
+	public static PcmFileAudioSource fromWav(final File file, final boolean loop, final boolean realtime)
+		throws IOException {
+
+		final FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			final ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, header, 12);
+			if ((header.getInt(0) != 0x46464952)		// "RIFF"
+				|| (header.getInt(8) != 0x45564157)) {	// "WAVE"
+				throw new IOException("not WAV file:" + file);
+			}
+			int sample_rate = 0, channel_count = 0;
+			for ( ; ; ) {
+				// each chunk starts with 4 bytes id and 4 bytes size
+				readFully(channel, header, 8);
+				final int id = header.getInt(0);
+				final long size = header.getInt(4) & 0xffffffffL;
+				final long next = channel.position() + size + (size & 1);
+				if (id == 0x20746d66) {			// "fmt "
+					readFully(channel, header, 16);
+					final int format = header.getShort(0) & 0xffff;
+					channel_count = header.getShort(2);
+					sample_rate = header.getInt(4);
+					final int bits = header.getShort(14);
+					if (((format != WAVE_FORMAT_PCM) && (format != WAVE_FORMAT_EXTENSIBLE)) || (bits != 16)) {
+						throw new IOException("unsupported WAV format:format=" + format + ",bits=" + bits);
+					}
+				} else if (id == 0x61746164) {	// "data"
+					if (sample_rate <= 0) throw new IOException("fmt chunk not found:" + file);
+					final long offset = channel.position();
+					// size may be zero or wrong if the file was written by streaming
+					final long length = ((size == 0) || (offset + size > channel.size()))
+						? channel.size() - offset : size;
+					return new PcmFileAudioSource(file, offset, length,
+						sample_rate, channel_count, loop, realtime);
+				}
+				channel.position(next);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static void readFully(final FileChannel channel, final ByteBuffer buffer, final int size)
+		throws IOException {
+
+		buffer.clear();
+		buffer.limit(size);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) throw new IOException("unexpected end of file");
+		}
+	}
+
+	@Override
+	public void start() throws IOException {
+		super.start();
+		if (mChannel == null) {
+			mChannel = new FileInputStream(mFile).getChannel();
+			mPosition = 0;
+		}
+	}
+
+	@Override
+	protected int fill(final ByteBuffer buffer) {
+		final int start = buffer.position();
+		try {
+			final long length = mDataLength >= 0 ? mDataLength : mChannel.size() - mDataOffset;
+			while (buffer.hasRemaining()) {
+				if (mPosition >= length) {
+					if (!mLoop || (length <= 0)) break;
+					mPosition = 0;
+				}
+				final ByteBuffer dst = buffer.duplicate();
+				if (dst.remaining() > length - mPosition) {
+					dst.limit(dst.position() + (int)(length - mPosition));
+				}
+				final int n = mChannel.read(dst, mDataOffset + mPosition);
+				if (n < 0) {
+					// file was truncated, restart from the beginning on next call if loop is enabled
+					mPosition = length;
+					break;
+				}
+				mPosition += n;
+				buffer.position(dst.position());
+			}
+		} catch (final IOException e) {
+			return -1;
+		}
+		final int n = buffer.position() - start;
+		return n > 0 ? n : -1;
+	}
+
+	@Override
+	public void release() {
+		if (mChannel != null) {
+			try {
+				mChannel.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+			mChannel = null;
+		}
+	}
+}
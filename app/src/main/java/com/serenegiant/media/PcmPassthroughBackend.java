@@ -0,0 +1,282 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: PcmPassthroughBackend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EncoderBackend that does not encode, queued PCM data is returned as output as it is.
+ * This is used to store raw PCM into intermediate file while recording
+ * and encode it later in TLMediaMovieBuilder(deferred encoding).
+ * Input buffer itself is returned as output buffer, so the input buffer is not available
+ * until the output is released. The output format has MIME type "audio/raw"
+ * and keeps sample rate, channel count and bit rate of the format passed to #configure
+ * so that TLMediaMovieBuilder can configure actual encoder from it.
+ */
+public class PcmPassthroughBackend implements EncoderBackend {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "PcmPassthroughBackend";
+
+	/**
+	 * MIME type of output format
+	 */
+	public static final String MIME_TYPE = "audio/raw";
+	private static final int NUM_BUFFERS = 4;
+	private static final int DEFAULT_SAMPLE_RATE = 44100;
+	private static final int DEFAULT_BIT_RATE = 64000;
+
+	private final int mInputSize;
+	private final OutputEntry[] mEntries = new OutputEntry[NUM_BUFFERS];
+	private final OutputEntry mFormatChanged = new OutputEntry(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED);
+	private final LinkedBlockingQueue<Integer> mFreeInputs = new LinkedBlockingQueue<Integer>();
+	private final LinkedBlockingQueue<OutputEntry> mPendingOutputs = new LinkedBlockingQueue<OutputEntry>();
+	private Callback mCallback;
+	private MediaFormat mOutputFormat;
+	private ByteBuffer[] mBuffers;
+	private volatile long mTotalBytes;
+
+	/**
+	 * Constructor
+	 * @param input_size capacity of each input buffer in bytes
+	 */
+	public PcmPassthroughBackend(final int input_size) {
+		if (input_size <= 0) throw new IllegalArgumentException();
+		mInputSize = input_size;
+		for (int i = 0; i < NUM_BUFFERS; i++) {
+			mEntries[i] = new OutputEntry(i);
+		}
+	}
+
+	@Override
+	public boolean setCallback(final Callback callback) {
+		mCallback = callback;
+		return true;
+	}
+
+	@Override
+	public boolean isAsync() {
+		return mCallback != null;
+	}
+
+	@Override
+	public void configure(final MediaFormat format, final int flags) throws IOException {
+		if (DEBUG) Log.v(TAG, "configure:" + format);
+		final int sample_rate = getInteger(format, MediaFormat.KEY_SAMPLE_RATE, DEFAULT_SAMPLE_RATE);
+		final int channels = getInteger(format, MediaFormat.KEY_CHANNEL_COUNT, 1);
+		// same as MediaFormat#createAudioFormat, but this does not return null on JVM with android.jar stub
+		mOutputFormat = new MediaFormat();
+		mOutputFormat.setString(MediaFormat.KEY_MIME, MIME_TYPE);
+		mOutputFormat.setInteger(MediaFormat.KEY_SAMPLE_RATE, sample_rate);
+		mOutputFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, channels);
+		// keep target bit rate for the encoder in TLMediaMovieBuilder
+		mOutputFormat.setInteger(MediaFormat.KEY_BIT_RATE, getInteger(format, MediaFormat.KEY_BIT_RATE, DEFAULT_BIT_RATE));
+		mOutputFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mInputSize);
+		mBuffers = new ByteBuffer[NUM_BUFFERS];
+		for (int i = 0; i < NUM_BUFFERS; i++) {
+			mBuffers[i] = ByteBuffer.allocateDirect(mInputSize);
+		}
+	}
+
+	@Override
+	public Surface createInputSurface() {
+		throw new UnsupportedOperationException("PCM input only");
+	}
+
+	@Override
+	public void start() {
+		if (DEBUG) Log.v(TAG, "start:");
+		if (mBuffers == null)
+			throw new IllegalStateException("not configured");
+		offerOutput(mFormatChanged);
+		internalStart();
+	}
+
+	@Override
+	public void stop() {
+		if (DEBUG) Log.v(TAG, "stop:");
+		mFreeInputs.clear();
+		mPendingOutputs.clear();
+	}
+
+	@Override
+	public void flush() {
+		if (DEBUG) Log.v(TAG, "flush:");
+		mPendingOutputs.clear();
+		internalStart();
+	}
+
+	@Override
+	public boolean requestSyncFrame() {
+		// every PCM record is sync frame
+		return true;
+	}
+
+	@Override
+	public void release() {
+		stop();
+		mBuffers = null;
+		mCallback = null;
+	}
+
+	@Override
+	public int dequeueInputBuffer(final long timeoutUs) {
+		final Integer index = poll(mFreeInputs, timeoutUs);
+		if (index == null) {
+			return MediaCodec.INFO_TRY_AGAIN_LATER;
+		}
+		mBuffers[index].clear();
+		return index;
+	}
+
+	@Override
+	public ByteBuffer getInputBuffer(final int index) {
+		return mBuffers[index];
+	}
+
+	@Override
+	public void queueInputBuffer(final int index, final int offset, final int size,
+		final long presentationTimeUs, final int flags) {
+
+		final OutputEntry entry = mEntries[index];
+		entry.offset = offset;
+		entry.size = size;
+		entry.presentationTimeUs = presentationTimeUs;
+		entry.flags = (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) | MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+		mTotalBytes += size;
+		offerOutput(entry);
+	}
+
+	@Override
+	public int dequeueOutputBuffer(final MediaCodec.BufferInfo info, final long timeoutUs) {
+		final OutputEntry entry = poll(mPendingOutputs, timeoutUs);
+		if (entry == null) {
+			return MediaCodec.INFO_TRY_AGAIN_LATER;
+		}
+		if (entry.index >= 0) {
+			info.offset = entry.offset;
+			info.size = entry.size;
+			info.presentationTimeUs = entry.presentationTimeUs;
+			info.flags = entry.flags;
+			final ByteBuffer buffer = mBuffers[entry.index];
+			buffer.clear();
+			buffer.position(entry.offset);
+			buffer.limit(entry.offset + entry.size);
+		}
+		return entry.index;
+	}
+
+	@Override
+	public ByteBuffer getOutputBuffer(final int index) {
+		return mBuffers[index];
+	}
+
+	@Override
+	public void releaseOutputBuffer(final int index) {
+		mFreeInputs.offer(index);
+		final Callback callback = mCallback;
+		if (callback != null) {
+			callback.onInputAvailable(this);
+		}
+	}
+
+	@Override
+	public MediaFormat getOutputFormat() {
+		return mOutputFormat;
+	}
+
+	@Override
+	public void signalEndOfInputStream() {
+		throw new IllegalStateException("input is not from Surface");
+	}
+
+	/**
+	 * get total bytes of PCM data that passed through this backend
+	 * @return
+	 */
+	public long getTotalBytes() {
+		return mTotalBytes;
+	}
+
+//********************************************************************************
+//********************************************************************************
+	private static final class OutputEntry {
+		private final int index;
+		private int offset;
+		private int size;
+		private long presentationTimeUs;
+		private int flags;
+
+		private OutputEntry(final int index) {
+			this.index = index;
+		}
+	}
+
+	private static final int getInteger(final MediaFormat format, final String key, final int default_value) {
+		return (format != null) && format.containsKey(key) ? format.getInteger(key) : default_value;
+	}
+
+	private static final <T> T poll(final LinkedBlockingQueue<T> queue, final long timeoutUs) {
+		T result = null;
+		try {
+			if (timeoutUs < 0) {
+				result = queue.take();
+			} else if (timeoutUs > 0) {
+				result = queue.poll(timeoutUs, TimeUnit.MICROSECONDS);
+			} else {
+				result = queue.poll();
+			}
+		} catch (InterruptedException e) {
+			// ignore
+		}
+		return result;
+	}
+
+	private void internalStart() {
+		mFreeInputs.clear();
+		for (int i = 0; i < NUM_BUFFERS; i++) {
+			mFreeInputs.offer(i);
+		}
+		final Callback callback = mCallback;
+		if (callback != null) {
+			callback.onInputAvailable(this);
+		}
+	}
+
+	private void offerOutput(final OutputEntry entry) {
+		mPendingOutputs.offer(entry);
+		final Callback callback = mCallback;
+		if (callback != null) {
+			callback.onOutputAvailable(this);
+		}
+	}
+}
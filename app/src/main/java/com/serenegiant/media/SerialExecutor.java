@@ -0,0 +1,88 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: SerialExecutor.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Executor that runs tasks one by one in submitted order on another executor.
+ * Even if the underlying executor has multiple threads, tasks never overlap
+ * and each task sees all side effects of previous tasks.
+ */
+/*package*/final class SerialExecutor implements Executor {
+	private static final String TAG = "SerialExecutor";
+
+	private final Executor mExecutor;
+	private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+	private final Runnable mDrainTask = new Runnable() {
+		@Override
+		public void run() {
+			for ( ; ; ) {
+				final Runnable task = mTasks.poll();
+				if (task == null) break;
+				try {
+					task.run();
+				} catch (final RuntimeException e) {
+					Log.w(TAG, "run:", e);
+				}
+			}
+			mScheduled.set(false);
+			// task may be added after poll returned null but before clearing the flag
+			if (!mTasks.isEmpty()) {
+				schedule();
+			}
+		}
+	};
+
+	/*package*/SerialExecutor(final Executor executor) {
+		if (executor == null) throw new NullPointerException();
+		mExecutor = executor;
+	}
+
+	@Override
+	public void execute(final Runnable task) {
+		mTasks.offer(task);
+		schedule();
+	}
+
+	private void schedule() {
+		if (mScheduled.compareAndSet(false, true)) {
+			try {
+				mExecutor.execute(mDrainTask);
+			} catch (final RejectedExecutionException e) {
+				// underlying executor was shutdown, run remaining tasks on caller thread
+				Log.w(TAG, "schedule:executor rejected, run on caller thread");
+				mDrainTask.run();
+			}
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: SilenceGate.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Streaming noise gate for 16bit PCM to skip encoding of silent audio.
+ * RMS and peak level of each chunk are measured in one pass directly on the buffer(without copy)
+ * and also available as level meter. The gate opens as soon as the level reaches the threshold
+ * and closes after the level stayed below the threshold for hangover duration.
+ * #process should be called from only one thread, other methods are thread safe.
+ */
+public final class SilenceGate {
+	/**
+	 * compare RMS level of each chunk with the threshold
+	 */
+	public static final int MODE_RMS = 0;
+	/**
+	 * compare peak level of each chunk with the threshold
+	 */
+	public static final int MODE_PEAK = 1;
+
+	/**
+	 * level that is reported for digital silence[dBFS]
+	 */
+	public static final float MIN_LEVEL_DB = -120.0f;
+	public static final float DEFAULT_THRESHOLD_DB = -50.0f;
+	public static final long DEFAULT_HANGOVER_MS = 500;
+
+	private final int mSampleRate;
+	private final int mChannelCount;
+	private volatile int mMode = MODE_RMS;
+	private volatile float mThresholdDb = DEFAULT_THRESHOLD_DB;
+	private volatile long mHangoverUs = DEFAULT_HANGOVER_MS * 1000L;
+	// only accessed from processing thread
+	private boolean mOpen = true;
+	private long mBelowUs;
+	// level meter and statistics
+	private volatile float mRmsDb = MIN_LEVEL_DB;
+	private volatile float mPeakDb = MIN_LEVEL_DB;
+	private volatile boolean mIsOpen = true;
+	private volatile long mSuppressedChunks;
+	private volatile long mSuppressedUs;
+
+	/**
+	 * Constructor
+	 * @param sample_rate
+	 * @param channel_count
+	 */
+	public SilenceGate(final int sample_rate, final int channel_count) {
+		if ((sample_rate <= 0) || (channel_count <= 0)) throw new IllegalArgumentException();
+		mSampleRate = sample_rate;
+		mChannelCount = channel_count;
+	}
+
+	/**
+	 * set threshold of the gate
+	 * @param mode MODE_RMS or MODE_PEAK
+	 * @param threshold_db threshold level[dBFS], chunk below this level is treated as silence
+	 */
+	public void setThreshold(final int mode, final float threshold_db) {
+		if ((mode != MODE_RMS) && (mode != MODE_PEAK)) throw new IllegalArgumentException("unknown mode:" + mode);
+		mMode = mode;
+		mThresholdDb = threshold_db;
+	}
+
+	/**
+	 * set how long the gate keeps open after the level fell below the threshold,
+	 * this prevents cutting off quiet tail of sound and chattering of the gate
+	 * @param hangover_ms
+	 */
+	public void setHangover(final long hangover_ms) {
+		mHangoverUs = Math.max(0, hangover_ms) * 1000L;
+	}
+
+	/**
+	 * measure level of the chunk and update state of the gate
+	 * @param buffer 16bit PCM data in native order from position zero, position/limit are not changed
+	 * @param length number of bytes
+	 * @return true if the chunk should be encoded, false if it is silence
+	 */
+	public boolean process(final ByteBuffer buffer, final int length) {
+		final ByteBuffer dup = buffer.duplicate();
+		dup.clear();
+		final ShortBuffer samples = dup.order(ByteOrder.nativeOrder()).asShortBuffer();
+		final int n = Math.min(length / 2, samples.capacity());
+		long sum = 0;
+		int peak = 0;
+		for (int i = 0; i < n; i++) {
+			final int v = samples.get(i);
+			sum += v * v;
+			final int a = v < 0 ? -v : v;
+			if (a > peak) peak = a;
+		}
+		final float rms_db = toDb(n > 0 ? Math.sqrt((double)sum / n) : 0);
+		final float peak_db = toDb(peak);
+		mRmsDb = rms_db;
+		mPeakDb = peak_db;
+		final long duration_us = (n / mChannelCount) * 1000000L / mSampleRate;
+		if ((mMode == MODE_PEAK ? peak_db : rms_db) >= mThresholdDb) {
+			mOpen = true;
+			mBelowUs = 0;
+		} else if (mOpen) {
+			mBelowUs += duration_us;
+			if (mBelowUs > mHangoverUs) {
+				mOpen = false;
+			}
+		}
+		mIsOpen = mOpen;
+		if (!mOpen) {
+			mSuppressedChunks++;
+			mSuppressedUs += duration_us;
+		}
+		return mOpen;
+	}
+
+	/**
+	 * reset state of the gate to open, statistics are kept
+	 */
+	public void reset() {
+		mOpen = mIsOpen = true;
+		mBelowUs = 0;
+	}
+
+	/**
+	 * @return RMS level of the last chunk[dBFS]
+	 */
+	public float getRmsDb() {
+		return mRmsDb;
+	}
+
+	/**
+	 * @return peak level of the last chunk[dBFS]
+	 */
+	public float getPeakDb() {
+		return mPeakDb;
+	}
+
+	public boolean isOpen() {
+		return mIsOpen;
+	}
+
+	/**
+	 * @return number of chunks that were treated as silence
+	 */
+	public long getSuppressedCount() {
+		return mSuppressedChunks;
+	}
+
+	/**
+	 * @return total duration of chunks that were treated as silence[micro seconds]
+	 */
+	public long getSuppressedDurationUs() {
+		return mSuppressedUs;
+	}
+
+	private static float toDb(final double level) {
+		if (level <= 0) return MIN_LEVEL_DB;
+		return Math.max(MIN_LEVEL_DB, (float)(20 * Math.log10(level / 32768.0)));
+	}
+}
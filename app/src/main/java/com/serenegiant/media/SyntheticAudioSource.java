@@ -0,0 +1,107 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: SyntheticAudioSource.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * AudioSource that generates sine tone, white noise or silence as 16bit PCM.
+ * This does not depend on Android audio framework, so this can drive the audio encoder
+ * on JVM benchmark or emulator without mic. Generated data is deterministic for same parameters.
+ */
+public class SyntheticAudioSource extends AbstractAudioSource {
+	public static final int TYPE_SILENCE = 0;
+	public static final int TYPE_TONE = 1;
+	public static final int TYPE_NOISE = 2;
+
+	private final int mType;
+	private final double mFrequency;
+	private final int mAmplitude;
+	private final Random mRandom = new Random(0);
+	/**
+	 * number of generated samples per channel, used as phase of the tone
+	 */
+	private long mSamples;
+	private short[] mWork;
+
+	/**
+	 * Constructor
+	 * @param type TYPE_SILENCE, TYPE_TONE or TYPE_NOISE
+	 * @param sample_rate
+	 * @param channel_count
+	 * @param frequency frequency of the tone[Hz], ignored except TYPE_TONE
+	 * @param amplitude peak amplitude, 0.0-1.0 of full scale
+	 * @param realtime true if #read blocks to supply data at the speed of sampling rate
+	 */
+	public SyntheticAudioSource(final int type, final int sample_rate, final int channel_count,
+		final double frequency, final float amplitude, final boolean realtime) {
+
+		super(sample_rate, channel_count, realtime);
+		if ((type < TYPE_SILENCE) || (type > TYPE_NOISE)) throw new IllegalArgumentException("unknown type:" + type);
+		mType = type;
+		mFrequency = frequency;
+		mAmplitude = (int)(Math.max(0.0f, Math.min(1.0f, amplitude)) * Short.MAX_VALUE);
+	}
+
+	@Override
+	protected int fill(final ByteBuffer buffer) {
+		final int channels = getChannelCount();
+		final int n = buffer.remaining() / 2;
+		if ((mWork == null) || (mWork.length < n)) {
+			mWork = new short[n];
+		}
+		final short[] work = mWork;
+		switch (mType) {
+		case TYPE_TONE:
+		{
+			final double step = 2 * Math.PI * mFrequency / getSampleRate();
+			for (int i = 0; i < n; i += channels) {
+				final short v = (short)(mAmplitude * Math.sin(step * mSamples++));
+				for (int ch = 0; ch < channels; ch++) {
+					work[i + ch] = v;
+				}
+			}
+			break;
+		}
+		case TYPE_NOISE:
+			for (int i = 0; i < n; i++) {
+				work[i] = (short)(mRandom.nextInt(2 * mAmplitude + 1) - mAmplitude);
+			}
+			mSamples += n / channels;
+			break;
+		default:
+			for (int i = 0; i < n; i++) {
+				work[i] = 0;
+			}
+			mSamples += n / channels;
+			break;
+		}
+		buffer.order(ByteOrder.nativeOrder()).asShortBuffer().put(work, 0, n);
+		buffer.position(buffer.position() + n * 2);
+		return n * 2;
+	}
+}
@@ -0,0 +1,646 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: SyntheticEncoderBackend.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deterministic software stand-in of EncoderBackend that does not depend on actual codec.
+ * This emits encoded frames with specific size, frame rate and key frame pattern
+ * so that the state machine, drain loop and intermediate file format of TLMediaEncoder
+ * can be exercised and profiled without device(ex. on JVM with android.jar stub).
+ * When Surface input is requested, frames are generated on private thread at the frame rate
+ * (or as fast as they are drained if realtime mode is disabled),
+ * otherwise frames are generated from the data that queued with #queueInputBuffer.
+ * Like actual codec, input buffer is returned only after all of it's frames are generated,
+ * so #dequeueInputBuffer just times out while all output buffers are not released.
+ * No method of this class blocks without timeout.
+ * This class never calls MediaCodec.BufferInfo#set and Surface is not created,
+ * #createInputSurface just returns null.
+ */
+public class SyntheticEncoderBackend implements EncoderBackend {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "SyntheticEncoderBackend";
+
+	private static final int NUM_BUFFERS = 4;
+	private static final int DEFAULT_INPUT_SIZE = 8192;
+	private static final int DEFAULT_BIT_RATE = 1000000;	// 1Mbps
+	private static final int DEFAULT_FRAME_RATE = 25;
+	private static final int DEFAULT_IFRAME_INTERVALS = 2;	// [sec]
+	private static final int DEFAULT_SAMPLE_RATE = 44100;
+	private static final int DEFAULT_KEY_FRAME_SCALE = 4;
+	private static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+	/**
+	 * factory to create SyntheticEncoderBackend with same settings
+	 */
+	public static class Factory implements EncoderBackend.Factory {
+		private int mBitRate = -1;
+		private int mFrameRate = -1;
+		private int mKeyFrameInterval = -1;
+		private int mKeyFrameScale = DEFAULT_KEY_FRAME_SCALE;
+		private boolean mRealtime = true;
+		private long mOutputDelayMs;
+
+		/**
+		 * @param bit_rate negative value means using the value of MediaFormat,
+		 * 	note this value is applied to all backends(audio and video) that this factory creates
+		 */
+		public void setBitRate(final int bit_rate) {
+			mBitRate = bit_rate;
+		}
+
+		/**
+		 * @param frame_rate negative value means using the value of MediaFormat
+		 */
+		public void setFrameRate(final int frame_rate) {
+			mFrameRate = frame_rate;
+		}
+
+		/**
+		 * @param interval number of frames between key frames, negative value means using the value of MediaFormat
+		 * @param scale size of key frame relative to other frames
+		 */
+		public void setKeyFrame(final int interval, final int scale) {
+			mKeyFrameInterval = interval;
+			mKeyFrameScale = scale > 0 ? scale : 1;
+		}
+
+		/**
+		 * @param realtime if false, frames for Surface input are generated as fast as they are drained
+		 */
+		public void setRealtime(final boolean realtime) {
+			mRealtime = realtime;
+		}
+
+		/**
+		 * emulate latency of actual codec
+		 * @param delay_ms time from generating each frame until it becomes available as output
+		 */
+		public void setOutputDelay(final long delay_ms) {
+			mOutputDelayMs = Math.max(delay_ms, 0);
+		}
+
+		@Override
+		public String selectCodec(final String mime_type, final boolean surface_input) {
+			return TAG;
+		}
+
+		@Override
+		public EncoderBackend create(final String mime_type) throws IOException {
+			final SyntheticEncoderBackend result = new SyntheticEncoderBackend(mime_type);
+			result.mBitRate = mBitRate;
+			result.mFrameRate = mFrameRate;
+			result.mKeyFrameInterval = mKeyFrameInterval;
+			result.mKeyFrameScale = mKeyFrameScale;
+			result.mRealtime = mRealtime;
+			result.mOutputDelayNs = mOutputDelayMs * 1000000L;
+			return result;
+		}
+	}
+
+	private final String mMimeType;
+	private final boolean mIsAudio;
+	private int mBitRate = -1;
+	private int mFrameRate = -1;
+	private int mKeyFrameInterval = -1;
+	private int mKeyFrameScale = DEFAULT_KEY_FRAME_SCALE;
+	private boolean mRealtime = true;
+	private long mOutputDelayNs;
+
+	private Callback mCallback;
+	private MediaFormat mFormat;
+	private boolean mSurfaceInput;
+	private long mFrameIntervalUs;
+	private int mKeyFrameIntervalFrames;
+	private int mFrameSize;
+	private int mKeyFrameSize;
+	private int mInputBytesPerFrame;
+	private ByteBuffer[] mInputBuffers;
+	private ByteBuffer[] mOutputBuffers;
+	private final OutputEntry[] mEntries = new OutputEntry[NUM_BUFFERS];
+	private final OutputEntry mFormatChanged = new OutputEntry(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED);
+	private final LinkedBlockingQueue<Integer> mFreeInputs = new LinkedBlockingQueue<Integer>();
+	private final LinkedBlockingQueue<Integer> mFreeOutputs = new LinkedBlockingQueue<Integer>();
+	private final LinkedBlockingQueue<OutputEntry> mPendingOutputs = new LinkedBlockingQueue<OutputEntry>();
+	/**
+	 * input buffers that were queued but some of their frames are not generated yet
+	 * because there were no free output buffer, guarded by mInputSync
+	 */
+	private final Object mInputSync = new Object();
+	private final InputEntry[] mInputEntries = new InputEntry[NUM_BUFFERS];
+	private final ArrayDeque<InputEntry> mQueuedInputs = new ArrayDeque<InputEntry>();
+	private volatile boolean mIsRunning;
+	private volatile boolean mRequestEOS;
+	private volatile boolean mRequestSyncFrame;
+	private Thread mGeneratorThread;
+	/**
+	 * timer to notify output that becomes available after mOutputDelayNs on asynchronous mode
+	 */
+	private Timer mDelayTimer;
+	/**
+	 * output that was taken from mPendingOutputs but is not available yet, only accessed from draining thread
+	 */
+	private OutputEntry mHeadOutput;
+	private int mFrameNumber;
+	private int mInputBytes;
+	private volatile long mTotalBytes;
+
+	/**
+	 * Constructor
+	 * @param mime_type "audio/XXX" is treated as audio, otherwise treated as video
+	 */
+	public SyntheticEncoderBackend(final String mime_type) {
+		mMimeType = mime_type;
+		mIsAudio = (mime_type != null) && mime_type.startsWith("audio/");
+		for (int i = 0; i < NUM_BUFFERS; i++) {
+			mEntries[i] = new OutputEntry(i);
+			mInputEntries[i] = new InputEntry(i);
+		}
+	}
+
+	@Override
+	public boolean setCallback(final Callback callback) {
+		mCallback = callback;
+		return true;
+	}
+
+	@Override
+	public boolean isAsync() {
+		return mCallback != null;
+	}
+
+	@Override
+	public void configure(final MediaFormat format, final int flags) throws IOException {
+		if (DEBUG) Log.v(TAG, "configure:" + mMimeType);
+		mFormat = format;
+		final int bit_rate = mBitRate > 0 ? mBitRate : getInteger(format, MediaFormat.KEY_BIT_RATE, DEFAULT_BIT_RATE);
+		int key_frame_interval = 1;
+		int key_frame_scale = 1;
+		if (mIsAudio) {
+			// AAC encoder makes one frame from 1024 samples/channel of 16bit PCM
+			final int sample_rate = getInteger(format, MediaFormat.KEY_SAMPLE_RATE, DEFAULT_SAMPLE_RATE);
+			final int channels = getInteger(format, MediaFormat.KEY_CHANNEL_COUNT, 1);
+			mFrameIntervalUs = AAC_SAMPLES_PER_FRAME * 1000000L / sample_rate;
+			mInputBytesPerFrame = AAC_SAMPLES_PER_FRAME * 2 * channels;
+		} else {
+			final int frame_rate = mFrameRate > 0 ? mFrameRate : getInteger(format, MediaFormat.KEY_FRAME_RATE, DEFAULT_FRAME_RATE);
+			mFrameIntervalUs = 1000000L / frame_rate;
+			mInputBytesPerFrame = 0;	// one frame for each input
+			key_frame_interval = mKeyFrameInterval > 0 ? mKeyFrameInterval
+				: getInteger(format, MediaFormat.KEY_I_FRAME_INTERVAL, DEFAULT_IFRAME_INTERVALS) * frame_rate;
+			key_frame_scale = mKeyFrameScale;
+		}
+		if (key_frame_interval < 1) key_frame_interval = 1;
+		mKeyFrameIntervalFrames = key_frame_interval;
+		// adjust frame size so that average bit rate equals to the requested bit rate
+		final long average = bit_rate / 8L * mFrameIntervalUs / 1000000L;
+		mFrameSize = (int)Math.max(1, average * key_frame_interval / (key_frame_scale + key_frame_interval - 1));
+		mKeyFrameSize = mFrameSize * key_frame_scale;
+		final int input_size = getInteger(format, MediaFormat.KEY_MAX_INPUT_SIZE, DEFAULT_INPUT_SIZE);
+		mInputBuffers = new ByteBuffer[NUM_BUFFERS];
+		mOutputBuffers = new ByteBuffer[NUM_BUFFERS];
+		// fill deterministic pattern only once here,
+		// frame number is written at the top of each frame when it is generated
+		final byte[] pattern = new byte[mKeyFrameSize];
+		for (int i = 0; i < pattern.length; i++) {
+			pattern[i] = (byte)i;
+		}
+		for (int i = 0; i < NUM_BUFFERS; i++) {
+			mInputBuffers[i] = ByteBuffer.allocateDirect(input_size);
+			mOutputBuffers[i] = ByteBuffer.allocateDirect(mKeyFrameSize);
+			mOutputBuffers[i].put(pattern);
+			mOutputBuffers[i].clear();
+		}
+		if (DEBUG) Log.v(TAG, "configure:frameSize=" + mFrameSize + ",keyFrameSize=" + mKeyFrameSize
+			+ ",keyFrameInterval=" + mKeyFrameIntervalFrames + ",intervalUs=" + mFrameIntervalUs);
+	}
+
+	@Override
+	public Surface createInputSurface() {
+		mSurfaceInput = true;
+		return null;
+	}
+
+	@Override
+	public void start() {
+		if (DEBUG) Log.v(TAG, "start:");
+		if (mOutputBuffers == null)
+			throw new IllegalStateException("not configured");
+		mFrameNumber = 0;
+		offerOutput(mFormatChanged);
+		internalStart();
+	}
+
+	@Override
+	public void stop() {
+		if (DEBUG) Log.v(TAG, "stop:");
+		internalStop();
+	}
+
+	@Override
+	public void flush() {
+		if (DEBUG) Log.v(TAG, "flush:");
+		internalStop();
+		internalStart();
+	}
+
+	@Override
+	public boolean requestSyncFrame() {
+		mRequestSyncFrame = true;
+		return true;
+	}
+
+	@Override
+	public void release() {
+		if (mIsRunning) {
+			stop();
+		}
+		mInputBuffers = mOutputBuffers = null;
+		mCallback = null;
+	}
+
+	@Override
+	public int dequeueInputBuffer(final long timeoutUs) {
+		if (mSurfaceInput)
+			throw new IllegalStateException("input is from Surface");
+		final Integer index = poll(mFreeInputs, timeoutUs);
+		if (index == null) return MediaCodec.INFO_TRY_AGAIN_LATER;
+		synchronized (mInputSync) {
+			mInputEntries[index].dequeued = true;
+		}
+		return index;
+	}
+
+	@Override
+	public ByteBuffer getInputBuffer(final int index) {
+		return mInputBuffers[index];
+	}
+
+	@Override
+	public void queueInputBuffer(final int index, final int offset, final int size,
+		final long presentationTimeUs, final int flags) {
+
+		if (mSurfaceInput)
+			throw new IllegalStateException("input is from Surface");
+		final boolean returned;
+		synchronized (mInputSync) {
+			if (!mIsRunning) return;	// stopped or flushed, just discard
+			final InputEntry entry = mInputEntries[index];
+			// same as MediaCodec, input buffer that the client does not own can not be queued
+			if (!entry.dequeued)
+				throw new IllegalStateException("input buffer is not dequeued:index=" + index);
+			entry.dequeued = false;
+			entry.presentationTimeUs = presentationTimeUs;
+			entry.eos = (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+			if (mInputBytesPerFrame > 0) {
+				// generate frames when enough data is accumulated
+				mInputBytes += size;
+				entry.frames = mInputBytes / mInputBytesPerFrame;
+				mInputBytes -= entry.frames * mInputBytesPerFrame;
+			} else {
+				entry.frames = size > 0 ? 1 : 0;
+			}
+			mQueuedInputs.offer(entry);
+			returned = generateQueuedFrames();
+		}
+		notifyInputAvailable(returned);
+	}
+
+	@Override
+	public int dequeueOutputBuffer(final MediaCodec.BufferInfo info, final long timeoutUs) {
+		final long startNs = System.nanoTime();
+		final OutputEntry entry = mHeadOutput != null ? mHeadOutput : poll(mPendingOutputs, timeoutUs);
+		mHeadOutput = null;
+		if (entry == null) {
+			return MediaCodec.INFO_TRY_AGAIN_LATER;
+		}
+		long waitNs = entry.readyNs - System.nanoTime();
+		if (waitNs > 0) {
+			// frame is still in the codec, wait for it within the timeout
+			if (timeoutUs >= 0) {
+				waitNs = Math.min(waitNs, startNs + timeoutUs * 1000L - System.nanoTime());
+			}
+			if (waitNs > 0) {
+				try {
+					Thread.sleep(waitNs / 1000000L, (int)(waitNs % 1000000L));
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			}
+			if (entry.readyNs - System.nanoTime() > 0) {
+				mHeadOutput = entry;
+				return MediaCodec.INFO_TRY_AGAIN_LATER;
+			}
+		}
+		if (entry.index >= 0) {
+			info.offset = 0;
+			info.size = entry.size;
+			info.presentationTimeUs = entry.presentationTimeUs;
+			info.flags = entry.flags;
+		}
+		return entry.index;
+	}
+
+	@Override
+	public ByteBuffer getOutputBuffer(final int index) {
+		return mOutputBuffers[index];
+	}
+
+	@Override
+	public void releaseOutputBuffer(final int index) {
+		mFreeOutputs.offer(index);
+		if (!mSurfaceInput) {
+			// generate frames that were waiting for free output buffer
+			final boolean returned;
+			synchronized (mInputSync) {
+				returned = mIsRunning && generateQueuedFrames();
+			}
+			notifyInputAvailable(returned);
+		}
+	}
+
+	@Override
+	public MediaFormat getOutputFormat() {
+		return mFormat;
+	}
+
+	@Override
+	public void signalEndOfInputStream() {
+		if (!mSurfaceInput)
+			throw new IllegalStateException("input is not from Surface");
+		mRequestEOS = true;
+	}
+
+	/**
+	 * get number of generated frames since #start
+	 * @return
+	 */
+	public int getFrameCount() {
+		return mFrameNumber;
+	}
+
+	/**
+	 * get total bytes of generated frames
+	 * @return
+	 */
+	public long getTotalBytes() {
+		return mTotalBytes;
+	}
+
+//********************************************************************************
+//********************************************************************************
+	private static final class InputEntry {
+		private final int index;
+		private int frames;
+		private long presentationTimeUs;
+		private boolean eos;
+		/**
+		 * true while the client owns this buffer, guarded by mInputSync
+		 */
+		private boolean dequeued;
+
+		private InputEntry(final int index) {
+			this.index = index;
+		}
+	}
+
+	private static final class OutputEntry {
+		private final int index;
+		private long readyNs;
+		private int size;
+		private long presentationTimeUs;
+		private int flags;
+
+		private OutputEntry(final int index) {
+			this.index = index;
+		}
+	}
+
+	private static final int getInteger(final MediaFormat format, final String key, final int default_value) {
+		return (format != null) && format.containsKey(key) ? format.getInteger(key) : default_value;
+	}
+
+	private static final <T> T poll(final LinkedBlockingQueue<T> queue, final long timeoutUs) {
+		T result = null;
+		try {
+			if (timeoutUs < 0) {
+				result = queue.take();
+			} else if (timeoutUs > 0) {
+				result = queue.poll(timeoutUs, TimeUnit.MICROSECONDS);
+			} else {
+				result = queue.poll();
+			}
+		} catch (InterruptedException e) {
+			// ignore
+		}
+		return result;
+	}
+
+	private void internalStart() {
+		synchronized (mInputSync) {
+			mFreeInputs.clear();
+			mFreeOutputs.clear();
+			mQueuedInputs.clear();
+			for (int i = 0; i < NUM_BUFFERS; i++) {
+				// flushing returns all input buffers to the codec
+				mInputEntries[i].dequeued = false;
+				mFreeInputs.offer(i);
+				mFreeOutputs.offer(i);
+			}
+			mInputBytes = 0;
+			mRequestEOS = false;
+			mHeadOutput = null;
+			if ((mOutputDelayNs > 0) && (mCallback != null)) {
+				mDelayTimer = new Timer(TAG, true);
+			}
+			mIsRunning = true;
+		}
+		if (mSurfaceInput) {
+			mGeneratorThread = new Thread(mGeneratorTask, TAG);
+			mGeneratorThread.start();
+		} else {
+			final Callback callback = mCallback;
+			if (callback != null) {
+				callback.onInputAvailable(this);
+			}
+		}
+	}
+
+	private void internalStop() {
+		mIsRunning = false;
+		final Thread thread = mGeneratorThread;
+		mGeneratorThread = null;
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				// ignore
+			}
+		}
+		// queueInputBuffer/releaseOutputBuffer never touch the queues after mIsRunning became false
+		synchronized (mInputSync) {
+			mFreeInputs.clear();
+			mFreeOutputs.clear();
+			mQueuedInputs.clear();
+			mPendingOutputs.clear();
+			mHeadOutput = null;
+			if (mDelayTimer != null) {
+				mDelayTimer.cancel();
+				mDelayTimer = null;
+			}
+		}
+	}
+
+	private void offerOutput(final OutputEntry entry) {
+		entry.readyNs = (entry.index >= 0) && (mOutputDelayNs > 0) ? System.nanoTime() + mOutputDelayNs : 0;
+		mPendingOutputs.offer(entry);
+		final Callback callback = mCallback;
+		if (callback != null) {
+			if ((entry.readyNs != 0) && (mDelayTimer != null)) {
+				// notify when the output actually becomes available
+				mDelayTimer.schedule(new TimerTask() {
+					@Override
+					public void run() {
+						if (mIsRunning) {
+							callback.onOutputAvailable(SyntheticEncoderBackend.this);
+						}
+					}
+				}, mOutputDelayNs / 1000000L);
+			} else {
+				callback.onOutputAvailable(this);
+			}
+		}
+	}
+
+	private void notifyInputAvailable(final boolean returned) {
+		final Callback callback = mCallback;
+		if (returned && (callback != null)) {
+			callback.onInputAvailable(this);
+		}
+	}
+
+	/**
+	 * generate frames(and EOS) of queued input buffers in order as far as free output buffers are available
+	 * and return input buffers whose frames were all generated. this should be called while holding mInputSync
+	 * @return true if any input buffer was returned
+	 */
+	private boolean generateQueuedFrames() {
+		boolean result = false;
+		for (InputEntry entry = mQueuedInputs.peek(); entry != null; entry = mQueuedInputs.peek()) {
+			for (; entry.frames > 0; entry.frames--) {
+				if (!generateFrame(entry.presentationTimeUs, false, 0)) {
+					return result;
+				}
+			}
+			if (entry.eos) {
+				if (!generateFrame(entry.presentationTimeUs, true, 0)) {
+					return result;
+				}
+				entry.eos = false;
+			}
+			mQueuedInputs.poll();
+			mFreeInputs.offer(entry.index);
+			result = true;
+		}
+		return result;
+	}
+
+	/**
+	 * generate one frame(or EOS)
+	 * @param presentationTimeUs
+	 * @param eos
+	 * @param timeoutUs maximum waiting time for free output buffer
+	 * @return false if there was no free output buffer within timeoutUs
+	 */
+	private boolean generateFrame(final long presentationTimeUs, final boolean eos, final long timeoutUs) {
+		final Integer index = poll(mFreeOutputs, timeoutUs);
+		if (index == null) {
+			return false;
+		}
+		final OutputEntry entry = mEntries[index];
+		entry.presentationTimeUs = presentationTimeUs;
+		if (eos) {
+			entry.size = 0;
+			entry.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+		} else {
+			final boolean is_key_frame = mRequestSyncFrame || ((mFrameNumber % mKeyFrameIntervalFrames) == 0);
+			mRequestSyncFrame = false;
+			entry.size = is_key_frame ? mKeyFrameSize : mFrameSize;
+			entry.flags = is_key_frame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+			final ByteBuffer buffer = mOutputBuffers[index];
+			buffer.clear();
+			if (entry.size >= 4) {
+				buffer.putInt(0, mFrameNumber);
+			}
+			buffer.limit(entry.size);
+			mFrameNumber++;
+			mTotalBytes += entry.size;
+		}
+		offerOutput(entry);
+		return true;
+	}
+
+	/**
+	 * generate frames for Surface input
+	 */
+	private final Runnable mGeneratorTask = new Runnable() {
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "generator:started");
+			final long startNs = System.nanoTime();
+			try {
+				for (int n = 0; mIsRunning; n++) {
+					if (mRealtime) {
+						final long waitNs = startNs + n * mFrameIntervalUs * 1000L - System.nanoTime();
+						if (waitNs > 0) {
+							Thread.sleep(waitNs / 1000000L, (int)(waitNs % 1000000L));
+						}
+					}
+					final boolean eos = mRequestEOS;
+					// stall like actual codec while all output buffers are not released
+					for (; mIsRunning && !generateFrame(n * mFrameIntervalUs, eos, mFrameIntervalUs) ; ) {
+					}
+					if (eos) break;
+				}
+			} catch (InterruptedException e) {
+				// ignore
+			}
+			if (DEBUG) Log.v(TAG, "generator:finished");
+		}
+	};
+}
@@ -25,22 +25,16 @@ package com.serenegiant.media;
 */
 
 import android.content.Context;
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
-import android.util.Log;
-
-import java.nio.ByteBuffer;
 
 /**
- * Encoder class to encode audio data with AAC encoder and save into intermediate files
+ * Encoder class to encode audio data with AAC encoder and save into intermediate files.
+ * Audio data is captured from internal mic unless other AudioSource is specified.
  */
 public final class TLMediaAudioEncoder extends AbstractTLMediaAudioEncoder {
 	private static final boolean DEBUG = false;
 	private static final String TAG = "TLMediaAudioEncoder";
 
-    private static final int SAMPLES_PER_FRAME = 1024;	// AAC, bytes/frame/channel
-	private static final int FRAMES_PER_BUFFER = 25; 	// AAC, frame/buffer/sec
+	private final AudioSource mSource;
 
 	/**
 	 * Constructor(this class only support monaural audio source)
@@ -50,6 +44,7 @@ public final class TLMediaAudioEncoder extends AbstractTLMediaAudioEncoder {
 	 */
 	public TLMediaAudioEncoder(final Context context, final String base_path, final MediaEncoderListener listener) {
 		super(context, base_path, listener, DEFAULT_SAMPLE_RATE, DEFAULT_BIT_RATE);
+		mSource = null;
 	}
 
     /**
@@ -63,51 +58,41 @@ public final class TLMediaAudioEncoder extends AbstractTLMediaAudioEncoder {
 	public TLMediaAudioEncoder(final Context context, final String base_path, final MediaEncoderListener listener,
 							   final int sample_rate, final int bit_rate) {
 		super(context, base_path, listener, sample_rate, bit_rate);
+		mSource = null;
 	}
 
-	@Override
-	protected void recordingLoop() {
-		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
-		try {
-			final int min_buffer_size = AudioRecord.getMinBufferSize(
-					mSampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
-			int buffer_size = SAMPLES_PER_FRAME * FRAMES_PER_BUFFER;
-			if (buffer_size < min_buffer_size)
-				buffer_size = ((min_buffer_size / SAMPLES_PER_FRAME) + 1) * SAMPLES_PER_FRAME * 2;
+    /**
+	 * Constructor(this class only support monaural audio source)
+	 * @param context
+	 * @param base_path
+	 * @param listener
+	 * @param executor shared executor to run this encoder, if null, this encoder creates private thread
+     */
+	public TLMediaAudioEncoder(final Context context, final String base_path, final MediaEncoderListener listener,
+							   final EncoderExecutor executor) {
+		super(context, base_path, listener, DEFAULT_SAMPLE_RATE, DEFAULT_BIT_RATE, executor);
+		mSource = null;
+	}
 
-			final AudioRecord audioRecord = new AudioRecord(
-				MediaRecorder.AudioSource.MIC, mSampleRate,
-				AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, buffer_size);
-			try {
-				if ((audioRecord.getState() == AudioRecord.STATE_INITIALIZED) && (mIsRunning)) {
-					if (DEBUG) Log.v(TAG, "AudioThread:start_from_encoder audio recording");
-					final ByteBuffer buf = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME);
-					int readBytes;
-					audioRecord.startRecording();
-					try {
-						while (mIsRunning && isRecording()) {
-							// read audio data from internal mic
-							buf.clear();
-							readBytes = audioRecord.read(buf, SAMPLES_PER_FRAME);
-							if (readBytes > 0) {
-								// set audio data to encoder
-								encode(buf, readBytes, getPTSUs());
-								frameAvailableSoon();
-							}
-						}
-						frameAvailableSoon();
-					} finally {
-						audioRecord.stop();
-					}
-				}
-			} finally {
-				audioRecord.release();
-			}
-		} catch (Exception e) {
-			Log.e(TAG, "AudioThread#run", e);
-		} finally {
-			android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_DEFAULT);
-		}
+	/**
+	 * Constructor to encode audio data from specific AudioSource(ex. file or synthetic source)
+	 * @param context
+	 * @param base_path
+	 * @param listener
+	 * @param source sampling rate and channel count(1 or 2) of encoder are same as this source.
+	 * 		this is released when this encoder is released.
+	 * @param bit_rate
+	 * @param executor shared executor to run this encoder, if null, this encoder creates private thread
+	 */
+	public TLMediaAudioEncoder(final Context context, final String base_path, final MediaEncoderListener listener,
+							   final AudioSource source, final int bit_rate, final EncoderExecutor executor) {
+		super(context, base_path, listener, source.getSampleRate(), source.getChannelCount(), bit_rate, executor);
+		mSource = source;
+	}
+
+	@Override
+	protected AudioSource createAudioSource() {
+		return mSource != null ? mSource : new MicAudioSource(mSampleRate);
 	}
 
 }
@@ -31,6 +31,8 @@ import android.os.Environment;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.serenegiant.utils.LatencyStats;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -45,8 +47,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * abstract class to audio/video frames into intermediate file
@@ -58,6 +70,44 @@ public abstract class TLMediaEncoder {
 	private final String TAG = getClass().getSimpleName();
 
 	protected static final int TIMEOUT_USEC = 10000;	// 10[msec]   
+	private static final boolean DEFAULT_ASYNC_DRAIN = true;
+	/**
+	 * default maximum duration for sending EOS/draining remaining data on stopping
+	 */
+	public static final long DEFAULT_STOP_TIMEOUT_MS = 1000;
+	/**
+	 * maximum duration for waiting output of the frames requested by #resume(int) and EOS on pausing/resetting
+	 */
+	private static final long PAUSE_DRAIN_TIMEOUT_MS = 500;
+
+	/**
+	 * listener is called directly on the encoder thread(default)
+	 */
+	public static final int DISPATCH_INLINE = 0;
+	/**
+	 * listener is called on private dispatcher thread of each encoder
+	 */
+	public static final int DISPATCH_DEDICATED = 1;
+	/**
+	 * listener is called on the executor that was set by #setListenerExecutor
+	 */
+	public static final int DISPATCH_EXECUTOR = 2;
+	private static final long SLOW_LISTENER_NS = 5000000L;	// 5[msec]
+
+	/**
+	 * when encoder falls behind, input waits for free input buffer until the deadline
+	 * and is dropped if the deadline passed(default)
+	 */
+	public static final int BACKPRESSURE_BLOCK = 0;
+	/**
+	 * when encoder falls behind, older pending input is dropped and newest one is kept
+	 */
+	public static final int BACKPRESSURE_DROP_OLDEST = 1;
+	/**
+	 * when encoder falls behind, new input is dropped immediately
+	 */
+	public static final int BACKPRESSURE_DROP_NEWEST = 2;
+	public static final long DEFAULT_MAX_BLOCK_MS = 100;
 
 	private static final int STATE_RELEASE = 0;
 	private static final int STATE_INITIALIZED = 1;
@@ -68,12 +118,29 @@ public abstract class TLMediaEncoder {
 	private static final int STATE_RESUMING = 6;
 	private static final int STATE_RUNNING = 7;
 
+	/**
+	 * allowed state transitions, bit mask of next states for each current state.
+	 * transition to STATE_INITIALIZED(error/reset) and STATE_RELEASE is allowed from any state.
+	 */
+	private static final int[] TRANSITIONS = {
+		/* STATE_RELEASE */		(1 << STATE_INITIALIZED),
+		/* STATE_INITIALIZED */	(1 << STATE_PREPARING),
+		/* STATE_PREPARING */	(1 << STATE_PREPARED),
+		/* STATE_PREPARED */	(1 << STATE_RESUMING) | (1 << STATE_PAUSING),
+		/* STATE_PAUSING */		(1 << STATE_PAUSED),
+		/* STATE_PAUSED */		(1 << STATE_RESUMING),
+		/* STATE_RESUMING */	(1 << STATE_RUNNING),
+		/* STATE_RUNNING */		(1 << STATE_PAUSING),
+	};
+	private static final int ALWAYS_ALLOWED = (1 << STATE_INITIALIZED) | (1 << STATE_RELEASE);
+
 	private static final int REQUEST_NON = 0;
 	private static final int REQUEST_PREPARE = 1;
 	private static final int REQUEST_RESUME = 2;
 	private static final int REQUEST_STOP = 3;
 	private static final int REQUEST_PAUSE = 4;
 	private static final int REQUEST_DRAIN = 5;
+	private static final int REQUEST_RESET = 6;
 
 	static final int TYPE_VIDEO = 0;
 	static final int TYPE_AUDIO = 1;
@@ -107,21 +174,209 @@ public abstract class TLMediaEncoder {
 	private final LinkedBlockingDeque<Integer> mRequestQueue = new LinkedBlockingDeque<Integer>();
     protected volatile boolean mIsRunning;
     private boolean mIsEOS;
-    private MediaCodec mMediaCodec;				// API >= 16(Android4.1.2)
+    private volatile EncoderBackend mCodec;
 	private MediaFormat mConfigFormat;
-	private ByteBuffer[] encoderOutputBuffers;
-	private ByteBuffer[] encoderInputBuffers;
     private MediaCodec.BufferInfo mBufferInfo;		// API >= 16(Android4.1.2)
+	private boolean mAsyncDrain = DEFAULT_ASYNC_DRAIN;
+	private EncoderBackend.Factory mBackendFactory = MediaCodecBackend.FACTORY;
+	private volatile boolean mKeepCodecOnPause;
+	/**
+	 * time spent for each drain(including waiting for output in polling mode)
+	 */
+	private final LatencyStats mDrainStats = new LatencyStats("drain");
+	/**
+	 * number of drains that did not get any encoded data
+	 */
+	private volatile long mEmptyDrainCount;
+	/**
+	 * capacity of codec input buffer, zero until the first input buffer is dequeued
+	 */
+	private volatile int mInputCapacity;
+	/**
+	 * index of input buffer that was obtained by #obtainInputBuffer, only accessed from capturing thread
+	 */
+	private int mObtainedInputIndex = -1;
+	/**
+	 * value of mInputGeneration when the input buffer was obtained, only accessed from capturing thread
+	 */
+	private int mObtainedGeneration;
+	/**
+	 * lock to access codec input from the thread calling #encode/#obtainInputBuffer.
+	 * the encoder thread holds this while it stops accepting input,
+	 * so the codec is never flushed or released while input buffer is dequeued and not queued yet
+	 */
+	private final Object mInputSync = new Object();
+	/**
+	 * incremented each time input stops being accepted, guarded by mInputSync.
+	 * input buffer obtained on older generation was flushed or released with the codec
+	 */
+	private int mInputGeneration;
+	/**
+	 * gap of input that was marked by #markInputGap and not written yet, guarded by mGapSync
+	 */
+	private final Object mGapSync = new Object();
+	private volatile boolean mHasInputGap;
+	private long mGapPTSUs, mGapUs;
+	/**
+	 * time from #resume call to the first encoded frame of the sequence
+	 */
+	private final LatencyStats mResumeLatencyStats = new LatencyStats("resume-to-first-frame");
+	/**
+	 * time spent for configuring/starting codec and opening intermediate file on each resuming
+	 */
+	private final LatencyStats mResumeSetupStats = new LatencyStats("resume-setup");
+	/**
+	 * difference between successive intervals of output presentationTimeUs in each sequence
+	 */
+	private final LatencyStats mPTSJitterStats = new LatencyStats("pts-jitter");
+	/**
+	 * number of output frames whose presentationTimeUs did not increase and was adjusted
+	 */
+	private volatile long mPTSReorderCount;
+	private long mPrevPTSIntervalUs = -1;
+	private volatile long mResumeRequestNs;
+	/**
+	 * shared executor that runs this encoder, null if this encoder has private thread
+	 */
+	private final EncoderExecutor mExecutor;
+	/**
+	 * true while step of this encoder is queued/running on shared executor
+	 */
+	private final AtomicBoolean mScheduled = new AtomicBoolean();
+	/**
+	 * true while REQUEST_DRAIN is queued and not handled yet
+	 */
+	private final AtomicBoolean mDrainRequested = new AtomicBoolean();
+	private volatile long mScheduledNs;
+	/**
+	 * request that should be handled on next step, only accessed from step on shared executor
+	 */
+	private int mCarryRequest = REQUEST_NON;
+	/**
+	 * time from queueing step to start running it on shared executor
+	 */
+	private final LatencyStats mDispatchStats = new LatencyStats("dispatch");
+	/**
+	 * time spent for each step on shared executor
+	 */
+	private final LatencyStats mStepStats = new LatencyStats("step");
+	/**
+	 * futures of asynchronous lifecycle requests that wait for specific state, guarded by mSync
+	 */
+	private final List<PendingFuture> mPendingFutures = new ArrayList<PendingFuture>();
+	/**
+	 * true while stopping was requested and not handled yet, mStopDeadlineNs is valid only while this is true
+	 */
+	private volatile boolean mStopRequested;
+	/**
+	 * deadline of stopping in System#nanoTime base
+	 */
+	private volatile long mStopDeadlineNs;
+	/**
+	 * true if waiting for EOS/remaining data was aborted by the deadline of stopping
+	 */
+	private volatile boolean mStopForced;
 	private final MediaEncoderListener mListener;
+	private volatile int mListenerDispatchMode = DISPATCH_INLINE;
+	/**
+	 * serial executor to call listener, null on DISPATCH_INLINE
+	 */
+	private volatile Executor mListenerExecutor;
+	/**
+	 * private dispatcher thread on DISPATCH_DEDICATED, guarded by mSync
+	 */
+	private ExecutorService mDedicatedDispatcher;
+	/**
+	 * time from calling callOnXXX to start calling listener
+	 */
+	private final LatencyStats mListenerDispatchStats = new LatencyStats("listener-dispatch");
+	/**
+	 * time spent in each listener call
+	 */
+	private final LatencyStats mListenerCallStats = new LatencyStats("listener-call");
+	private volatile int mBackpressurePolicy = BACKPRESSURE_BLOCK;
+	private volatile long mMaxBlockUs = DEFAULT_MAX_BLOCK_MS * 1000L;
+	/**
+	 * number of input frames that were dropped by backpressure policy
+	 */
+	private final AtomicLong mDroppedFrames = new AtomicLong();
+	/**
+	 * time spent for waiting free input buffer of codec
+	 */
+	private final LatencyStats mInputBlockedStats = new LatencyStats("input-blocked");
+	/**
+	 * data that could not be queued on BACKPRESSURE_DROP_OLDEST, guarded by mInputSync
+	 */
+	private ByteBuffer mHoldBuffer;
+	private int mHoldLength;
+	private long mHoldPTSUs;
 
-	private final File mBaseDir;
+	/**
+	 * parent directory of intermediate directories
+	 */
+	private final File mMoviesDir;
+	private volatile File mBaseDir;
+	/**
+	 * intermediate directory for next session that is applied on handling REQUEST_RESET
+	 */
+	private volatile File mNextBaseDir;
+	/**
+	 * output format of the codec, this is kept to write it into next session if the codec is kept
+	 */
+	private MediaFormat mOutputFormat;
+	/**
+	 * whether format was already written into intermediate file of current session
+	 */
+	private boolean mFormatWritten;
 	private final int mType;
 	private Exception mCurrentException;
-	private int mState = STATE_RELEASE;
+	/**
+	 * current state, this is read without locking and updated only by #setState
+	 */
+	private final AtomicInteger mState = new AtomicInteger(STATE_RELEASE);
+	/**
+	 * number of retries of compare-and-set on mState/mInputFrames
+	 */
+	private final AtomicLong mContentionCount = new AtomicLong();
+	/**
+	 * number of state transitions that were rejected by the transition table
+	 */
+	private final AtomicLong mRejectedTransitionCount = new AtomicLong();
 	private DataOutputStream mCurrentOutputStream;
 	private int mSequence;
-	private int mNumFrames = -1;
+	private volatile int mNumFrames = -1;
 	private int mFrameCounts;
+	/**
+	 * number of input frames accepted by #frameAvailableSoon since last resuming
+	 */
+	private final AtomicInteger mInputFrames = new AtomicInteger();
+	/**
+	 * true while resume request is queued but not handled yet, guarded by mSync
+	 */
+	private boolean mResumePending;
+	/**
+	 * total number of frames that were written more than requested by #resume(int)
+	 */
+	private volatile int mOvershootFrames;
+	/**
+	 * total number of frames that were requested by #resume(int) and accepted as input
+	 * but did not come out from the codec until pausing
+	 */
+	private volatile int mUndershootFrames;
+	/**
+	 * true while waiting output/EOS on pausing/resetting/stopping
+	 */
+	private volatile boolean mDrainWait;
+	/**
+	 * deadline of waiting output/EOS on pausing/resetting in System#nanoTime base,
+	 * valid only while mDrainWait is true, stopping uses mStopDeadlineNs instead if it was requested by #stopAsync
+	 */
+	private volatile long mDrainDeadlineNs;
+	/**
+	 * true while input data is accepted, this is kept on pausing until the codec is flushed or EOS is sent
+	 * so that data of the frame that was accepted by #frameAvailableSoon just before pausing is not refused
+	 */
+	private volatile boolean mAcceptInput;
 
     /**
      * constructor
@@ -129,20 +384,33 @@ public abstract class TLMediaEncoder {
      * @param listener
      */
     public TLMediaEncoder(final Context context, final String movie_name, final int type, final MediaEncoderListener listener) {
+		this(context, movie_name, type, listener, null);
+	}
+
+    /**
+     * constructor
+     * @param movie_name this values is used as a directory name for intermediate files
+     * @param listener
+     * @param executor shared executor to run this encoder, if null, this encoder creates private thread
+     */
+    public TLMediaEncoder(final Context context, final String movie_name, final int type,
+		final MediaEncoderListener listener, final EncoderExecutor executor) {
+
 		if (DEBUG) Log.v(TAG, "TLMediaEncoder");
     	if (TextUtils.isEmpty(movie_name)) throw new IllegalArgumentException("movie_name should not be null");
-		mBaseDir = new File(context.getExternalFilesDir(Environment.DIRECTORY_MOVIES), movie_name);
+		mMoviesDir = context.getExternalFilesDir(Environment.DIRECTORY_MOVIES);
+		mBaseDir = new File(mMoviesDir, movie_name);
 		mBaseDir.mkdirs();
 		mType = type;
 		mListener = listener;
 		mBufferInfo = new MediaCodec.BufferInfo();
-		new Thread(mEncoderTask, getClass().getSimpleName()).start();
-		synchronized (mSync) {
-			try {
-				mSync.wait();
-			} catch (InterruptedException e) {
-				// ignore
-			}
+		mExecutor = executor;
+		// requests are just queued until private thread/step on shared executor handles them,
+		// so we need not wait for starting private thread here
+		mIsRunning = true;
+		setState(STATE_INITIALIZED, null);
+		if (executor == null) {
+			new Thread(mEncoderTask, getClass().getSimpleName()).start();
 		}
 	}
 
@@ -152,11 +420,170 @@ public abstract class TLMediaEncoder {
 	 */
 	public final void prepare() throws Exception {
 		if (DEBUG) Log.v(TAG, "prepare");
+		try {
+			prepareAsync().get();
+		} catch (final ExecutionException e) {
+			throw (Exception)e.getCause();
+		}
+	}
+
+	/**
+	 * reset this encoder to initialized state for next recording session
+	 * into another intermediate directory.
+	 * @param movie_name this values is used as a directory name for intermediate files
+	 * @throws Exception
+	 */
+	public final void reset(final String movie_name) throws Exception {
+		try {
+			resetAsync(movie_name).get();
+		} catch (final ExecutionException e) {
+			throw (Exception)e.getCause();
+		}
+	}
+
+	/**
+	 * request resetting this encoder to initialized state without blocking caller thread.
+	 * current sequence is finished and it's intermediate file is closed like pausing,
+	 * but the encoder thread, prepared format(and selected codec), render resources
+	 * and the codec itself if #setKeepCodecOnPause is enabled are kept for next session.
+	 * you can call #prepare/#prepareAsync again after the returned future completed.
+	 * @param movie_name this values is used as a directory name for intermediate files
+	 * @return future that completes when this encoder becomes initialized state
+	 */
+	public final EncoderFuture resetAsync(final String movie_name) {
+		if (DEBUG) Log.v(TAG, "resetAsync:" + movie_name);
+    	if (TextUtils.isEmpty(movie_name)) throw new IllegalArgumentException("movie_name should not be null");
+		final EncoderFuture future = new EncoderFuture(this);
+		synchronized (mSync) {
+			if (!mIsRunning) {
+				future.complete(new IllegalStateException("already released"));
+				return future;
+			}
+			mNextBaseDir = new File(mMoviesDir, movie_name);
+			addPendingFuture(future, STATE_INITIALIZED);
+			clearDrainRequest();
+			setRequest(REQUEST_RESET);
+		}
+		return future;
+	}
+
+	/**
+	 * get current intermediate directory
+	 * @return
+	 */
+	public File getBaseDir() {
+		return mBaseDir;
+	}
+
+	/**
+	 * request preparing encoder without blocking caller thread.
+	 * @return future that completes when this encoder becomes prepared state or fails
+	 */
+	public final EncoderFuture prepareAsync() {
+		if (DEBUG) Log.v(TAG, "prepareAsync");
+		final EncoderFuture future = new EncoderFuture(this);
 		synchronized (mSync) {
-			if (!mIsRunning || (mState != STATE_INITIALIZED))
-				throw new IllegalStateException("not ready/already released:" + mState);
+			final int state = mState.get();
+			if (!mIsRunning || (state != STATE_INITIALIZED)) {
+				future.complete(new IllegalStateException("not ready/already released:" + state));
+				return future;
+			}
+			addPendingFuture(future, STATE_PREPARED);
+			setRequest(REQUEST_PREPARE);
 		}
-		setRequestAndWait(REQUEST_PREPARE);
+		return future;
+	}
+
+	/**
+	 * request starting encoder without blocking caller thread.
+	 * @param pauseAfterStarted
+	 * @return future that completes when this encoder becomes paused/running state or fails
+	 */
+	public EncoderFuture startAsync(final boolean pauseAfterStarted) {
+		final EncoderFuture future = new EncoderFuture(this);
+		try {
+			synchronized (mSync) {
+				start(pauseAfterStarted);
+				addPendingFuture(future, pauseAfterStarted ? STATE_PAUSED : STATE_RUNNING);
+			}
+		} catch (final Exception e) {
+			future.complete(e);
+		}
+		return future;
+	}
+
+	/**
+	 * request resuming encoder without blocking caller thread.
+	 * @param num_frames if num_frames is negative value, automatic pausing is disabled.
+	 * @return future that completes when this encoder becomes running state or fails
+	 */
+	public EncoderFuture resumeAsync(final int num_frames) {
+		final EncoderFuture future = new EncoderFuture(this);
+		try {
+			synchronized (mSync) {
+				resume(num_frames);
+				addPendingFuture(future, STATE_RUNNING);
+			}
+		} catch (final Exception e) {
+			future.complete(e);
+		}
+		return future;
+	}
+
+	/**
+	 * request pausing encoder without blocking caller thread.
+	 * @return future that completes when this encoder becomes paused state or fails
+	 */
+	public EncoderFuture pauseAsync() {
+		final EncoderFuture future = new EncoderFuture(this);
+		try {
+			synchronized (mSync) {
+				if (!mIsRunning)
+					throw new IllegalStateException("already released:" + mState.get());
+				if ((mState.get() == STATE_PAUSED) && !mResumePending) {
+					future.complete(null);
+				} else {
+					addPendingFuture(future, STATE_PAUSED);
+					pause();
+				}
+			}
+		} catch (final Exception e) {
+			future.complete(e);
+		}
+		return future;
+	}
+
+	/**
+	 * request stopping and releasing encoder without blocking caller thread.
+	 * @return future that completes after this encoder released all related objects
+	 */
+	public EncoderFuture stopAsync() {
+		return stopAsync(DEFAULT_STOP_TIMEOUT_MS);
+	}
+
+	/**
+	 * request stopping and releasing encoder without blocking caller thread.
+	 * if sending EOS and draining remaining data does not finish until the deadline,
+	 * they are aborted and the codec is released forcibly, see #isStopForced
+	 * @param timeout_ms maximum duration for sending EOS and draining[milliseconds]
+	 * @return future that completes after this encoder released all related objects
+	 */
+	public EncoderFuture stopAsync(final long timeout_ms) {
+		if (DEBUG) Log.v(TAG, "stopAsync:timeout=" + timeout_ms);
+		final EncoderFuture future = new EncoderFuture(this);
+		synchronized (mSync) {
+			if (!mIsRunning) {
+				future.complete(null);
+				return future;
+			}
+			// deadline also aborts waiting EOS/output of pausing/resetting that is in progress
+			mStopDeadlineNs = System.nanoTime() + Math.max(timeout_ms, 0) * 1000000L;
+			mStopRequested = true;
+			addPendingFuture(future, STATE_RELEASE);
+			clearDrainRequest();
+			setRequestFirst(REQUEST_STOP);
+		}
+		return future;
 	}
 
 	/**
@@ -174,8 +601,9 @@ public abstract class TLMediaEncoder {
 	public void start(boolean pauseAfterStarted) throws IOException {
 		if (DEBUG) Log.v(TAG, "start");
 		synchronized (mSync) {
-			if (!mIsRunning || ((mState != STATE_PREPARING) && (mState != STATE_PREPARED)))
-				throw new IllegalStateException("not prepare/already released:" + mState);
+			final int state = mState.get();
+			if (!mIsRunning || ((state != STATE_PREPARING) && (state != STATE_PREPARED)))
+				throw new IllegalStateException("not prepare/already released:" + state);
 			if (pauseAfterStarted) {
 				setRequest(REQUEST_PAUSE);
 			} else {
@@ -187,19 +615,28 @@ public abstract class TLMediaEncoder {
 	/**
 	 * request stop encoder
 	 * current implementation is same as release and don't re-use again.
+	 * use #reset instead if you want to reuse this encoder for next recording session.
 	 */
 	public void stop() {
 		if (DEBUG) Log.v(TAG, "stop");
-		if (mState > STATE_INITIALIZED) {
-			removeRequest(REQUEST_DRAIN);
+		if (mState.get() > STATE_INITIALIZED) {
 			try {
-				setRequestAndWait(REQUEST_STOP);
+				stopAsync(DEFAULT_STOP_TIMEOUT_MS).get();
 			} catch (Exception e) {
 				Log.w(TAG, "stop:", e);
 			}
 		}
 	}
 
+	/**
+	 * get whether last stopping was aborted by it's deadline
+	 * and the codec was released without waiting EOS/remaining data.
+	 * @return
+	 */
+	public boolean isStopForced() {
+		return mStopForced;
+	}
+
 	/**
 	 * request resume encoder
 	 * @throws IOException
@@ -216,11 +653,15 @@ public abstract class TLMediaEncoder {
 	public void resume(final int num_frames) throws IOException {
 		if (DEBUG) Log.v(TAG, "resume");
 		synchronized (mSync) {
+			final int state = mState.get();
 			if (!mIsRunning
-					|| ((mState != STATE_PREPARING) && (mState != STATE_PREPARED)
-					&& (mState != STATE_PAUSING) && (mState != STATE_PAUSED)))
-				throw new IllegalStateException("not ready to resume:" + mState);
+					|| ((state != STATE_PREPARING) && (state != STATE_PREPARED)
+					&& (state != STATE_PAUSING) && (state != STATE_PAUSED)))
+				throw new IllegalStateException("not ready to resume:" + state);
 			mNumFrames = num_frames;
+			mInputFrames.set(0);
+			mResumePending = true;
+			mResumeRequestNs = System.nanoTime();
 		}
 		setRequest(REQUEST_RESUME);
 	}
@@ -230,18 +671,74 @@ public abstract class TLMediaEncoder {
 	 */
 	public void pause() throws Exception {
 		if (DEBUG) Log.v(TAG, "pause");
-		removeRequest(REQUEST_DRAIN);
+		clearDrainRequest();
 		setRequestFirst(REQUEST_PAUSE);
 	}
 
+	/**
+	 * wait until this encoder actually becomes pause state
+	 * @param timeout_ms maximum waiting time in milliseconds, zero or negative value means no limit
+	 * @return true if this encoder is paused, false if timeout or this encoder is not running
+	 */
+	public boolean waitPaused(final long timeout_ms) {
+		final long limitNs = System.nanoTime() + timeout_ms * 1000000L;
+		synchronized (mSync) {
+			for (; mIsRunning && (mResumePending || (mState.get() != STATE_PAUSED)) ;) {
+				final int state = mState.get();
+				if ((state == STATE_INITIALIZED) || (state == STATE_RELEASE)) break;
+				final long remain_ms = (limitNs - System.nanoTime()) / 1000000L;
+				if ((timeout_ms > 0) && (remain_ms <= 0)) break;
+				try {
+					mSync.wait(timeout_ms > 0 ? remain_ms : 0);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			return !mResumePending && (mState.get() == STATE_PAUSED);
+		}
+	}
+
+	/**
+	 * get total number of frames that were written beyond the frame count requested by #resume(int)
+	 * @return
+	 */
+	public int getOvershootFrames() {
+		return mOvershootFrames;
+	}
+
+	/**
+	 * get total number of frames that were accepted for the frame count requested by #resume(int)
+	 * but were not written because they did not come out from the codec until pausing
+	 * @return
+	 */
+	public int getUndershootFrames() {
+		return mUndershootFrames;
+	}
+
 	/**
 	 * get whether this encoder is pause state
 	 * @return
 	 */
 	public boolean isPaused() {
-		synchronized (mSync) {
-			return (mState == STATE_PAUSING) || (mState == STATE_PAUSED);
-		}
+		final int state = mState.get();
+		return (state == STATE_PAUSING) || (state == STATE_PAUSED);
+	}
+
+	/**
+	 * get number of retries of compare-and-set on state/frame counter,
+	 * this indicates how often the encoder thread and per-frame callers collided
+	 * @return
+	 */
+	public long getContentionCount() {
+		return mContentionCount.get();
+	}
+
+	/**
+	 * get number of state transitions that were rejected as illegal
+	 * @return
+	 */
+	public long getRejectedTransitionCount() {
+		return mRejectedTransitionCount.get();
 	}
 
 	/**
@@ -250,21 +747,280 @@ public abstract class TLMediaEncoder {
      */
     public boolean frameAvailableSoon() {
 //    	if (DEBUG) Log.v(TAG, "frameAvailableSoon");
-		synchronized (mSync) {
-			if (mState != STATE_RUNNING) {
-				return false;
+		if (mState.get() != STATE_RUNNING) {
+			return false;
+		}
+		boolean reached = false;
+		final int num_frames = mNumFrames;
+		if (num_frames > 0) {
+			for ( ; ; ) {
+				final int n = mInputFrames.get();
+				if (n >= num_frames) {
+					// already accepted requested number of frames, pause request is on the way
+					return false;
+				}
+				if (mInputFrames.compareAndSet(n, n + 1)) {
+					reached = (n + 1 >= num_frames);
+					break;
+				}
+				mContentionCount.incrementAndGet();
 			}
 		}
-		removeRequest(REQUEST_DRAIN);
-		setRequest(REQUEST_DRAIN);
+		if (!isAsyncDrain()) {
+			// on asynchronous mode, drain is requested by callback from codec
+			requestDrain();
+		}
+		if (reached) {
+			// count frames on input side and queue pause after drain request
+			// so that encoder does not accept extra frames while waiting output
+			setRequest(REQUEST_PAUSE);
+		}
 		return true;
     }
 
 	public void release() {
-		removeRequest(REQUEST_DRAIN);
+		clearDrainRequest();
 		setRequestFirst(REQUEST_STOP);
 	}
 
+	/**
+	 * set how MediaEncoderListener is called, this should be called before #prepare.
+	 * on any mode, callbacks are delivered one by one in the order of state changes.
+	 * @param mode DISPATCH_INLINE or DISPATCH_DEDICATED,
+	 * 		use #setListenerExecutor for DISPATCH_EXECUTOR
+	 */
+	public void setListenerDispatchMode(final int mode) {
+		if ((mode != DISPATCH_INLINE) && (mode != DISPATCH_DEDICATED))
+			throw new IllegalArgumentException("unsupported dispatch mode:" + mode);
+		setListenerExecutor(mode, null);
+	}
+
+	/**
+	 * set executor to call MediaEncoderListener, this should be called before #prepare.
+	 * callbacks are serialized on the executor so that they never overlap
+	 * and are delivered in the order of state changes even if the executor has multiple threads.
+	 * @param executor if null, listener is called directly on the encoder thread
+	 */
+	public void setListenerExecutor(final Executor executor) {
+		setListenerExecutor(executor != null ? DISPATCH_EXECUTOR : DISPATCH_INLINE, executor);
+	}
+
+	public int getListenerDispatchMode() {
+		return mListenerDispatchMode;
+	}
+
+	/**
+	 * get latency from state change to start calling listener
+	 * @return
+	 */
+	public LatencyStats getListenerDispatchStats() {
+		return mListenerDispatchStats;
+	}
+
+	/**
+	 * get time spent in each listener call
+	 * @return
+	 */
+	public LatencyStats getListenerCallStats() {
+		return mListenerCallStats;
+	}
+
+	private void setListenerExecutor(final int mode, final Executor executor) {
+		synchronized (mSync) {
+			if (mDedicatedDispatcher != null) {
+				// already queued callbacks are still delivered
+				mDedicatedDispatcher.shutdown();
+				mDedicatedDispatcher = null;
+			}
+			switch (mode) {
+			case DISPATCH_DEDICATED:
+				mDedicatedDispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						return new Thread(r, TAG + "-listener");
+					}
+				});
+				mListenerExecutor = new SerialExecutor(mDedicatedDispatcher);
+				break;
+			case DISPATCH_EXECUTOR:
+				mListenerExecutor = new SerialExecutor(executor);
+				break;
+			default:
+				mListenerExecutor = null;
+				break;
+			}
+			mListenerDispatchMode = mode;
+		}
+	}
+
+	/**
+	 * set how input is handled when the encoder falls behind
+	 * @param policy BACKPRESSURE_BLOCK, BACKPRESSURE_DROP_OLDEST or BACKPRESSURE_DROP_NEWEST
+	 * @param max_block_ms maximum waiting time on BACKPRESSURE_BLOCK[milliseconds]
+	 */
+	public void setBackpressurePolicy(final int policy, final long max_block_ms) {
+		if ((policy < BACKPRESSURE_BLOCK) || (policy > BACKPRESSURE_DROP_NEWEST))
+			throw new IllegalArgumentException("unknown backpressure policy:" + policy);
+		mBackpressurePolicy = policy;
+		mMaxBlockUs = Math.max(max_block_ms, 0) * 1000L;
+	}
+
+	public int getBackpressurePolicy() {
+		return mBackpressurePolicy;
+	}
+
+	/**
+	 * @return maximum waiting time on BACKPRESSURE_BLOCK[milliseconds]
+	 */
+	public long getMaxBlockMs() {
+		return mMaxBlockUs / 1000L;
+	}
+
+	/**
+	 * get number of input frames that were dropped by backpressure policy
+	 * @return
+	 */
+	public long getDroppedFrameCount() {
+		return mDroppedFrames.get();
+	}
+
+	/**
+	 * get time spent for waiting that the encoder accepts input
+	 * @return
+	 */
+	public LatencyStats getInputBlockedStats() {
+		return mInputBlockedStats;
+	}
+
+	/**
+	 * get shared executor that runs this encoder
+	 * @return null if this encoder has private thread
+	 */
+	public EncoderExecutor getExecutor() {
+		return mExecutor;
+	}
+
+	/**
+	 * get latency from queueing step to start running it on shared executor,
+	 * this is empty if this encoder has private thread
+	 * @return
+	 */
+	public LatencyStats getDispatchStats() {
+		return mDispatchStats;
+	}
+
+	/**
+	 * get time spent for each step on shared executor,
+	 * this is empty if this encoder has private thread
+	 * @return
+	 */
+	public LatencyStats getStepStats() {
+		return mStepStats;
+	}
+
+	/**
+	 * set whether the configured codec(and input Surface for video) is kept while pausing.
+	 * if true, the codec is just flushed on pausing instead of stop/release
+	 * and next resuming starts with sync(key) frame without re-configuring the codec.
+	 * This reduces the latency to resume but the codec keeps it's resources while pausing.
+	 * @param keep default is false
+	 */
+	public void setKeepCodecOnPause(final boolean keep) {
+		mKeepCodecOnPause = keep;
+	}
+
+	public boolean isKeepCodecOnPause() {
+		return mKeepCodecOnPause;
+	}
+
+	/**
+	 * get stats of latency from #resume call to the first encoded frame
+	 * @return
+	 */
+	public LatencyStats getResumeLatencyStats() {
+		return mResumeLatencyStats;
+	}
+
+	/**
+	 * get stats of time spent to set up codec and intermediate file on each resuming
+	 * @return
+	 */
+	public LatencyStats getResumeSetupStats() {
+		return mResumeSetupStats;
+	}
+
+	/**
+	 * get stats of jitter of presentationTimeUs written into intermediate file,
+	 * each value is the difference between the interval from previous frame and the interval before it
+	 * @return
+	 */
+	public LatencyStats getPTSJitterStats() {
+		return mPTSJitterStats;
+	}
+
+	/**
+	 * get number of frames whose presentationTimeUs from input went backward(or did not increase)
+	 * and was adjusted to keep monotonic, these frames would be reordered by muxer otherwise
+	 * @return
+	 */
+	public long getPTSReorderCount() {
+		return mPTSReorderCount;
+	}
+
+	/**
+	 * set factory to select codec and create EncoderBackend, should be called before #prepare
+	 * @param factory null means MediaCodecBackend.FACTORY
+	 */
+	public void setBackendFactory(final EncoderBackend.Factory factory) {
+		mBackendFactory = factory != null ? factory : MediaCodecBackend.FACTORY;
+	}
+
+	public EncoderBackend.Factory getBackendFactory() {
+		return mBackendFactory;
+	}
+
+	/**
+	 * set whether encoded data is drained by callback from codec(asynchronous mode)
+	 * or by polling with timeout. should be called before #start/#resume.
+	 * even if this is set to true, polling is used when the codec does not support asynchronous mode.
+	 * @param async default is true
+	 */
+	public void setAsyncDrain(final boolean async) {
+		mAsyncDrain = async;
+	}
+
+	/**
+	 * @return true if current codec is running on asynchronous mode
+	 */
+	public boolean isAsyncDrain() {
+		final EncoderBackend codec = mCodec;
+		return codec != null && codec.isAsync();
+	}
+
+	/**
+	 * get stats of drain, count of stats equals to the number of wake up to drain
+	 * @return
+	 */
+	public LatencyStats getDrainStats() {
+		return mDrainStats;
+	}
+
+	/**
+	 * get number of drains that did not get any encoded data(=unnecessary wake up)
+	 * @return
+	 */
+	public long getEmptyDrainCount() {
+		return mEmptyDrainCount;
+	}
+
+	/**
+	 * get capacity of input buffer of current codec, this is only meaningful for ByteBuffer input
+	 * @return zero if no input buffer was dequeued yet
+	 */
+	protected int getInputCapacity() {
+		return mInputCapacity;
+	}
+
 //********************************************************************************
 //********************************************************************************
 	/**
@@ -277,89 +1033,232 @@ public abstract class TLMediaEncoder {
 	protected abstract MediaFormat internal_prepare() throws IOException;
 
 	/**
-	 * execute MediaCodec#configure.
+	 * execute EncoderBackend#configure.
 	 * this method will be called every resuming
 	 * @param previous_codec
 	 * @param format
 	 * @return
 	 * @throws IOException
 	 */
-	protected abstract MediaCodec internal_configure(MediaCodec previous_codec, MediaFormat format) throws IOException;
+	protected abstract EncoderBackend internal_configure(EncoderBackend previous_codec, MediaFormat format) throws IOException;
+
+	/**
+	 * create EncoderBackend for specific MIME type.
+	 * asynchronous mode is requested here if it is enabled,
+	 * so inheritor should call this method instead of creating EncoderBackend directly.
+	 * @param mime_type
+	 * @return
+	 * @throws IOException
+	 */
+	protected EncoderBackend createBackend(final String mime_type) throws IOException {
+		return attachBackend(mBackendFactory.create(mime_type));
+	}
+
+	/**
+	 * set up EncoderBackend that inheritor created by itself without the factory,
+	 * ex. PcmPassthroughBackend for deferred encoding
+	 * @param codec
+	 * @return same as codec
+	 */
+	protected final EncoderBackend attachBackend(final EncoderBackend codec) {
+		if (mAsyncDrain) {
+			codec.setCallback(mBackendCallback);
+		}
+		return codec;
+	}
 
 
 	protected void callOnPrepared() {
 		if (mListener != null) {
-			try {
-				mListener.onPrepared(TLMediaEncoder.this);
-			} catch (Exception e) {
-				Log.e(TAG, "callOnPrepared:", e);
-			}
+			dispatchListener("callOnPrepared", new Runnable() {
+				@Override
+				public void run() {
+					mListener.onPrepared(TLMediaEncoder.this);
+				}
+			});
 		}
 	}
 
 	protected void callOnResume() {
 		if (mListener != null) {
-			try {
-				mListener.onResume(this);
-			} catch (Exception e) {
-				Log.e(TAG, "callOnResume:", e);
-			}
+			dispatchListener("callOnResume", new Runnable() {
+				@Override
+				public void run() {
+					mListener.onResume(TLMediaEncoder.this);
+				}
+			});
 		}
 	}
 
 	protected void callOnPause() {
 		if (mListener != null) {
-			try {
-				mListener.onPause(this);
-			} catch (Exception e) {
-				Log.e(TAG, "callOnPause:", e);
-			}
+			dispatchListener("callOnPause", new Runnable() {
+				@Override
+				public void run() {
+					mListener.onPause(TLMediaEncoder.this);
+				}
+			});
 		}
 	}
 
 	protected void callOnStopped() {
 		if (mListener != null) {
-			try {
-				mListener.onStopped(this);
-			} catch (Exception e) {
-				Log.e(TAG, "callOnStopped:", e);
+			dispatchListener("callOnStopped", new Runnable() {
+				@Override
+				public void run() {
+					mListener.onStopped(TLMediaEncoder.this);
+				}
+			});
+		}
+	}
+
+	/**
+	 * call listener depending on current dispatch mode
+	 * @param name name of callback, only used for logging
+	 * @param task
+	 */
+	private final void dispatchListener(final String name, final Runnable task) {
+		final Executor executor = mListenerExecutor;
+		final long queuedNs = System.nanoTime();
+		if (executor == null) {
+			runListener(name, task, queuedNs);
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				runListener(name, task, queuedNs);
 			}
+		});
+	}
+
+	private final void runListener(final String name, final Runnable task, final long queuedNs) {
+		final long startNs = System.nanoTime();
+		mListenerDispatchStats.add(startNs - queuedNs);
+		try {
+			task.run();
+		} catch (Exception e) {
+			Log.e(TAG, name + ":", e);
 		}
+		final long elapsedNs = System.nanoTime() - startNs;
+		mListenerCallStats.add(elapsedNs);
+		if (DEBUG && (elapsedNs > SLOW_LISTENER_NS)) Log.w(TAG, name + ":slow listener " + elapsedNs / 1000 + "usec");
 	}
 //********************************************************************************
 //********************************************************************************
-	private final void setState(final int state, final Exception e) {
+	/**
+	 * change state if the transition is allowed by the transition table.
+	 * the state itself is updated without locking so that readers never block,
+	 * mSync is only used to wake up threads that are waiting for state change.
+	 * @param state
+	 * @param e
+	 * @return false if the transition was rejected
+	 */
+	private final boolean setState(final int state, final Exception e) {
+		for ( ; ; ) {
+			final int current = mState.get();
+			if (((TRANSITIONS[current] | ALWAYS_ALLOWED) & (1 << state)) == 0) {
+				mRejectedTransitionCount.incrementAndGet();
+				Log.w(TAG, "setState:illegal transition " + current + "->" + state);
+				return false;
+			}
+			if (mState.compareAndSet(current, state)) break;
+			mContentionCount.incrementAndGet();
+		}
+		List<PendingFuture> completed = null;
 		synchronized (mSync) {
-			mState = state;
 			mCurrentException = e;
 			mSync.notifyAll();
+			if (!mPendingFutures.isEmpty() && (state != STATE_RELEASE)) {
+				// futures that wait for releasing are completed in #handleFinish
+				for (int i = mPendingFutures.size() - 1; i >= 0; i--) {
+					final PendingFuture pending = mPendingFutures.get(i);
+					if ((pending.state == state) || (state == STATE_INITIALIZED)) {
+						if (completed == null) completed = new ArrayList<PendingFuture>();
+						completed.add(mPendingFutures.remove(i));
+					}
+				}
+			}
+		}
+		if (completed != null) {
+			for (final PendingFuture pending: completed) {
+				// on error or reset, futures that wait for other state fail
+				pending.future.complete(pending.state == state ? null
+					: (e != null ? e : new IllegalStateException("encoder was reset")));
+			}
+		}
+		return true;
+	}
+
+	private static final class PendingFuture {
+		private final EncoderFuture future;
+		private final int state;
+
+		private PendingFuture(final EncoderFuture future, final int state) {
+			this.future = future;
+			this.state = state;
 		}
 	}
 
+	/**
+	 * register future that completes when this encoder becomes specific state
+	 * this should be called while holding mSync
+	 */
+	private final void addPendingFuture(final EncoderFuture future, final int state) {
+		mPendingFutures.add(new PendingFuture(future, state));
+	}
+
 	private final void setRequest(final int request) {
 		mRequestQueue.offer(request);
+		schedule();
 	}
 
 	private final void setRequestFirst(final int request) {
 		mRequestQueue.offerFirst(request);
+		schedule();
 	}
 
 	private final void removeRequest(final int request) {
 		for (; mRequestQueue.remove(request) ;);
 	}
 
-	private final void setRequestAndWait(final int request) throws Exception {
-		synchronized (mSync) {
-			mRequestQueue.offer(request);
-			try {
-				mSync.wait();
-				if (mCurrentException != null)
-					throw mCurrentException;
-			} catch (InterruptedException e) {
-			}
+	/**
+	 * queue drain request if it is not queued yet,
+	 * drain that is queued and not started yet also handles output that became available after that
+	 */
+	private final void requestDrain() {
+		if (mDrainRequested.compareAndSet(false, true)) {
+			setRequest(REQUEST_DRAIN);
 		}
 	}
 
+	private final void clearDrainRequest() {
+		removeRequest(REQUEST_DRAIN);
+		mDrainRequested.set(false);
+	}
+
+	/**
+	 * callback from EncoderBackend on asynchronous mode
+	 */
+	private final EncoderBackend.Callback mBackendCallback = new EncoderBackend.Callback() {
+		@Override
+		public void onInputAvailable(final EncoderBackend backend) {
+			// nothing to do here because #encode waits for input buffer in EncoderBackend
+		}
+
+		@Override
+		public void onOutputAvailable(final EncoderBackend backend) {
+			if (mState.get() == STATE_RUNNING) {
+				requestDrain();
+			}
+		}
+
+		@Override
+		public void onError(final EncoderBackend backend, final Exception e) {
+			Log.e(TAG, "EncoderBackend#onError:", e);
+		}
+	};
+
 	/**
 	 * wait request
 	 * @return
@@ -374,63 +1273,171 @@ public abstract class TLMediaEncoder {
 		return request != null ? request : REQUEST_NON;
 	}
 
+	/**
+	 * encoder loop on private thread, used when shared EncoderExecutor is not specified
+	 */
 	private final Runnable mEncoderTask = new Runnable() {
 		@Override
 		public void run() {
 			int request = REQUEST_NON;
 			if (DEBUG) Log.v(TAG, "#run");
-			mIsRunning = true;
-			setState(STATE_INITIALIZED, null);
 			for (; mIsRunning; ) {
 				if (request == REQUEST_NON) {	// if there is no handling request
 					request = waitRequest();	// wait for next request
 				}
-				if (request == REQUEST_STOP) {
-					handlePauseRecording();
-					mIsRunning = false;
-					break;
-				}
-				if (mState == STATE_RUNNING) {
-					request = handleRunning(request);
-				} else {
-					if (request == REQUEST_DRAIN) {
-						request = REQUEST_NON;	// just clear request
-						removeRequest(REQUEST_DRAIN);
-						continue;
+				request = handleRequest(request);
+			} // end of for mIsRunning
+			handleFinish();
+		}
+	};
+
+	/**
+	 * one step of encoder loop on shared EncoderExecutor.
+	 * this handles at most EncoderExecutor#getRequestsPerStep requests and then yields worker thread
+	 * by queueing itself again if there are remaining requests.
+	 * requests other than REQUEST_DRAIN may block for long time(configuring codec,
+	 * waiting remaining output/EOS until the deadline of pausing/stopping),
+	 * so the step on worker thread hands them over to the step on lifecycle thread
+	 * instead of delaying drains of other encoders.
+	 */
+	private final class StepTask implements Runnable {
+		private final boolean mLifecycle;
+
+		private StepTask(final boolean lifecycle) {
+			mLifecycle = lifecycle;
+		}
+
+		@Override
+		public void run() {
+			final long startNs = System.nanoTime();
+			mDispatchStats.add(startNs - mScheduledNs);
+			int request = mCarryRequest;
+			boolean handover = false;
+			try {
+				final int n = mExecutor.getRequestsPerStep();
+				for (int i = 0; mIsRunning && (i < n); i++) {
+					if (request == REQUEST_NON) {
+						final Integer req = mRequestQueue.poll();
+						if (req == null) break;
+						request = req;
 					}
-					switch (mState) {
-					case STATE_RELEASE:
-						setState(STATE_RELEASE, new IllegalStateException("state=" + mState + ",request=" + request));
-						mIsRunning = false;
-						continue;
-					case STATE_INITIALIZED:
-						request = handleInitialized(request);
-						break;
-					case STATE_PREPARING:
-						request = handlePreparing(request);
-						break;
-					case STATE_PREPARED:
-						request = handlePrepared(request);
-						break;
-					case STATE_PAUSING:
-						request = handlePausing(request);
-						break;
-					case STATE_PAUSED:
-						request = handlePaused(request);
+					if (!mLifecycle && (request != REQUEST_DRAIN)) {
+						handover = true;
 						break;
-					case STATE_RESUMING:
-						request = handleResuming(request);
-						break;
-					default:
-					} // end of switch (mState)
+					}
+					request = handleRequest(request);
 				}
-			} // end of for mIsRunning
-			if (DEBUG) Log.v(TAG, "#run:finished");
-			setState(STATE_RELEASE, null);
-			// internal_release all related objects
-			internal_release();
+			} catch (final RuntimeException e) {
+				Log.e(TAG, "#step:", e);
+				mIsRunning = false;
+			}
+			mCarryRequest = request;
+			mStepStats.addSince(startNs);
+			if (!mIsRunning) {
+				// keep mScheduled true so that this encoder is never scheduled again
+				handleFinish();
+				return;
+			}
+			if (handover) {
+				// keep mScheduled true, the step on lifecycle thread continues from mCarryRequest
+				mScheduledNs = System.nanoTime();
+				mExecutor.executeLifecycle(mLifecycleStepTask);
+				return;
+			}
+			mScheduled.set(false);
+			if ((request != REQUEST_NON) || !mRequestQueue.isEmpty()) {
+				schedule();
+			}
 		}
-	};
+	}
+
+	private final Runnable mStepTask = new StepTask(false);
+	private final Runnable mLifecycleStepTask = new StepTask(true);
+
+	/**
+	 * queue step of this encoder into shared EncoderExecutor if it is not queued yet
+	 */
+	private final void schedule() {
+		if ((mExecutor != null) && mScheduled.compareAndSet(false, true)) {
+			mScheduledNs = System.nanoTime();
+			mExecutor.execute(mStepTask);
+		}
+	}
+
+	/**
+	 * handle one request depending on current state
+	 * @param request
+	 * @return request that should be handled again on next iteration or REQUEST_NON
+	 */
+	private final int handleRequest(int request) {
+		if (request == REQUEST_STOP) {
+			handlePauseRecording(false);
+			mIsRunning = false;
+			mStopRequested = false;
+			return REQUEST_NON;
+		}
+		if (request == REQUEST_RESET) {
+			handleReset();
+			return REQUEST_NON;
+		}
+		if (mState.get() == STATE_RUNNING) {
+			request = handleRunning(request);
+		} else {
+			if (request == REQUEST_DRAIN) {
+				clearDrainRequest();
+				return REQUEST_NON;	// just clear request
+			}
+			switch (mState.get()) {
+			case STATE_RELEASE:
+				setState(STATE_RELEASE, new IllegalStateException("state=" + mState.get() + ",request=" + request));
+				mIsRunning = false;
+				break;
+			case STATE_INITIALIZED:
+				request = handleInitialized(request);
+				break;
+			case STATE_PREPARING:
+				request = handlePreparing(request);
+				break;
+			case STATE_PREPARED:
+				request = handlePrepared(request);
+				break;
+			case STATE_PAUSING:
+				request = handlePausing(request);
+				break;
+			case STATE_PAUSED:
+				request = handlePaused(request);
+				break;
+			case STATE_RESUMING:
+				request = handleResuming(request);
+				break;
+			default:
+			} // end of switch (mState)
+		}
+		return request;
+	}
+
+	private final void handleFinish() {
+		if (DEBUG) Log.v(TAG, "#run:finished");
+		setState(STATE_RELEASE, null);
+		// internal_release all related objects
+		internal_release();
+		synchronized (mSync) {
+			if (mDedicatedDispatcher != null) {
+				// dispatcher thread terminates after delivering already queued callbacks
+				mDedicatedDispatcher.shutdown();
+				mDedicatedDispatcher = null;
+			}
+		}
+		final PendingFuture[] pendings;
+		synchronized (mSync) {
+			pendings = mPendingFutures.toArray(new PendingFuture[mPendingFutures.size()]);
+			mPendingFutures.clear();
+		}
+		for (final PendingFuture pending: pendings) {
+			pending.future.complete(pending.state == STATE_RELEASE ? null
+				: new IllegalStateException("encoder was released"));
+		}
+	}
 
 	private final int handleRunning(int request) {
 		if (DEBUG) Log.v(TAG, "STATE_RUNNING");
@@ -443,15 +1450,45 @@ public abstract class TLMediaEncoder {
 			break;
 		case REQUEST_DRAIN:
 			request = REQUEST_NON;
+			// clear before draining so that output which comes after this drain requests next one
+			mDrainRequested.set(false);
 			drain();
 			break;
 		default:
-			setState(STATE_INITIALIZED, new IllegalStateException("state=" + mState + ",request=" + request));
+			setState(STATE_INITIALIZED, new IllegalStateException("state=" + mState.get() + ",request=" + request));
 			request = REQUEST_NON;
 		}
 		return request;
 	}
 
+	/**
+	 * finish current session and return to initialized state keeping reusable resources
+	 */
+	private final void handleReset() {
+		if (DEBUG) Log.v(TAG, "handleReset:");
+		final int state = mState.get();
+		if (state == STATE_RUNNING) {
+			// finish current sequence through pausing state like handlePausing
+			// so that new input is not accepted while finishing it
+			setState(STATE_PAUSING, null);
+		}
+		if ((state == STATE_RUNNING) || (state == STATE_PAUSING) || (state == STATE_RESUMING)) {
+			handlePauseRecording(mKeepCodecOnPause);
+			callOnPause();
+		}
+		mNumFrames = -1;
+		synchronized (mSync) {
+			mResumePending = false;
+		}
+		final File dir = mNextBaseDir;
+		if (dir != null) {
+			mBaseDir = dir;
+			mNextBaseDir = null;
+		}
+		mBaseDir.mkdirs();
+		setState(STATE_INITIALIZED, null);
+	}
+
 	private final int handleInitialized(int request) {
 		if (DEBUG) Log.v(TAG, "STATE_INITIALIZED");
 		switch (request) {
@@ -459,7 +1496,7 @@ public abstract class TLMediaEncoder {
 			setState(STATE_PREPARING, null);
 			break;
 		default:
-			setState(STATE_INITIALIZED, new IllegalStateException("state=" + mState + ",request=" + request));
+			setState(STATE_INITIALIZED, new IllegalStateException("state=" + mState.get() + ",request=" + request));
 			request = REQUEST_NON;
 		}
 		return request;
@@ -469,6 +1506,7 @@ public abstract class TLMediaEncoder {
 		if (DEBUG) Log.v(TAG, "STATE_PREPARING");
 		request = REQUEST_NON;
 		try {
+			mFormatWritten = false;
 			checkLastSequence();
 			if (mConfigFormat == null)
 				mConfigFormat = internal_prepare();
@@ -497,7 +1535,7 @@ public abstract class TLMediaEncoder {
 			setState(STATE_PAUSING, null);
 			break;
 		default:
-			setState(STATE_INITIALIZED, new IllegalStateException("state=" + mState + ",request=" + request));
+			setState(STATE_INITIALIZED, new IllegalStateException("state=" + mState.get() + ",request=" + request));
 			request = REQUEST_NON;
 		}
 		return request;
@@ -506,7 +1544,7 @@ public abstract class TLMediaEncoder {
 	private final int handlePausing(int request) {
 		if (DEBUG) Log.v(TAG, "STATE_PAUSING");
 		request = REQUEST_NON;
-		handlePauseRecording();
+		handlePauseRecording(mKeepCodecOnPause);
 		setState(STATE_PAUSED, null);
 		callOnPause();
 		return request;
@@ -522,7 +1560,7 @@ public abstract class TLMediaEncoder {
 			request = REQUEST_NON;	// just clear request
 			break;
 		default:
-			setState(STATE_INITIALIZED, new IllegalStateException("state=" + mState + ",request=" + request));
+			setState(STATE_INITIALIZED, new IllegalStateException("state=" + mState.get() + ",request=" + request));
 			request = REQUEST_NON;
 		}
 		return request;
@@ -531,14 +1569,34 @@ public abstract class TLMediaEncoder {
 	private final int handleResuming(int request) {
 		if (DEBUG) Log.v(TAG, "STATE_RESUMING");
 		request = REQUEST_NON;
+		synchronized (mSync) {
+			mResumePending = false;
+		}
+		final long startNs = System.nanoTime();
 		try {
 			mIsEOS = false;
-			mMediaCodec = internal_configure(mMediaCodec, mConfigFormat);
+			clearInputGap();	// sequence boundary is handled by the builder anyway
+			final boolean warm = mCodec != null;
+			if (!warm) {
+				mCodec = internal_configure(mCodec, mConfigFormat);
+			}
 			mCurrentOutputStream = openOutputStream(); // changeOutputStream();
-			mMediaCodec.start();
-			encoderOutputBuffers = mMediaCodec.getOutputBuffers();
-			encoderInputBuffers = mMediaCodec.getInputBuffers();
+			if (warm) {
+				// codec was kept while pausing and is still running,
+				// just request sync frame so that the sequence starts with key frame
+				mCodec.requestSyncFrame();
+				if ((mSequence == 0) && !mFormatWritten && (mOutputFormat != null)) {
+					// INFO_OUTPUT_FORMAT_CHANGED does not come again on the codec
+					// that was kept from previous session, so write format here
+					writeFormat(mCurrentOutputStream, mConfigFormat, mOutputFormat);
+					mFormatWritten = true;
+				}
+			} else {
+				mCodec.start();
+			}
 			mFrameCounts = -1;
+			mResumeSetupStats.addSince(startNs);
+			mAcceptInput = true;
 			setState(STATE_RUNNING, null);
 			callOnResume();
 		} catch (IOException e) {
@@ -551,15 +1609,29 @@ public abstract class TLMediaEncoder {
 	/**
 	 * handle pausing request
 	 * this method is called from message handler of EncoderHandler
+	 * @param keep_codec if true, just flush codec instead of sending EOS and releasing codec
 	 */
-	private final void handlePauseRecording() {
-		if (DEBUG) Log.v(TAG, "handlePauseRecording");
-		// process all available output data
-		drain();
-		// send EOS to MediaCodec encoder(request to stop)
-		signalEndOfInputStream();
-		// process output data again for EOS signal
-		drain();
+	private final void handlePauseRecording(final boolean keep_codec) {
+		if (DEBUG) Log.v(TAG, "handlePauseRecording:keep_codec=" + keep_codec);
+		mDrainDeadlineNs = System.nanoTime() + PAUSE_DRAIN_TIMEOUT_MS * 1000000L;
+		mDrainWait = true;
+		try {
+			// process all available output data
+			drain();
+			if (mNumFrames > 0) {
+				drainRequestedFrames();
+			}
+			stopAcceptingInput();
+			if (!keep_codec) {
+				// send EOS to MediaCodec encoder(request to stop)
+				signalEndOfInputStream();
+				// process output data again for EOS signal
+				drain();
+			}
+		} finally {
+			mDrainWait = false;
+			stopAcceptingInput();
+		}
 		if (mCurrentOutputStream != null)
 		try {
 			mCurrentOutputStream.flush();
@@ -568,13 +1640,26 @@ public abstract class TLMediaEncoder {
 			Log.e(TAG, "handlePauseRecording:", e);
 		}
 		mCurrentOutputStream = null;
-		encoderOutputBuffers = encoderInputBuffers = null;
 		mRequestQueue.clear();
-		if (mMediaCodec != null) {
+		mDrainRequested.set(false);
+		synchronized (mSync) {
+			// queued resume request was discarded
+			mResumePending = false;
+		}
+		if (mCodec != null) {
+			if (keep_codec) {
+				try {
+					// discard pending data and keep configured codec for next resuming
+					mCodec.flush();
+					return;
+				} catch (Exception e) {
+					Log.w(TAG, "failed flushing MediaCodec, release it", e);
+				}
+			}
 			try {
-				mMediaCodec.stop();
-				mMediaCodec.release();
-				mMediaCodec = null;
+				mCodec.stop();
+				mCodec.release();
+				mCodec = null;
 			} catch (Exception e) {
 				Log.e(TAG, "failed releasing MediaCodec", e);
 			}
@@ -588,67 +1673,325 @@ public abstract class TLMediaEncoder {
 		if (DEBUG) Log.d(TAG, "internal_release:");
 		callOnStopped();
 		mIsRunning = false;
-        if (mMediaCodec != null) {
+		stopAcceptingInput();
+        if (mCodec != null) {
 			try {
-	            mMediaCodec.stop();
-	            mMediaCodec.release();
-	            mMediaCodec = null;
+	            mCodec.stop();
+	            mCodec.release();
+	            mCodec = null;
 			} catch (Exception e) {
 				Log.e(TAG, "failed releasing MediaCodec", e);
 			}
         }
         mBufferInfo = null;
+		if (DEBUG) Log.v(TAG, "internal_release:" + mDrainStats + ",empty=" + mEmptyDrainCount
+			+ (mExecutor != null ? "," + mDispatchStats + "," + mStepStats : "")
+			+ ",contention=" + mContentionCount.get() + ",rejected=" + mRejectedTransitionCount.get()
+			+ ",dropped=" + getDroppedFrameCount() + "," + getInputBlockedStats());
     }
 
     protected void signalEndOfInputStream() {
 		if (DEBUG) Log.d(TAG, "sending EOS to encoder");
         // signalEndOfInputStream is only available for video encoding with surface
         // and equivalent sending a empty buffer with BUFFER_FLAG_END_OF_STREAM flag.
-//		mMediaCodec.signalEndOfInputStream();	// API >= 18
-        encode(null, 0, getPTSUs());
+        // inheritor that feeds data through Surface should override this and call #signalEndOfInputSurface
+        // use unbiased time not to shift time base of #toPTSUs
+        encode(null, 0, toPTSUs(System.nanoTime()));
+	}
+
+	/**
+	 * send EOS to the codec whose input is Surface.
+	 * empty input buffer can not be queued into such codec,
+	 * so inheritor should call this from #signalEndOfInputStream instead.
+	 */
+	protected final void signalEndOfInputSurface() {
+		if (!mIsRunning || !canSignalEndOfInput()) return;
+		if (DEBUG) Log.i(TAG, "signalEndOfInputStream on input Surface");
+		mIsEOS = true;
+		mCodec.signalEndOfInputStream();	// API >= 18
+	}
+
+	/**
+	 * stop accepting input data and wait for the input that is being queued on the other thread,
+	 * the codec can be flushed or released after this returns.
+	 * data held on BACKPRESSURE_DROP_OLDEST and input buffer obtained by #obtainInputBuffer are discarded
+	 */
+	private void stopAcceptingInput() {
+		// clear the flag before locking so that the thread retrying to queue input gives up soon
+		mAcceptInput = false;
+		synchronized (mInputSync) {
+			mInputGeneration++;
+			mHoldLength = 0;
+		}
+	}
+
+	/**
+	 * whether the codec is encoding current sequence and EOS is not sent yet,
+	 * this is true also on pausing/resetting until the sequence is finished.
+	 * this should be called only from the encoder thread
+	 * @return
+	 */
+	private boolean canSignalEndOfInput() {
+		return (mCodec != null) && (mCurrentOutputStream != null) && !mIsEOS;
 	}
 
 	protected boolean isRecording() {
-		return mIsRunning && (mState == STATE_RUNNING) && (!mIsEOS);
+		return mIsRunning && (mState.get() == STATE_RUNNING) && (!mIsEOS);
+	}
+
+	/**
+	 * get whether this encoder is started, i.e. running, pausing/paused or resuming
+	 * @return
+	 */
+	protected boolean isStarted() {
+		final int state = mState.get();
+		return mIsRunning && (state >= STATE_PAUSING) && (state <= STATE_RUNNING);
+	}
+
+	/**
+	 * whether presentationTimeUs of encoded frames are taken from input data
+	 * instead of the time when they are drained.
+	 * inheritor that returns true should pass capture time of the data
+	 * (based on #toPTSUs or #getPTSUs, it may be back-dated) to #encode/#queueObtainedInput.
+	 * @return
+	 */
+	protected boolean useInputPTS() {
+		return false;
 	}
 
     /**
      * Method to set byte array to the MediaCodec encoder
-	 * if you use Surface to input data to encoder, you should not call this method
+	 * if you use Surface to input data to encoder, you should not call this method.
+	 * when the codec has no free input buffer, data is handled depending on #setBackpressurePolicy
      * @param buffer
      * @param length　length of byte array, zero means EOS.
      * @param presentationTimeUs
+	 * @return true if the data was queued into the codec
      */
 //	protected void encode(final byte[] buffer, final int length, final long presentationTimeUs) {
-	protected void encode(final ByteBuffer buffer, int length, long presentationTimeUs) {
-    	if (!mIsRunning || !isRecording()) return;
-        while (mIsRunning) {
-	        final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
-	        if (inputBufferIndex >= 0) {
-	            final ByteBuffer inputBuffer = encoderInputBuffers[inputBufferIndex];
-	            inputBuffer.clear();
-				if (buffer != null) {
-					inputBuffer.put(buffer);
+	protected boolean encode(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
+		if ((buffer == null) || (length <= 0)) {
+			if (!mIsRunning || !canSignalEndOfInput()) return false;
+			// EOS always waits for input buffer until the deadline of pausing/resetting/stopping
+			return queueInput(null, 0, presentationTimeUs, -1);
+		}
+		// data is also accepted while pausing until the codec is flushed or EOS is sent
+		if (!mIsRunning || !mAcceptInput || mIsEOS) return false;
+		switch (mBackpressurePolicy) {
+		case BACKPRESSURE_DROP_NEWEST:
+			if (queueInput(buffer, length, presentationTimeUs, 0)) {
+				return true;
+			}
+			mDroppedFrames.incrementAndGet();
+			return false;
+		case BACKPRESSURE_DROP_OLDEST:
+			synchronized (mInputSync) {
+				if (mHoldLength > 0) {
+					if (!queueInput(mHoldBuffer, mHoldLength, mHoldPTSUs, 0)) {
+						// codec is still busy, replace held(older) data with new one
+						mDroppedFrames.incrementAndGet();
+						hold(buffer, length, presentationTimeUs);
+						return false;
+					}
+					mHoldLength = 0;
 				}
-				if (length <= 0) {
-					// send EOS
-					mIsEOS = true;
-					if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
-					mMediaCodec.queueInputBuffer(inputBufferIndex, 0, 0,
-							presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-				} else {
-					mMediaCodec.queueInputBuffer(inputBufferIndex, 0, length,
-							presentationTimeUs, 0);
+				if (queueInput(buffer, length, presentationTimeUs, 0)) {
+					return true;
 				}
-				break;
-	        } else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-	        	// wait for MediaCodec encoder is ready to encode
-	        	// nothing to do here because MediaCodec#dequeueInputBuffer(TIMEOUT_USEC)
-	        	// will wait for maximum TIMEOUT_USEC(10msec) on each call
-	        }
-        }
+				// keep newest data until next call instead of blocking caller
+				hold(buffer, length, presentationTimeUs);
+				return false;
+			}
+		default:
+			if (queueInput(buffer, length, presentationTimeUs, mMaxBlockUs)) {
+				return true;
+			}
+			mDroppedFrames.incrementAndGet();
+			return false;
+		}
     }
 
+	/**
+	 * queue data into input buffer of codec
+	 * @param buffer null means EOS
+	 * @param length
+	 * @param presentationTimeUs
+	 * @param max_wait_us maximum waiting time for free input buffer,
+	 * 		negative value means waiting until the deadline of pausing/resetting/stopping
+	 * @return false if there was no free input buffer within max_wait_us
+	 */
+	private final boolean queueInput(final ByteBuffer buffer, final int length,
+		final long presentationTimeUs, final long max_wait_us) {
+
+		final long startNs = System.nanoTime();
+		final long limitNs = startNs + max_wait_us * 1000L;
+		boolean blocked = false;
+		try {
+	        while (mIsRunning && !isDrainDeadlineExceeded()) {
+				final int inputBufferIndex;
+				// each pass holds mInputSync so that pausing/releasing on the encoder thread
+				// never flushes or releases the codec between dequeueing and queueing input buffer
+				synchronized (mInputSync) {
+					final EncoderBackend codec = mCodec;
+					if ((codec == null) || ((buffer != null) && !mAcceptInput)) break;
+			        inputBufferIndex = codec.dequeueInputBuffer(
+						max_wait_us == 0 ? 0 : TIMEOUT_USEC);
+			        if (inputBufferIndex >= 0) {
+			            final ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferIndex);
+			            inputBuffer.clear();
+						mInputCapacity = inputBuffer.capacity();
+						if (buffer != null) {
+							final ByteBuffer src = buffer.duplicate();
+							if (src.remaining() > length) {
+								src.limit(src.position() + length);
+							}
+							inputBuffer.put(src);
+						}
+						if (buffer == null) {
+							// send EOS
+							mIsEOS = true;
+							if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
+							codec.queueInputBuffer(inputBufferIndex, 0, 0,
+									presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+						} else {
+							codec.queueInputBuffer(inputBufferIndex, 0, length,
+									presentationTimeUs, 0);
+						}
+						return true;
+			        }
+				}
+		        if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+		        	// wait for MediaCodec encoder is ready to encode
+		        	// EncoderBackend#dequeueInputBuffer(TIMEOUT_USEC)
+		        	// will wait for maximum TIMEOUT_USEC(10msec) on each call
+					blocked = true;
+					if ((max_wait_us >= 0) && (System.nanoTime() - limitNs >= 0)) {
+						break;
+					}
+		        }
+	        }
+		} finally {
+			if (blocked) {
+				mInputBlockedStats.addSince(startNs);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * get input buffer of codec to write data into directly without intermediate copy.
+	 * #queueObtainedInput should be called after writing data into the returned buffer.
+	 * this and #queueObtainedInput should be called from only one thread.
+	 * if you use Surface to input data to encoder, you should not call this method.
+	 * if the encoder paused before #queueObtainedInput, the buffer is discarded there
+	 * @param max_wait_us maximum waiting time for free input buffer
+	 * @return cleared input buffer, null if the encoder is not recording or there is no free input buffer
+	 */
+	protected final ByteBuffer obtainInputBuffer(final long max_wait_us) {
+		if (mObtainedInputIndex >= 0) throw new IllegalStateException("input buffer is already obtained");
+		if (!mIsRunning || !isRecording()) return null;
+		final long startNs = System.nanoTime();
+		synchronized (mInputSync) {
+			final EncoderBackend codec = mCodec;
+			if ((codec == null) || !mAcceptInput) return null;
+			final int inputBufferIndex = codec.dequeueInputBuffer(max_wait_us);
+			if (inputBufferIndex < 0) {
+				if (max_wait_us > 0) {
+					mInputBlockedStats.addSince(startNs);
+				}
+				return null;
+			}
+			final ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferIndex);
+			inputBuffer.clear();
+			mInputCapacity = inputBuffer.capacity();
+			mObtainedInputIndex = inputBufferIndex;
+			mObtainedGeneration = mInputGeneration;
+			return inputBuffer;
+		}
+	}
+
+	/**
+	 * queue input buffer that was returned by #obtainInputBuffer into codec
+	 * @param length number of bytes written, zero or negative value just returns the buffer to codec
+	 * @param presentationTimeUs
+	 */
+	protected final void queueObtainedInput(final int length, final long presentationTimeUs) {
+		final int inputBufferIndex = mObtainedInputIndex;
+		if (inputBufferIndex < 0) throw new IllegalStateException("input buffer is not obtained");
+		mObtainedInputIndex = -1;
+		synchronized (mInputSync) {
+			final EncoderBackend codec = mCodec;
+			if ((codec == null) || !mAcceptInput || (mObtainedGeneration != mInputGeneration)) {
+				// encoder paused while writing into the buffer,
+				// the buffer is returned to the codec by flushing or releasing it, never queue it
+				if (DEBUG) Log.v(TAG, "queueObtainedInput:discard stale input buffer");
+				return;
+			}
+			codec.queueInputBuffer(inputBufferIndex, 0, length > 0 ? length : 0, presentationTimeUs, 0);
+		}
+	}
+
+	/**
+	 * notify that input data was intentionally skipped(ex. silence) just before specific input.
+	 * the duration is written into the header of the first encoded frame
+	 * whose input presentationTimeUs is same or later than presentationTimeUs
+	 * so that TLMediaMovieBuilder can handle the gap.
+	 * @param presentationTimeUs presentationTimeUs of the first input after the gap
+	 * @param gap_us duration of skipped input
+	 */
+	protected final void markInputGap(final long presentationTimeUs, final long gap_us) {
+		if (gap_us <= 0) return;
+		synchronized (mGapSync) {
+			if (!mHasInputGap) {
+				mGapPTSUs = presentationTimeUs;
+			}
+			// if previous gap is not written yet, merge them
+			mGapUs += gap_us;
+			mHasInputGap = true;
+		}
+	}
+
+	/**
+	 * get duration of gap that should be written with the encoded frame
+	 * @param input_pts_us presentationTimeUs of the encoded frame that codec returned
+	 * @return zero if no gap precedes the frame
+	 */
+	private final long takeInputGap(final long input_pts_us) {
+		if (!mHasInputGap) return 0;
+		synchronized (mGapSync) {
+			if (!mHasInputGap || (input_pts_us < mGapPTSUs)) return 0;
+			final long result = mGapUs;
+			mGapUs = 0;
+			mHasInputGap = false;
+			return result;
+		}
+	}
+
+	private final void clearInputGap() {
+		synchronized (mGapSync) {
+			mGapUs = 0;
+			mHasInputGap = false;
+		}
+	}
+
+	/**
+	 * keep copy of data that could not be queued on BACKPRESSURE_DROP_OLDEST
+	 */
+	private final void hold(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
+		if ((mHoldBuffer == null) || (mHoldBuffer.capacity() < length)) {
+			mHoldBuffer = ByteBuffer.allocateDirect(length);
+		}
+		final ByteBuffer src = buffer.duplicate();
+		if (src.remaining() > length) {
+			src.limit(src.position() + length);
+		}
+		mHoldBuffer.clear();
+		mHoldBuffer.put(src);
+		mHoldBuffer.flip();
+		mHoldLength = mHoldBuffer.remaining();
+		mHoldPTSUs = presentationTimeUs;
+	}
+
 	/**
 	 * working buffer
 	 */
@@ -657,12 +2000,75 @@ public abstract class TLMediaEncoder {
      * drain encoded data and write them to intermediate file
      */
     protected void drain() {
-    	if (mMediaCodec == null) return;
+    	if (mCodec == null) return;
+		final long startNs = System.nanoTime();
+		final int n = drainOutput();
+		mDrainStats.addSince(startNs);
+		if (n == 0) mEmptyDrainCount++;
+	}
+
+	/**
+	 * wait for output of the frames that were accepted for the frame count requested by #resume(int),
+	 * otherwise they are discarded by flushing the codec.
+	 * this waits until the deadline of draining and counts missing/extra frames.
+	 */
+	private final void drainRequestedFrames() {
+		final int num_frames = mNumFrames;
+		final int accepted = Math.min(mInputFrames.get(), num_frames);
+		for (; mIsRunning && (mCodec != null) && (mFrameCounts + 1 < accepted) ; ) {
+			if (isDrainDeadlineExceeded()) break;
+			drain();
+		}
+		final int written = mFrameCounts + 1;
+		if (written > num_frames) {
+			mOvershootFrames += written - num_frames;
+		} else if (written < accepted) {
+			Log.w(TAG, "only " + written + " of " + accepted + " frames came out from the codec");
+			mUndershootFrames += accepted - written;
+		}
+	}
+
+	/**
+	 * check whether the deadline of stopping was already passed
+	 * @return
+	 */
+	private final boolean isStopDeadlineExceeded() {
+		if (mStopRequested && (System.nanoTime() - mStopDeadlineNs > 0)) {
+			if (!mStopForced) {
+				Log.w(TAG, "deadline of stopping exceeded, release codec without waiting");
+				mStopForced = true;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * check whether the deadline of waiting output/EOS on pausing, resetting or stopping was already passed
+	 * @return
+	 */
+	private final boolean isDrainDeadlineExceeded() {
+		if (isStopDeadlineExceeded()) return true;
+		return mDrainWait && !mStopRequested && (System.nanoTime() - mDrainDeadlineNs > 0);
+	}
+
+	/**
+	 * @return number of encoded frames that were written into intermediate file
+	 */
+	private int drainOutput() {
+		int result = 0;
         int encoderStatus;
-		while (mIsRunning && (mState == STATE_RUNNING)) {
+		// drain also while pausing so that frames already queued into codec are not lost
+		while (mIsRunning && ((mState.get() == STATE_RUNNING) || (mState.get() == STATE_PAUSING))) {
+			if (isDrainDeadlineExceeded()) break;
 			// get encoded data with maximum timeout duration of TIMEOUT_USEC(=10[msec])
+			// on asynchronous mode, this does not wait except EOS is already sent or pausing/stopping
+			// because drain is requested again when next output comes.
+			// on shared EncoderExecutor, this does not wait either not to delay other encoders,
+			// output that is not ready yet is drained on next frame.
 			try {
-				encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+				encoderStatus = mCodec.dequeueOutputBuffer(mBufferInfo,
+					mIsEOS || mDrainWait || (!mCodec.isAsync() && (mExecutor == null)) ? TIMEOUT_USEC : 0);
 			} catch (IllegalStateException e) {
 				break;
 			}
@@ -674,7 +2080,7 @@ public abstract class TLMediaEncoder {
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
             	if (DEBUG) Log.v(TAG, "INFO_OUTPUT_BUFFERS_CHANGED");
                 // this should not come when encoding
-                encoderOutputBuffers = mMediaCodec.getOutputBuffers();
+                // and EncoderBackend already updated it's output buffers
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
             	if (DEBUG) Log.v(TAG, "INFO_OUTPUT_FORMAT_CHANGED");
             	// this status indicate the output format of codec is changed
@@ -683,8 +2089,10 @@ public abstract class TLMediaEncoder {
             	// and in that case, you should treat when MediaCodec.BUFFER_FLAG_CODEC_CONFIG come.
 				// get output format from codec and pass them to muxer
 				// getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
-				if (mSequence == 0) {	// sequence 0 is for saving MediaFormat
-					final MediaFormat format = mMediaCodec.getOutputFormat(); // API >= 16
+				final MediaFormat format = mCodec.getOutputFormat(); // API >= 16
+				mOutputFormat = format;
+				if ((mSequence == 0) && !mFormatWritten) {	// sequence 0 is for saving MediaFormat
+					mFormatWritten = true;
 					try {
 						writeFormat(mCurrentOutputStream, mConfigFormat, format);
 //						changeOutputStream();
@@ -696,7 +2104,7 @@ public abstract class TLMediaEncoder {
             	// unexpected status
             	if (DEBUG) Log.w(TAG, "drain:unexpected result from encoder#dequeueOutputBuffer: " + encoderStatus);
             } else {
-                final ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+                final ByteBuffer encodedData = mCodec.getOutputBuffer(encoderStatus);
                 if (encodedData == null) {
                 	// this never should come...may be a MediaCodec internal error
                     throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
@@ -712,51 +2120,131 @@ public abstract class TLMediaEncoder {
 
                 if (mBufferInfo.size != 0) {
 					mFrameCounts++;
+					result++;
+					if ((mFrameCounts == 0) && (mResumeRequestNs != 0)) {
+						mResumeLatencyStats.addSince(mResumeRequestNs);
+					}
                     if (mCurrentOutputStream == null) {
                         throw new RuntimeException("drain:temporary file not ready");
                     }
+					if (useInputPTS()) {
+						// presentationTimeUs from codec is same as input
+						mBufferInfo.presentationTimeUs = convertInputPTS(mBufferInfo.presentationTimeUs);
+					}
+					final long gap_us = takeInputGap(mBufferInfo.presentationTimeUs);
                     // write encoded data to muxer(need to adjust presentationTimeUs.
-                   	mBufferInfo.presentationTimeUs = getPTSUs();
+					if (useInputPTS()) {
+						// keep monotonic
+						if ((mFrameCounts > 0) && (mBufferInfo.presentationTimeUs <= prevOutputPTSUs)) {
+							mPTSReorderCount++;
+						}
+						mBufferInfo.presentationTimeUs = Math.max(mBufferInfo.presentationTimeUs, prevOutputPTSUs + 1);
+					} else {
+                   		mBufferInfo.presentationTimeUs = getPTSUs();
+					}
+					updatePTSJitter(mBufferInfo.presentationTimeUs);
 					try {
-						writeStream(mCurrentOutputStream, mSequence, mFrameCounts, mBufferInfo, encodedData, writeBuffer);
+						writeStream(mCurrentOutputStream, mSequence, mFrameCounts, mBufferInfo, gap_us, encodedData, writeBuffer);
 					} catch (IOException e) {
 						throw new RuntimeException("drain:failed to writeStream:" + e.getMessage());
 					}
 					prevOutputPTSUs = mBufferInfo.presentationTimeUs;
                 }
                 // return buffer to encoder
-                mMediaCodec.releaseOutputBuffer(encoderStatus, false);
-				if ((mNumFrames > 0) && (mFrameCounts >= mNumFrames)) {
-					setState(STATE_PAUSING, null);	// request pause
-				}
+                mCodec.releaseOutputBuffer(encoderStatus);
                 if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                	// when EOS come.
-               		mIsRunning = false;
+                	// when EOS come, the codec is flushed or released by the caller.
+                	// EOS is also sent on pausing/resetting, so this encoder itself keeps running
                     break;      // out of while
                 }
             }
         }
+		return result;
     }
 
     /**
-     * time when previous encoding[micro second(s)]
+     * time when previous encoding[micro second(s)], only accessed on the encoder thread
      */
 	private long prevOutputPTSUs = 0;
 	/**
-	 * time when start encoding[micro seconds]
+	 * time when start encoding[micro seconds], this is set only once by the first #toPTSUs/#getPTSUs
+	 * and never changes after that, because capturing thread converts capture time with this.
+	 * Long.MIN_VALUE means not set yet
+	 */
+	private final AtomicLong mTimeBaseUs = new AtomicLong(Long.MIN_VALUE);
+	/**
+	 * offset that #getPTSUs adds to keep it's result monotonic, only accessed on the encoder thread
+	 */
+	private long mPTSBiasUs;
+	/**
+	 * update jitter stats with presentationTimeUs of the frame that is going to write,
+	 * this should be called before updating prevOutputPTSUs
+	 * @param presentationTimeUs
+	 */
+	private void updatePTSJitter(final long presentationTimeUs) {
+		if (mFrameCounts > 0) {
+			final long interval = presentationTimeUs - prevOutputPTSUs;
+			if (mPrevPTSIntervalUs >= 0) {
+				mPTSJitterStats.add(Math.abs(interval - mPrevPTSIntervalUs) * 1000L);
+			}
+			mPrevPTSIntervalUs = interval;
+		} else {
+			// first frame of the sequence
+			mPrevPTSIntervalUs = -1;
+		}
+	}
+
+	/**
+	 * convert time based on System.nanoTime(ex. SurfaceTexture#getTimestamp) into presentationTimeUs of this encoder
+	 * @param time_ns
+	 * @return
+	 */
+	protected long toPTSUs(final long time_ns) {
+		final long time_us = time_ns / 1000L;
+		return time_us - getTimeBaseUs(time_us);
+	}
+
+	/**
+	 * get time base of presentationTimeUs, set it if it is not set yet
+	 * @param time_us time to use as time base if it is not set yet[micro seconds]
+	 * @return
+	 */
+	private long getTimeBaseUs(final long time_us) {
+		final long base = mTimeBaseUs.get();
+		if (base != Long.MIN_VALUE) return base;
+		// the other thread may set it at the same time, then use that one
+		mTimeBaseUs.compareAndSet(Long.MIN_VALUE, time_us);
+		return mTimeBaseUs.get();
+	}
+
+	/**
+	 * convert presentationTimeUs from codec into presentationTimeUs of this encoder,
+	 * this is only called when #useInputPTS returns true.
+	 * default implementation returns the value as it is,
+	 * inheritor that queues presentationTimeUs in other time base(ex. from input Surface) should override this.
+	 * @param presentationTimeUs
+	 * @return
 	 */
-	private long firstTimeUs = -1;
+	protected long convertInputPTS(final long presentationTimeUs) {
+		return presentationTimeUs;
+	}
+
 	/**
-	 * get next encoding presentationTimeUs
+	 * get next encoding presentationTimeUs from current time.
+	 * this is used as presentationTimeUs of encoded frames when #useInputPTS returns false,
+	 * the time includes queueing delay in codec and it is biased to keep monotonic.
+	 * inheritor should use capture time of the data with #toPTSUs instead as far as possible.
+	 * the bias only applies to the result of this method, time base of #toPTSUs is never shifted.
+	 * this should be called on the encoder thread
 	 * @return
 	 */
     protected long getPTSUs() {
-    	if (firstTimeUs < 0) firstTimeUs = System.nanoTime() / 1000L;
-		long result = System.nanoTime() / 1000L - firstTimeUs;
+		final long now_us = System.nanoTime() / 1000L;
+		long result = now_us - getTimeBaseUs(now_us) + mPTSBiasUs;
 		if (result < prevOutputPTSUs) {
 			final long delta = prevOutputPTSUs - result + 8333;	// add approx 1/120 sec as a bias
 			result += delta;
-			firstTimeUs += delta;
+			mPTSBiasUs += delta;
 		}
 		return result;
     }
@@ -790,7 +2278,10 @@ public abstract class TLMediaEncoder {
 			// ignore
 		}
 		mSequence = sequence;
-		mConfigFormat = configFormat;
+		if (configFormat != null) {
+			mConfigFormat = configFormat;
+		}
+		// otherwise keep format that was prepared on previous session(if reused) to skip #internal_prepare
 		if (sequence < 0) {
 			// if intermediate files do not exist or invalid, remove them and re-create intermediate directory
 			delete(mBaseDir);
@@ -805,6 +2296,10 @@ public abstract class TLMediaEncoder {
 		public long presentationTimeUs;
 		public int size;
 		public int flags;
+		/**
+		 * duration of input that was skipped just before this frame(ex. silence)
+		 */
+		public long gapUs;
 
 		public MediaCodec.BufferInfo asBufferInfo() {
 			final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
@@ -820,8 +2315,8 @@ public abstract class TLMediaEncoder {
 		@Override
 		public String toString() {
 			return String.format(Locale.US,
-				"TLMediaFrameHeader(sequence=%d,frameNumber=%d,presentationTimeUs=%d,size=%d,flags=%d)",
-				sequence, frameNumber, presentationTimeUs, size, flags);
+				"TLMediaFrameHeader(sequence=%d,frameNumber=%d,presentationTimeUs=%d,size=%d,flags=%d,gapUs=%d)",
+				sequence, frameNumber, presentationTimeUs, size, flags, gapUs);
 		}
 	}
 
@@ -1005,24 +2500,27 @@ public abstract class TLMediaEncoder {
 		return format;
 	}
 
-	private static final byte[] RESERVED = new byte[40];
+	private static final byte[] RESERVED = new byte[32];
 	/**
 	 * write frame header
 	 * @param presentation_time_us
 	 * @param size
+	 * @param gap_us duration of skipped input just before this frame
 	 * @throws IOException
 	 */
 	/*package*/static void writeHeader(final DataOutputStream out,
 		final int sequence, final int frame_number,
-		final long presentation_time_us, final int size, final int flag) throws IOException {
+		final long presentation_time_us, final int size, final int flag,
+		final long gap_us) throws IOException {
 
 		out.writeInt(sequence);
 		out.writeInt(frame_number);
 		out.writeLong(presentation_time_us);
 		out.writeInt(size);
 		out.writeInt(flag);
+		out.writeLong(gap_us);
 		//
-		out.write(RESERVED, 0, 40);
+		out.write(RESERVED, 0, 32);
 	}
 
 	/*package*/static TLMediaFrameHeader readHeader(final DataInputStream in, final TLMediaFrameHeader header) throws IOException {
@@ -1032,7 +2530,8 @@ public abstract class TLMediaEncoder {
 		header.presentationTimeUs = in.readLong();
 		header.size = in.readInt();
 		header.flags = in.readInt();
-		in.skipBytes(40);	// long x 5
+		header.gapUs = in.readLong();
+		in.skipBytes(32);	// long x 4
 		return header;
 	}
 
@@ -1064,7 +2563,7 @@ public abstract class TLMediaEncoder {
 		final int size = (TextUtils.isEmpty(codec_format_str) ? 0 : codec_format_str.length())
 			+ (TextUtils.isEmpty(output_format_str) ? 0 : output_format_str.length());
 		try {
-			writeHeader(out, 0, 0, -1, size, 0);
+			writeHeader(out, 0, 0, -1, size, 0, 0);
 			out.writeUTF(codec_format_str);
 			out.writeUTF(output_format_str);
 		} catch (IOException e) {
@@ -1092,13 +2591,14 @@ public abstract class TLMediaEncoder {
 	 * @param sequence
 	 * @param frame_number
 	 * @param info
+	 * @param gap_us
 	 * @param buffer
 	 * @param writeBuffer
 	 * @throws IOException
 	 */
 	private static final void writeStream(final DataOutputStream out,
 		final int sequence, final int frame_number,
-		final MediaCodec.BufferInfo info,
+		final MediaCodec.BufferInfo info, final long gap_us,
 		final ByteBuffer buffer, byte[] writeBuffer) throws IOException {
 
 		if (writeBuffer.length < info.size) {
@@ -1107,7 +2607,7 @@ public abstract class TLMediaEncoder {
 		buffer.position(info.offset);
 		buffer.get(writeBuffer, 0, info.size);
 		try {
-			writeHeader(out, sequence, frame_number, info.presentationTimeUs, info.size, info.flags);
+			writeHeader(out, sequence, frame_number, info.presentationTimeUs, info.size, info.flags, gap_us);
 			out.write(writeBuffer, 0, info.size);
 		} catch (IOException e) {
 			if (DEBUG) Log.e(TAG_STATIC, "writeStream:", e);
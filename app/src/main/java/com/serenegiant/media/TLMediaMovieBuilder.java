@@ -25,13 +25,17 @@ package com.serenegiant.media;
 */
 
 import android.content.Context;
+import android.media.AudioFormat;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.os.Environment;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.serenegiant.utils.LatencyStats;
+
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
@@ -48,11 +52,39 @@ public class TLMediaMovieBuilder {
 	private static final String TAG = "TLMediaMovieBuilder";
 
 	private static final long MSEC30US = 1000000 / 30;
+	private static final int AAC_SAMPLES_PER_FRAME = 1024;
+	private static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";
+	private static final long TIMEOUT_USEC = 10000;	// 10[msec]
 	private static String DIR_NAME = "TimeLapseRecordingSample";
 
+	/**
+	 * keep gaps of skipped silent audio on the timeline, audio keeps sync with video
+	 * and the gaps are played as silence
+	 */
+	public static final int AUDIO_GAP_KEEP = 0;
+	/**
+	 * remove gaps of skipped silent audio by shifting following audio frames,
+	 * audio becomes continuous but does not keep sync with video
+	 */
+	public static final int AUDIO_GAP_SHIFT = 1;
+
 	private final File mBaseDir;
 	private String mOutputPath;
 	private MuxerTask mMuxerTask;
+	/**
+	 * future of stopping encoders that #buildAfter is waiting for
+	 */
+	private EncoderFuture mWaitingFuture;
+	private int mAudioGapMode = AUDIO_GAP_KEEP;
+	/**
+	 * time to build movie file
+	 */
+	private final LatencyStats mBuildStats = new LatencyStats("build");
+	/**
+	 * time to encode raw PCM that was recorded with deferred encoding,
+	 * this runs in parallel with remuxing video
+	 */
+	private final LatencyStats mAudioEncodeStats = new LatencyStats("build-audio-encode");
 
 	public interface TLMediaMovieBuilderCallback {
 		/**
@@ -106,6 +138,24 @@ public class TLMediaMovieBuilder {
 		mOutputPath = path;
 	}
 
+	/**
+	 * set how to handle gaps of audio that were skipped by SilenceGate, should be called before #build
+	 * @param mode AUDIO_GAP_KEEP or AUDIO_GAP_SHIFT
+	 */
+	public void setAudioGapMode(final int mode) {
+		if ((mode != AUDIO_GAP_KEEP) && (mode != AUDIO_GAP_SHIFT))
+			throw new IllegalArgumentException("unknown mode:" + mode);
+		mAudioGapMode = mode;
+	}
+
+	public LatencyStats getBuildStats() {
+		return mBuildStats;
+	}
+
+	public LatencyStats getAudioEncodeStats() {
+		return mAudioEncodeStats;
+	}
+
 	/**
 	 * build movie file from intermediate file.
 	 * this method is executed asynchronously.
@@ -117,7 +167,36 @@ public class TLMediaMovieBuilder {
 		mMuxerTask.start();
 	}
 
+	/**
+	 * build movie file after the future completes,
+	 * usually the future is returned from TLMediaEncoder#stopAsync or TLMediaSession#stopAsync
+	 * so that building starts just after all intermediate files are closed.
+	 * this method never blocks caller thread.
+	 * @param stopped
+	 * @param callback
+	 */
+	public synchronized void buildAfter(final EncoderFuture stopped, final TLMediaMovieBuilderCallback callback) {
+		if (DEBUG) Log.v(TAG, "buildAfter:");
+		cancel();
+		mWaitingFuture = stopped;
+		stopped.addCallback(new EncoderFuture.Callback() {
+			@Override
+			public void onComplete(final EncoderFuture future) {
+				if (future.getException() != null) {
+					// intermediate files are already closed even if encoder failed, so try to build
+					Log.w(TAG, "buildAfter:", future.getException());
+				}
+				synchronized (TLMediaMovieBuilder.this) {
+					if (mWaitingFuture != future) return;	// canceled
+					mWaitingFuture = null;
+					build(callback);
+				}
+			}
+		});
+	}
+
 	public synchronized void cancel() {
+		mWaitingFuture = null;
 		if (mMuxerTask != null) {
 			mMuxerTask.cancel();
 		}
@@ -165,6 +244,9 @@ public class TLMediaMovieBuilder {
 		private final File mMovieDir;
 		private final TLMediaMovieBuilderCallback mCallback;
 		private final String mMuxerFilePath;
+		private final int mAudioGapMode;
+		private final LatencyStats mBuildStats;
+		private final LatencyStats mAudioEncodeStats;
 
 		private volatile boolean mIsRunning = true;
 
@@ -174,6 +256,9 @@ public class TLMediaMovieBuilder {
 			mMovieDir = builder.mBaseDir;
 			mCallback = callback;
 			mMuxerFilePath = builder.mOutputPath;
+			mAudioGapMode = builder.mAudioGapMode;
+			mBuildStats = builder.mBuildStats;
+			mAudioEncodeStats = builder.mAudioEncodeStats;
 		}
 
 		public void cancel() {
@@ -183,13 +268,16 @@ public class TLMediaMovieBuilder {
 		@Override
 		public void run() {
 			if (DEBUG) Log.v(TAG, "MuxerTask#run");
+			final long startNs = System.nanoTime();
 			boolean isMuxerStarted = false;
  			try {
 				final MediaMuxer muxer = new MediaMuxer(mMuxerFilePath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+				AudioTranscoder transcoder = null;
 				if (muxer != null)
 				try {
 					int videoTrack = -1;
 					int audioTrack = -1;
+					long audioFrameUs = MSEC30US;
 					final DataInputStream videoIn = TLMediaEncoder.openInputStream(mMovieDir, TLMediaEncoder.TYPE_VIDEO, 0);
 					if (videoIn != null) {
 						final MediaFormat format = TLMediaEncoder.readFormat(videoIn);
@@ -201,12 +289,27 @@ public class TLMediaMovieBuilder {
 					final DataInputStream audioIn = TLMediaEncoder.openInputStream(mMovieDir, TLMediaEncoder.TYPE_AUDIO, 0);
 					if (audioIn != null) {
 						final MediaFormat format = TLMediaEncoder.readFormat(audioIn);
-						if (format != null) {
+						if ((format != null) && PcmPassthroughBackend.MIME_TYPE.equals(format.getString(MediaFormat.KEY_MIME))) {
+							// raw PCM that was recorded with deferred encoding,
+							// encoder should be started here because track format is determined by it
+							transcoder = new AudioTranscoder(this, muxer, audioIn, format);
+							final MediaFormat encoded = transcoder.prepare();
+							if (encoded != null) {
+								transcoder.setTrack(muxer.addTrack(encoded));
+								if (DEBUG) Log.v(TAG, "found raw audio data:format=" + encoded);
+							} else {
+								transcoder.release();
+								transcoder = null;
+							}
+						} else if (format != null) {
 							audioTrack = muxer.addTrack(format);
+							if (format.containsKey(MediaFormat.KEY_SAMPLE_RATE)) {
+								audioFrameUs = AAC_SAMPLES_PER_FRAME * 1000000L / format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+							}
 							if (DEBUG) Log.v(TAG, "found audio data:format=" + format + "track=" + audioTrack);
 						}
 					}
-					if ((videoTrack >= 0) || (audioTrack >= 0)) {
+					if ((videoTrack >= 0) || (audioTrack >= 0) || (transcoder != null)) {
 						if (DEBUG) Log.v(TAG, "start muxing");
 						ByteBuffer videoBuf = null;
 						MediaCodec.BufferInfo videoBufInfo = null;
@@ -224,23 +327,23 @@ public class TLMediaMovieBuilder {
 						}
 						final byte[] readBuf = new byte[64 * 1024];
 						isMuxerStarted = true;
-						int videoSequence = 0;
-						int audioSequence = 0;
-						long videoTimeOffset = -1, videoPresentationTimeUs = -MSEC30US;
-						long audioTimeOffset = -1, audioPresentationTimeUs = -MSEC30US;
+						final Timeline videoTimeline = new Timeline(false);
+						final Timeline audioTimeline = new Timeline(mAudioGapMode == AUDIO_GAP_SHIFT);
 						muxer.start();
+						if (transcoder != null) {
+							// encode audio on another thread in parallel with remuxing video
+							transcoder.start();
+						}
 						for (; mIsRunning && ((videoTrack >= 0) || (audioTrack >= 0)); ) {
 							if (videoTrack >= 0) {
 								try {
 									videoBuf = TLMediaEncoder.readStream(videoIn, videoFrameHeader, videoBuf, readBuf);
 									videoFrameHeader.asBufferInfo(videoBufInfo);
-									if (videoSequence !=  videoFrameHeader.sequence) {
-										videoSequence = videoFrameHeader.sequence;
-										videoTimeOffset = videoPresentationTimeUs - videoBufInfo.presentationTimeUs + MSEC30US;
+									videoBufInfo.presentationTimeUs = videoTimeline.adjust(videoFrameHeader);
+									synchronized (muxer) {
+										muxer.writeSampleData(videoTrack, videoBuf, videoBufInfo);
 									}
-									videoBufInfo.presentationTimeUs += videoTimeOffset;
-									muxer.writeSampleData(videoTrack, videoBuf, videoBufInfo);
-									videoPresentationTimeUs = videoBufInfo.presentationTimeUs;
+									videoTimeline.written(videoBufInfo.presentationTimeUs, MSEC30US);
 								} catch (IllegalArgumentException e) {
 									if (DEBUG) Log.d(TAG, String.format("MuxerTask(video):size=%d,presentationTimeUs=%d,",
 										videoBufInfo.size, videoBufInfo.presentationTimeUs) + videoFrameHeader, e);
@@ -253,13 +356,11 @@ public class TLMediaMovieBuilder {
 								try {
 									audioBuf = TLMediaEncoder.readStream(audioIn, audioFrameHeader, audioBuf, readBuf);
 									audioFrameHeader.asBufferInfo(audioBufInfo);
-									if (audioSequence !=  audioFrameHeader.sequence) {
-										audioSequence = audioFrameHeader.sequence;
-										audioTimeOffset = audioPresentationTimeUs - audioBufInfo.presentationTimeUs + MSEC30US;
+									audioBufInfo.presentationTimeUs = audioTimeline.adjust(audioFrameHeader);
+									synchronized (muxer) {
+										muxer.writeSampleData(audioTrack, audioBuf, audioBufInfo);
 									}
-									audioBufInfo.presentationTimeUs += audioTimeOffset;
-									muxer.writeSampleData(audioTrack, audioBuf, audioBufInfo);
-									audioPresentationTimeUs = audioBufInfo.presentationTimeUs;
+									audioTimeline.written(audioBufInfo.presentationTimeUs, audioFrameUs);
 								} catch (IllegalArgumentException e) {
 									if (DEBUG) Log.d(TAG, String.format("MuxerTask(audio):size=%d,presentationTimeUs=%d,",
 										audioBufInfo.size, audioBufInfo.presentationTimeUs) + audioFrameHeader, e);
@@ -269,7 +370,11 @@ public class TLMediaMovieBuilder {
 								}
 							}
 						}
+						if (transcoder != null) {
+							transcoder.join();
+						}
 						muxer.stop();
+						mBuildStats.addSince(startNs);
 					}
 					if (videoIn != null) {
 						videoIn.close();
@@ -278,6 +383,9 @@ public class TLMediaMovieBuilder {
 						audioIn.close();
 					}
 				} finally {
+					if (transcoder != null) {
+						transcoder.release();
+					}
 					muxer.release();
 				}
 			} catch (Exception e) {
@@ -300,4 +408,245 @@ public class TLMediaMovieBuilder {
 			}
 		}
 	}
+
+	/**
+	 * adjust presentation time of frames in intermediate file
+	 * so that each sequence continues just after previous sequence
+	 */
+	private static final class Timeline {
+		private final boolean mShiftGap;
+		private int mSequence;
+		private long mTimeOffset = -1;
+		private long mPresentationTimeUs = -MSEC30US;
+		private long mDurationUs = MSEC30US;
+
+		/**
+		 * @param shift_gap true if gaps of skipped silence are removed from the timeline
+		 */
+		private Timeline(final boolean shift_gap) {
+			mShiftGap = shift_gap;
+		}
+
+		/**
+		 * @param header
+		 * @return adjusted presentation time of the frame
+		 */
+		private long adjust(final TLMediaEncoder.TLMediaFrameHeader header) {
+			if (mSequence != header.sequence) {
+				mSequence = header.sequence;
+				mTimeOffset = mPresentationTimeUs - header.presentationTimeUs + MSEC30US;
+			} else if (mShiftGap && (header.gapUs > 0)) {
+				// remove skipped silence from the timeline,
+				// but do not overlap with previous frame
+				final long room = header.presentationTimeUs + mTimeOffset
+					- mPresentationTimeUs - mDurationUs;
+				mTimeOffset -= Math.max(0, Math.min(header.gapUs, room));
+			}
+			return header.presentationTimeUs + mTimeOffset;
+		}
+
+		/**
+		 * set adjusted presentation time and duration of the frame that was written actually
+		 * @param presentationTimeUs
+		 * @param duration_us
+		 */
+		private void written(final long presentationTimeUs, final long duration_us) {
+			mPresentationTimeUs = presentationTimeUs;
+			mDurationUs = duration_us;
+		}
+	}
+
+	/**
+	 * encode raw PCM in intermediate file(recorded with deferred encoding) into AAC
+	 * and write it to the muxer on private thread
+	 */
+	private static final class AudioTranscoder extends Thread {
+		private final MuxerTask mTask;
+		private final MediaMuxer mMuxer;
+		private final DataInputStream mIn;
+		private final int mSampleRate;
+		private final int mChannelCount;
+		private final int mBitRate;
+		private final Timeline mTimeline;
+		private final TLMediaEncoder.TLMediaFrameHeader mHeader = new TLMediaEncoder.TLMediaFrameHeader();
+		private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+		private final byte[] mReadBuf = new byte[64 * 1024];
+		private EncoderBackend mCodec;
+		private MediaFormat mOutputFormat;
+		private int mTrack = -1;
+		/**
+		 * PCM record that is reading from intermediate file, remaining data is not queued yet
+		 */
+		private ByteBuffer mPcm;
+		private long mPresentationTimeUs;
+		private boolean mInputEOS, mOutputEOS;
+		private volatile boolean mCanceled;
+
+		private AudioTranscoder(final MuxerTask task, final MediaMuxer muxer,
+			final DataInputStream in, final MediaFormat raw_format) {
+
+			super(TAG + "-audio");
+			mTask = task;
+			mMuxer = muxer;
+			mIn = in;
+			mSampleRate = raw_format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+			mChannelCount = raw_format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+			mBitRate = raw_format.containsKey(MediaFormat.KEY_BIT_RATE)
+				? raw_format.getInteger(MediaFormat.KEY_BIT_RATE) : 64000;
+			mTimeline = new Timeline(task.mAudioGapMode == AUDIO_GAP_SHIFT);
+		}
+
+		/**
+		 * create and start AAC encoder and feed PCM until output format is determined,
+		 * encoded data is not written until #setTrack is called
+		 * @return output format of the encoder, null if no PCM data
+		 * @throws IOException
+		 */
+		private MediaFormat prepare() throws IOException {
+			final MediaFormat format = MediaFormat.createAudioFormat(AUDIO_MIME_TYPE, mSampleRate, mChannelCount);
+			format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+			format.setInteger(MediaFormat.KEY_CHANNEL_MASK,
+				mChannelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO);
+			format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+			format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, mChannelCount);
+			mCodec = MediaCodecBackend.FACTORY.create(AUDIO_MIME_TYPE);
+			mCodec.configure(format, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			mCodec.start();
+			// INFO_OUTPUT_FORMAT_CHANGED comes before any encoded frame
+			while (mTask.mIsRunning && (mOutputFormat == null) && !mOutputEOS) {
+				feed();
+				drain();
+			}
+			return mOutputFormat;
+		}
+
+		private void setTrack(final int track) {
+			mTrack = track;
+		}
+
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "AudioTranscoder#run");
+			final long startNs = System.nanoTime();
+			try {
+				while (mTask.mIsRunning && !mCanceled && !mOutputEOS) {
+					feed();
+					drain();
+				}
+				if (mOutputEOS) {
+					mTask.mAudioEncodeStats.addSince(startNs);
+				}
+			} catch (Exception e) {
+				// video is still available even if audio failed
+				Log.w(TAG, "AudioTranscoder:", e);
+			}
+			releaseCodec();
+			if (DEBUG) Log.v(TAG, "AudioTranscoder#finished");
+		}
+
+		/**
+		 * release the encoder, if the thread is running, cancel and wait for it finishes
+		 */
+		private void release() {
+			if (isAlive()) {
+				mCanceled = true;
+				try {
+					join();
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			} else {
+				releaseCodec();
+			}
+		}
+
+		private synchronized void releaseCodec() {
+			if (mCodec != null) {
+				try {
+					mCodec.stop();
+				} catch (Exception e) {
+					// ignore
+				}
+				mCodec.release();
+				mCodec = null;
+			}
+		}
+
+		/**
+		 * read next PCM record from intermediate file
+		 * @return false if no more record
+		 */
+		private boolean readRecord() {
+			for ( ; ; ) {
+				try {
+					mPcm = TLMediaEncoder.readStream(mIn, mHeader, mPcm, mReadBuf);
+				} catch (IllegalArgumentException e) {
+					return false;
+				} catch (IOException e) {
+					return false;
+				}
+				if (mHeader.size <= 0) continue;
+				mPresentationTimeUs = mTimeline.adjust(mHeader);
+				mTimeline.written(mPresentationTimeUs, toDurationUs(mHeader.size));
+				return true;
+			}
+		}
+
+		/**
+		 * queue PCM data into the encoder, large record is split into multiple input buffers
+		 */
+		private void feed() {
+			if (mInputEOS) return;
+			if (((mPcm == null) || !mPcm.hasRemaining()) && !readRecord()) {
+				final int index = mCodec.dequeueInputBuffer(TIMEOUT_USEC);
+				if (index >= 0) {
+					mCodec.queueInputBuffer(index, 0, 0, mPresentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+					mInputEOS = true;
+				}
+				return;
+			}
+			final int index = mCodec.dequeueInputBuffer(TIMEOUT_USEC);
+			if (index < 0) return;
+			final ByteBuffer buffer = mCodec.getInputBuffer(index);
+			buffer.clear();
+			final int size = Math.min(buffer.remaining(), mPcm.remaining());
+			final int limit = mPcm.limit();
+			mPcm.limit(mPcm.position() + size);
+			buffer.put(mPcm);
+			mPcm.limit(limit);
+			mCodec.queueInputBuffer(index, 0, size, mPresentationTimeUs, 0);
+			mPresentationTimeUs += toDurationUs(size);
+		}
+
+		/**
+		 * dequeue encoded data and write it into the muxer
+		 */
+		private void drain() {
+			final int index = mCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+			if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+				mOutputFormat = mCodec.getOutputFormat();
+			} else if (index >= 0) {
+				if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+					// codec specific data is already in the output format
+					mBufferInfo.size = 0;
+				}
+				if ((mBufferInfo.size > 0) && (mTrack >= 0)) {
+					final ByteBuffer buffer = mCodec.getOutputBuffer(index);
+					buffer.position(mBufferInfo.offset);
+					buffer.limit(mBufferInfo.offset + mBufferInfo.size);
+					synchronized (mMuxer) {
+						mMuxer.writeSampleData(mTrack, buffer, mBufferInfo);
+					}
+				}
+				mCodec.releaseOutputBuffer(index);
+				if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+					mOutputEOS = true;
+				}
+			}
+		}
+
+		private long toDurationUs(final int bytes) {
+			return bytes * 1000000L / (mSampleRate * mChannelCount * 2);
+		}
+	}
 }
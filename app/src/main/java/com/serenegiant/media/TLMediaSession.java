@@ -0,0 +1,212 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: TLMediaSession.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.util.Log;
+
+import com.serenegiant.utils.LatencyStats;
+
+/**
+ * Helper class to control encoders of all tracks(usually video and audio) of one recording together.
+ * All requests are issued to each encoder without waiting, so encoders prepare/start/stop in parallel
+ * on their own thread(or shared executor) and returned future completes when all encoders completed.
+ */
+public final class TLMediaSession {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "TLMediaSession";
+
+	private final TLMediaEncoder[] mEncoders;
+	/**
+	 * time from #prepareAsync to all encoders prepared
+	 */
+	private final LatencyStats mPrepareStats = new LatencyStats("session-prepare");
+	/**
+	 * time from #startAsync/#resumeAsync to all encoders became requested state
+	 */
+	private final LatencyStats mStartStats = new LatencyStats("session-start");
+	/**
+	 * time from #stopAsync to all encoders released
+	 */
+	private final LatencyStats mStopStats = new LatencyStats("session-stop");
+
+	/**
+	 * Constructor
+	 * @param encoders null is just ignored so that caller can pass encoders that failed to create
+	 */
+	public TLMediaSession(final TLMediaEncoder... encoders) {
+		int n = 0;
+		for (final TLMediaEncoder encoder: encoders) {
+			if (encoder != null) n++;
+		}
+		mEncoders = new TLMediaEncoder[n];
+		n = 0;
+		for (final TLMediaEncoder encoder: encoders) {
+			if (encoder != null) mEncoders[n++] = encoder;
+		}
+	}
+
+	public TLMediaEncoder[] getEncoders() {
+		return mEncoders.clone();
+	}
+
+	public LatencyStats getPrepareStats() {
+		return mPrepareStats;
+	}
+
+	public LatencyStats getStartStats() {
+		return mStartStats;
+	}
+
+	public LatencyStats getStopStats() {
+		return mStopStats;
+	}
+
+	/**
+	 * prepare all encoders in parallel
+	 * @return future that completes when all encoders are prepared or any of them failed
+	 */
+	public EncoderFuture prepareAsync() {
+		if (DEBUG) Log.v(TAG, "prepareAsync:");
+		final EncoderFuture[] futures = new EncoderFuture[mEncoders.length];
+		for (int i = 0; i < mEncoders.length; i++) {
+			futures[i] = mEncoders[i].prepareAsync();
+		}
+		return measure(EncoderFuture.allOf(futures), mPrepareStats);
+	}
+
+	/**
+	 * start all encoders
+	 * @param pauseAfterStarted
+	 * @return future that completes when all encoders are paused/running or any of them failed
+	 */
+	public EncoderFuture startAsync(final boolean pauseAfterStarted) {
+		if (DEBUG) Log.v(TAG, "startAsync:pauseAfterStarted=" + pauseAfterStarted);
+		final EncoderFuture[] futures = new EncoderFuture[mEncoders.length];
+		for (int i = 0; i < mEncoders.length; i++) {
+			futures[i] = mEncoders[i].startAsync(pauseAfterStarted);
+		}
+		return measure(EncoderFuture.allOf(futures), mStartStats);
+	}
+
+	/**
+	 * prepare all encoders in parallel and then start them
+	 * @param pauseAfterStarted
+	 * @return future that completes when all encoders are started or any of them failed
+	 */
+	public EncoderFuture prepareAndStartAsync(final boolean pauseAfterStarted) {
+		final EncoderFuture result = new EncoderFuture(null);
+		prepareAsync().addCallback(new EncoderFuture.Callback() {
+			@Override
+			public void onComplete(final EncoderFuture future) {
+				if (future.getException() != null) {
+					result.complete(future.getException());
+					return;
+				}
+				startAsync(pauseAfterStarted).addCallback(new EncoderFuture.Callback() {
+					@Override
+					public void onComplete(final EncoderFuture future) {
+						result.complete(future.getException());
+					}
+				});
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * resume all encoders that are paused
+	 * @return future that completes when all encoders are running or any of them failed
+	 */
+	public EncoderFuture resumeAsync() {
+		if (DEBUG) Log.v(TAG, "resumeAsync:");
+		final EncoderFuture[] futures = new EncoderFuture[mEncoders.length];
+		for (int i = 0; i < mEncoders.length; i++) {
+			futures[i] = mEncoders[i].resumeAsync(-1);
+		}
+		return measure(EncoderFuture.allOf(futures), mStartStats);
+	}
+
+	/**
+	 * pause all encoders
+	 * @return future that completes when all encoders are paused or any of them failed
+	 */
+	public EncoderFuture pauseAsync() {
+		if (DEBUG) Log.v(TAG, "pauseAsync:");
+		final EncoderFuture[] futures = new EncoderFuture[mEncoders.length];
+		for (int i = 0; i < mEncoders.length; i++) {
+			futures[i] = mEncoders[i].pauseAsync();
+		}
+		return EncoderFuture.allOf(futures);
+	}
+
+	/**
+	 * stop and release all encoders
+	 * @return future that completes when all encoders released their resources
+	 */
+	public EncoderFuture stopAsync() {
+		return stopAsync(TLMediaEncoder.DEFAULT_STOP_TIMEOUT_MS);
+	}
+
+	/**
+	 * stop and release all encoders with specific deadline
+	 * @param timeout_ms maximum duration for sending EOS and draining on each encoder[milliseconds]
+	 * @return future that completes when all encoders released their resources
+	 */
+	public EncoderFuture stopAsync(final long timeout_ms) {
+		if (DEBUG) Log.v(TAG, "stopAsync:timeout=" + timeout_ms);
+		final EncoderFuture[] futures = new EncoderFuture[mEncoders.length];
+		for (int i = 0; i < mEncoders.length; i++) {
+			futures[i] = mEncoders[i].stopAsync(timeout_ms);
+		}
+		return measure(EncoderFuture.allOf(futures), mStopStats);
+	}
+
+	/**
+	 * reset all encoders for next recording session into another intermediate directory,
+	 * encoders keep their thread and reusable resources, see TLMediaEncoder#resetAsync
+	 * @param movie_name directory name for intermediate files of next session
+	 * @return future that completes when all encoders became initialized state
+	 */
+	public EncoderFuture resetAsync(final String movie_name) {
+		if (DEBUG) Log.v(TAG, "resetAsync:" + movie_name);
+		final EncoderFuture[] futures = new EncoderFuture[mEncoders.length];
+		for (int i = 0; i < mEncoders.length; i++) {
+			futures[i] = mEncoders[i].resetAsync(movie_name);
+		}
+		return EncoderFuture.allOf(futures);
+	}
+
+	private static EncoderFuture measure(final EncoderFuture future, final LatencyStats stats) {
+		final long startNs = System.nanoTime();
+		return future.addCallback(new EncoderFuture.Callback() {
+			@Override
+			public void onComplete(final EncoderFuture future) {
+				if (future.isSuccess()) {
+					stats.addSince(startNs);
+				}
+			}
+		});
+	}
+}
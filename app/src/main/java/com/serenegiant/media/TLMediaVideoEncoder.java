@@ -27,13 +27,14 @@ package com.serenegiant.media;
 import android.content.Context;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.opengl.EGLContext;
 import android.util.Log;
 import android.view.Surface;
 
+import com.serenegiant.glutils.RenderFanout;
 import com.serenegiant.glutils.RenderHandler;
+import com.serenegiant.utils.LatencyStats;
 
 import java.io.IOException;
 
@@ -51,6 +52,10 @@ public class TLMediaVideoEncoder extends TLMediaEncoder {
     private static final float DEFAULT_BPP = 0.25f;
     private static final int DEFAULT_IFRAME_INTERVALS = 2;
     private static final int MAX_BITRATE = 17825792;	// 17Mbps
+    /**
+     * maximum number of pending draw requests to the input Surface of encoder
+     */
+    private static final int MAX_PENDING_FRAMES = 2;
 
     private int mWidth = DEFAULT_VIDEO_WIDTH;
     private int mHeight = DEFAULT_VIDEO_HEIGHT;
@@ -58,8 +63,21 @@ public class TLMediaVideoEncoder extends TLMediaEncoder {
     private int mBitRate = -1;
     private int mIFrameIntervals = DEFAULT_IFRAME_INTERVALS;
 
+	/**
+	 * RenderHandler that draws into the input Surface, this is created on #setEglContext
+	 * so that it is not created when drawing through RenderFanout, guarded by mRenderSync
+	 */
+	private final Object mRenderSync = new Object();
 	private RenderHandler mRenderHandler;
+	private int mRenderPolicy = RenderHandler.POLICY_BLOCK;
+	private long mRenderMaxBlockMs = DEFAULT_MAX_BLOCK_MS;
     private Surface mSurface;
+    /**
+     * RenderFanout that draws into the input Surface instead of mRenderHandler, guarded by mFanoutSync
+     */
+    private final Object mFanoutSync = new Object();
+    private RenderFanout mFanout;
+    private RenderFanout.Target mFanoutTarget;
 
 	/**
 	 * Constructor
@@ -70,9 +88,66 @@ public class TLMediaVideoEncoder extends TLMediaEncoder {
 	public TLMediaVideoEncoder(final Context context,
 		final String base_path, final MediaEncoderListener listener) {
 
-		super(context, base_path, 0, listener);
+		this(context, base_path, listener, null);
+	}
+
+	/**
+	 * Constructor
+	 * @param context
+	 * @param base_path
+	 * @param listener
+	 * @param executor shared executor to run this encoder, if null, this encoder creates private thread
+	 */
+	public TLMediaVideoEncoder(final Context context,
+		final String base_path, final MediaEncoderListener listener, final EncoderExecutor executor) {
+
+		super(context, base_path, 0, listener, executor);
 		if (DEBUG) Log.i(TAG, "TLMediaVideoEncoder: ");
-		mRenderHandler = RenderHandler.createHandler(TAG);
+		// camera preview should not wait for encoder, just draw the newest frame
+		setBackpressurePolicy(BACKPRESSURE_DROP_OLDEST, DEFAULT_MAX_BLOCK_MS);
+	}
+
+	/**
+	 * set how frames are handled when the encoder falls behind.
+	 * on video encoder, pending draw requests to the input Surface are limited to MAX_PENDING_FRAMES
+	 */
+	@Override
+	public void setBackpressurePolicy(final int policy, final long max_block_ms) {
+		super.setBackpressurePolicy(policy, max_block_ms);
+		final int render_policy;
+		switch (policy) {
+		case BACKPRESSURE_DROP_OLDEST:
+			render_policy = RenderHandler.POLICY_DROP_OLDEST;
+			break;
+		case BACKPRESSURE_DROP_NEWEST:
+			render_policy = RenderHandler.POLICY_DROP_NEWEST;
+			break;
+		default:
+			render_policy = RenderHandler.POLICY_BLOCK;
+			break;
+		}
+		synchronized (mRenderSync) {
+			mRenderPolicy = render_policy;
+			mRenderMaxBlockMs = max_block_ms;
+			if (mRenderHandler != null) {
+				mRenderHandler.setBackpressurePolicy(render_policy, MAX_PENDING_FRAMES, max_block_ms);
+			}
+		}
+	}
+
+	@Override
+	public long getDroppedFrameCount() {
+		final RenderHandler handler = getRenderHandler();
+		return super.getDroppedFrameCount() + (handler != null ? handler.getDroppedFrameCount() : 0);
+	}
+
+	/**
+	 * video frames are input through Surface, so this returns waiting time in drawing request
+	 */
+	@Override
+	public LatencyStats getInputBlockedStats() {
+		final RenderHandler handler = getRenderHandler();
+		return handler != null ? handler.getBlockedStats() : super.getInputBlockedStats();
 	}
 
 	/**
@@ -86,16 +161,35 @@ public class TLMediaVideoEncoder extends TLMediaEncoder {
 
 	public boolean frameAvailableSoon(final float[] tex_matrix) {
 		boolean result;
-		if (result = super.frameAvailableSoon())
-			mRenderHandler.draw(tex_matrix);
+		if (result = super.frameAvailableSoon()) {
+			final RenderHandler handler = getRenderHandler();
+			if (handler != null) handler.draw(tex_matrix);
+		}
+		return result;
+	}
+
+	/**
+	 * @param tex_matrix
+	 * @param timestamp_ns capture time of the frame, usually SurfaceTexture#getTimestamp.
+	 * 	this is used as presentationTimeUs of the encoded frame instead of the time when it is drained
+	 * @return
+	 */
+	public boolean frameAvailableSoon(final float[] tex_matrix, final long timestamp_ns) {
+		boolean result;
+		if (result = super.frameAvailableSoon()) {
+			final RenderHandler handler = getRenderHandler();
+			if (handler != null) handler.draw(tex_matrix, timestamp_ns);
+		}
 		return result;
 	}
 
 	@Override
 	public boolean frameAvailableSoon() {
 		boolean result;
-		if (result = super.frameAvailableSoon())
-			mRenderHandler.draw(null);
+		if (result = super.frameAvailableSoon()) {
+			final RenderHandler handler = getRenderHandler();
+			if (handler != null) handler.draw(null);
+		}
 		return result;
 	}
 
@@ -157,12 +251,12 @@ public class TLMediaVideoEncoder extends TLMediaEncoder {
 	protected MediaFormat internal_prepare() throws IOException {
 		if (DEBUG) Log.i(TAG, "internal_prepare: ");
 
-        final MediaCodecInfo videoCodecInfo = selectVideoCodec(MIME_TYPE);
-        if (videoCodecInfo == null) {
+        final String codecName = getBackendFactory().selectCodec(MIME_TYPE, true);
+        if (codecName == null) {
             Log.e(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
             return null;
         }
-		if (DEBUG) Log.i(TAG, "selected codec: " + videoCodecInfo.getName());
+		if (DEBUG) Log.i(TAG, "selected codec: " + codecName);
 
         final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
         if (DEBUG) Log.i(TAG, "prepare finishing:format=" + format);
@@ -170,7 +264,7 @@ public class TLMediaVideoEncoder extends TLMediaEncoder {
 	}
 
 	@Override
-	protected MediaCodec internal_configure(MediaCodec previous_codec,
+	protected EncoderBackend internal_configure(EncoderBackend previous_codec,
 		final MediaFormat format) throws IOException {
 
 		if (DEBUG) Log.v(TAG, "internal_configure:");
@@ -181,27 +275,120 @@ public class TLMediaVideoEncoder extends TLMediaEncoder {
 		if (DEBUG) Log.i(TAG, "format: " + format);
 
 		if (previous_codec == null)
-			previous_codec = MediaCodec.createEncoderByType(MIME_TYPE);
-		previous_codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			previous_codec = createBackend(MIME_TYPE);
+		previous_codec.configure(format, MediaCodec.CONFIGURE_FLAG_ENCODE);
 		mSurface = previous_codec.createInputSurface();	// API >= 18
 		return previous_codec;
 	}
 
+	/**
+	 * input is from Surface, so send EOS through the codec instead of empty input buffer
+	 */
+	@Override
+	protected void signalEndOfInputStream() {
+		signalEndOfInputSurface();
+	}
+
+	/**
+	 * presentationTimeUs of frames from input Surface is the presentation time of EGL surface,
+	 * that is capture time if it is passed to #frameAvailableSoon otherwise the time when drawing
+	 */
+	@Override
+	protected boolean useInputPTS() {
+		return true;
+	}
+
+	@Override
+	protected long convertInputPTS(final long presentationTimeUs) {
+		return toPTSUs(presentationTimeUs * 1000L);
+	}
+
 	public void setEglContext(EGLContext shared_context, int tex_id) {
-		mRenderHandler.setEglContext(shared_context, tex_id, mSurface, true);
+		final RenderHandler handler;
+		synchronized (mRenderSync) {
+			if (mRenderHandler == null) {
+				mRenderHandler = RenderHandler.createHandler(TAG);
+				mRenderHandler.setBackpressurePolicy(mRenderPolicy, MAX_PENDING_FRAMES, mRenderMaxBlockMs);
+			}
+			handler = mRenderHandler;
+		}
+		handler.setEglContext(shared_context, tex_id, mSurface, true);
+	}
+
+	/**
+	 * @return null if #setEglContext is not called yet or this encoder is already released
+	 */
+	private RenderHandler getRenderHandler() {
+		synchronized (mRenderSync) {
+			return mRenderHandler;
+		}
+	}
+
+	/**
+	 * draw frames into the input Surface through RenderFanout instead of private RenderHandler.
+	 * frames are drawn only while this encoder is capturing, so #frameAvailableSoon is not necessary.
+	 * this should be called after #prepare
+	 * @param fanout
+	 * @param max_fps maximum frame rate, zero or negative value means drawing all frames
+	 * @return target of this encoder, you can set crop region to it
+	 */
+	public RenderFanout.Target attachFanout(final RenderFanout fanout, final float max_fps) {
+		final Surface surface = getInputSurface();
+		synchronized (mFanoutSync) {
+			detachFanout();
+			final RenderFanout.Target target = new RenderFanout.Target(surface, new RenderFanout.Callback() {
+				@Override
+				public boolean onFrameAvailable(final RenderFanout.Target target, final long timestamp_ns) {
+					return TLMediaVideoEncoder.super.frameAvailableSoon();
+				}
+			});
+			target.setMaxFrameRate(max_fps);
+			fanout.addTarget(target);
+			mFanout = fanout;
+			mFanoutTarget = target;
+			return target;
+		}
+	}
+
+	/**
+	 * stop drawing through RenderFanout, this returns after EGL Surface on the input Surface is released
+	 */
+	public void detachFanout() {
+		synchronized (mFanoutSync) {
+			if (mFanout != null) {
+				mFanout.removeTarget(mFanoutTarget);
+				mFanout = null;
+				mFanoutTarget = null;
+			}
+		}
+	}
+
+	/**
+	 * @return null if this encoder is not attached to RenderFanout
+	 */
+	public RenderFanout.Target getFanoutTarget() {
+		synchronized (mFanoutSync) {
+			return mFanoutTarget;
+		}
 	}
 
 	@Override
     protected void internal_release() {
 		if (DEBUG) Log.i(TAG, "internal_release: ");
+		// EGL Surface on the input Surface should be released before releasing the input Surface
+		detachFanout();
 		if (mSurface != null) {
 			mSurface.release();
 			mSurface = null;
 		}
-		if (mRenderHandler != null) {
-			mRenderHandler.release();
+		final RenderHandler handler;
+		synchronized (mRenderSync) {
+			handler = mRenderHandler;
 			mRenderHandler = null;
 		}
+		if (handler != null) {
+			handler.release();
+		}
 		super.internal_release();
 	}
 
@@ -215,91 +402,5 @@ public class TLMediaVideoEncoder extends TLMediaEncoder {
 		Log.i(TAG, String.format("bitrate=%5.2f[Mbps]", bitrate / 1024f / 1024f));
 		return bitrate;
 	}
-	
-    /**
-     * select first encoder matched to specific MIME
-     * @param mimeType
-     * @return return null if not found
-     */
-    @SuppressWarnings("deprecation")
-	protected static final MediaCodecInfo selectVideoCodec(final String mimeType) {
-    	if (DEBUG) Log.v(TAG, "selectVideoCodec:");
-
-    	// get the list of available codecs
-        final int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) {
-        	final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-
-            if (!codecInfo.isEncoder()) {	// skipp decoder
-                continue;
-            }
-            // select first codec that match a specific MIME type and color format
-            final String[] types = codecInfo.getSupportedTypes();
-			for (String type : types) {
-				if (type.equalsIgnoreCase(mimeType)) {
-					if (DEBUG) Log.i(TAG, "codec:" + codecInfo.getName() + ",MIME=" + type);
-					int format = selectColorFormat(codecInfo, mimeType);
-					if (format > 0) {
-						return codecInfo;
-					}
-				}
-			}
-        }
-        return null;
-    }
-
-    /**
-     * select color format that the specific codec supports
-     * @return return 0 if not found
-     */
-    protected static final int selectColorFormat(final MediaCodecInfo codecInfo, final String mimeType) {
-		if (DEBUG) Log.i(TAG, "selectColorFormat: ");
-    	int result = 0;
-    	final MediaCodecInfo.CodecCapabilities caps;
-    	try {
-    		Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-    		caps = codecInfo.getCapabilitiesForType(mimeType);
-    	} finally {
-    		Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
-    	}
-        for (int colorFormat: caps.colorFormats) {
-            if (isRecognizedVideoFormat(colorFormat)) {
-           		result = colorFormat;
-                break;
-            }
-        }
-        if (result == 0)
-        	Log.e(TAG, "couldn't find a good color format for " + codecInfo.getName() + " / " + mimeType);
-        return result;
-    }
-
-	/**
-	 * color format values that this class supports(only COLOR_FormatSurface)
-	 */
-    protected static int[] recognizedFormats;
-	static {
-		recognizedFormats = new int[] {
-//        	MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar,
-//        	MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
-//        	MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar,
-        	MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface,
-		};
-	}
-
-	/**
-	 * return whether specific color format can be used on this class
-	 * @param colorFormat
-	 * @return return true if this class supports specific color format
-	 */
-    private static final boolean isRecognizedVideoFormat(final int colorFormat) {
-		if (DEBUG) Log.i(TAG, "isRecognizedVideoFormat:colorFormat=" + colorFormat);
-    	final int n = recognizedFormats != null ? recognizedFormats.length : 0;
-    	for (int i = 0; i < n; i++) {
-    		if (recognizedFormats[i] == colorFormat) {
-    			return true;
-    		}
-    	}
-    	return false;
-    }
 
 }
@@ -0,0 +1,181 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: TimeLapseScheduler.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.util.Log;
+
+import com.serenegiant.utils.LatencyStats;
+
+/**
+ * Interval capture scheduler for time lapse recording.
+ * Each capture resumes the primary encoder with #resume(int) and the secondary encoders with #resume(),
+ * then pauses the secondary encoders after the primary encoder paused itself.
+ * Capture n is scheduled at (start time + n * interval) so that timing error does not accumulate.
+ */
+public final class TimeLapseScheduler extends Thread {
+	private static final boolean DEBUG = false;
+	private static final String TAG = "TimeLapseScheduler";
+
+	/**
+	 * maximum waiting time for the primary encoder to pause itself[milliseconds]
+	 */
+	private static final long PAUSE_TIMEOUT_MS = 5000;
+
+	private final Object mSync = new Object();
+	private final TLMediaEncoder mPrimary;
+	private final TLMediaEncoder[] mSecondaries;
+	private final long mIntervalNs;
+	private final int mNumFrames;
+	/**
+	 * difference between scheduled time and actual resuming time of each capture
+	 */
+	private final LatencyStats mJitterStats = new LatencyStats("capture-jitter");
+	private volatile boolean mIsRunning = true;
+	private volatile int mCaptureCount;
+	private volatile int mSkippedCount;
+
+	/**
+	 * Constructor
+	 * @param interval_ms capture interval[milliseconds]
+	 * @param num_frames number of frames to capture with the primary encoder on each interval
+	 * @param primary encoder that pauses itself after num_frames frames, usually video encoder
+	 * @param secondaries encoders that follow the primary encoder, usually audio encoder, can be empty
+	 */
+	public TimeLapseScheduler(final long interval_ms, final int num_frames,
+		final TLMediaEncoder primary, final TLMediaEncoder... secondaries) {
+
+		super(TAG);
+		if ((interval_ms <= 0) || (num_frames <= 0) || (primary == null))
+			throw new IllegalArgumentException();
+		mIntervalNs = interval_ms * 1000000L;
+		mNumFrames = num_frames;
+		mPrimary = primary;
+		mSecondaries = secondaries != null ? secondaries : new TLMediaEncoder[0];
+	}
+
+	/**
+	 * stop scheduling, encoders are not stopped/released here
+	 */
+	public void cancel() {
+		synchronized (mSync) {
+			mIsRunning = false;
+			mSync.notifyAll();
+		}
+	}
+
+	public LatencyStats getJitterStats() {
+		return mJitterStats;
+	}
+
+	/**
+	 * @return number of captures that were executed
+	 */
+	public int getCaptureCount() {
+		return mCaptureCount;
+	}
+
+	/**
+	 * @return number of scheduled captures that were skipped because previous capture overran
+	 */
+	public int getSkippedCount() {
+		return mSkippedCount;
+	}
+
+	/**
+	 * @return total number of frames written beyond the requested frame count on the primary encoder
+	 */
+	public int getOvershootFrames() {
+		return mPrimary.getOvershootFrames();
+	}
+
+	/**
+	 * @return total number of requested frames that were not written on the primary encoder
+	 */
+	public int getUndershootFrames() {
+		return mPrimary.getUndershootFrames();
+	}
+
+	@Override
+	public void run() {
+		if (DEBUG) Log.v(TAG, "run:interval=" + (mIntervalNs / 1000000L) + "ms,frames=" + mNumFrames);
+		final long startNs = System.nanoTime();
+		long tick = 0;
+		try {
+			for (; mIsRunning ;) {
+				final long scheduledNs = startNs + tick * mIntervalNs;
+				if (!waitUntil(scheduledNs)) break;
+				final long nowNs = System.nanoTime();
+				mJitterStats.add(nowNs - scheduledNs);
+				capture();
+				mCaptureCount++;
+				// skip ticks that already passed instead of capturing in burst
+				final long next = (System.nanoTime() - startNs) / mIntervalNs + 1;
+				if (next > tick + 1) {
+					mSkippedCount += (int)(next - tick - 1);
+				}
+				tick = next;
+			}
+		} catch (final Exception e) {
+			Log.w(TAG, "run:", e);
+		}
+		if (DEBUG) Log.v(TAG, "run:finished," + mJitterStats
+			+ ",captures=" + mCaptureCount + ",skipped=" + mSkippedCount
+			+ ",overshoot=" + getOvershootFrames() + ",undershoot=" + getUndershootFrames());
+	}
+
+	/**
+	 * wait until specific time
+	 * @param time_ns time in System#nanoTime base
+	 * @return false if canceled
+	 */
+	private boolean waitUntil(final long time_ns) {
+		synchronized (mSync) {
+			for (; mIsRunning ;) {
+				final long remain_ns = time_ns - System.nanoTime();
+				if (remain_ns <= 0) break;
+				try {
+					mSync.wait(remain_ns / 1000000L, (int)(remain_ns % 1000000L));
+				} catch (InterruptedException e) {
+					mIsRunning = false;
+				}
+			}
+			return mIsRunning;
+		}
+	}
+
+	private void capture() throws Exception {
+		for (final TLMediaEncoder encoder: mSecondaries) {
+			encoder.resume();
+		}
+		mPrimary.resume(mNumFrames);
+		if (!mPrimary.waitPaused(PAUSE_TIMEOUT_MS)) {
+			Log.w(TAG, "capture:primary encoder did not pause in time");
+			mPrimary.pause();
+		}
+		for (final TLMediaEncoder encoder: mSecondaries) {
+			encoder.pause();
+		}
+	}
+}
@@ -39,9 +39,12 @@ import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.Toast;
 
+import com.serenegiant.glutils.EglPool;
+import com.serenegiant.media.EncoderFuture;
 import com.serenegiant.media.TLMediaAudioEncoder;
 import com.serenegiant.media.TLMediaEncoder;
 import com.serenegiant.media.TLMediaMovieBuilder;
+import com.serenegiant.media.TLMediaSession;
 import com.serenegiant.media.TLMediaVideoEncoder;
 
 import java.io.IOException;
@@ -49,6 +52,10 @@ import java.io.IOException;
 public class CameraFragment extends Fragment {
 	private static final boolean DEBUG = false;	// TODO set false on releasing
 	private static final String TAG = "CameraFragment";
+	/**
+	 * maximum duration for finishing encoders on stopping recording
+	 */
+	private static final long STOP_TIMEOUT_MS = 2000;
 	
 	/**
 	 * for camera preview display
@@ -60,6 +67,7 @@ public class CameraFragment extends Fragment {
 	private ImageButton mRecordButton;
 	private TLMediaVideoEncoder mVideoEncoder;
 	private TLMediaAudioEncoder mAudioEncoder;
+	private TLMediaSession mSession;
 	private TLMediaMovieBuilder mMuxer;
 	private boolean mIsRecording;
 	private String mMovieName;
@@ -143,9 +151,7 @@ public class CameraFragment extends Fragment {
 
 	/**
 	 * start recording
-	 * This is a sample project and call this on UI thread to avoid being complicated
-	 * but basically this should be called on private thread because preparing
-	 * of encoder may be heavy work on some devices
+	 * encoders are prepared in parallel on their own thread, so this does not block UI thread
 	 */
 	private void startRecording() {
 		if (mIsRecording) return;
@@ -156,34 +162,43 @@ public class CameraFragment extends Fragment {
 			if (true) {
 				// for video capturing
 				mVideoEncoder = new TLMediaVideoEncoder(getActivity(), mMovieName, mMediaEncoderListener);
-				try {
-					mVideoEncoder.setFormat(mCameraView.getVideoWidth(), mCameraView.getVideoHeight());
-					mVideoEncoder.prepare();
-				} catch (Exception e) {
-					Log.e(TAG, "startRecording:", e);
-					mVideoEncoder.release();
-					mVideoEncoder = null;
-					throw e;
-				}
+				mVideoEncoder.setFormat(mCameraView.getVideoWidth(), mCameraView.getVideoHeight());
+				// listener crosses into GL thread, so call it on private thread not to stall encoding
+				mVideoEncoder.setListenerDispatchMode(TLMediaEncoder.DISPATCH_DEDICATED);
 			}
 			if (true) {
 				// for audio capturing
 				mAudioEncoder = new TLMediaAudioEncoder(getActivity(), mMovieName, mMediaEncoderListener);
-				try {
-					mAudioEncoder.prepare();
-				} catch (Exception e) {
-					Log.e(TAG, "startRecording:", e);
-					mAudioEncoder.release();
-					mAudioEncoder = null;
-					throw e;
-				}
-			}
-			if (mVideoEncoder != null) {
-				mVideoEncoder.start(true);
-			}
-			if (mAudioEncoder != null) {
-				mAudioEncoder.start(true);
 			}
+			final TLMediaSession session = mSession = new TLMediaSession(mVideoEncoder, mAudioEncoder);
+			session.prepareAndStartAsync(true).addCallback(new EncoderFuture.Callback() {
+				@Override
+				public void onComplete(final EncoderFuture future) {
+					if (DEBUG) Log.v(TAG, "startRecording:" + session.getPrepareStats());
+					if (future.getException() != null) {
+						Log.e(TAG, "startRecording:", future.getException());
+						final Activity activity = getActivity();
+						if (activity != null) {
+							activity.runOnUiThread(new Runnable() {
+								@Override
+								public void run() {
+									if (mSession == session) {
+										mSession = null;
+										mVideoEncoder = null;
+										mAudioEncoder = null;
+										session.stopAsync();
+										mIsRecording = false;
+										mRecordButton.setColorFilter(0);
+										fixedScreenOrientation(false);
+									}
+								}
+							});
+						} else {
+							session.stopAsync();
+						}
+					}
+				}
+			});
 			mIsRecording = true;
 			Toast.makeText(getActivity(), R.string.recording_hint, Toast.LENGTH_SHORT).show();
 		} catch (Exception e) {
@@ -198,21 +213,25 @@ public class CameraFragment extends Fragment {
 	 */
 	private void stopRecording() {
 		if (!mIsRecording) return;
-		if (DEBUG) Log.v(TAG, "stop");
+		if (DEBUG) Log.v(TAG, "stop:" + EglPool.getInstance());
 		mIsRecording = false;
 		mRecordButton.setColorFilter(0);    // return to default color
-		if (mVideoEncoder != null) {
-			mVideoEncoder.stop();
-			mVideoEncoder.release();
-		}
-		if (mAudioEncoder != null) {
-			mAudioEncoder.stop();
-			mAudioEncoder.release();
-		}
+		final TLMediaSession session = mSession;
+		final TLMediaAudioEncoder audioEncoder = mAudioEncoder;
+		mSession = null;
+		mVideoEncoder = null;
+		mAudioEncoder = null;
 		fixedScreenOrientation(mIsRecording);
+		if (session == null) return;
+		// report how long each resume took until the first audio chunk was captured
+		if (DEBUG) Log.i(TAG, "stopRecording:" + session.getStartStats()
+			+ (audioEncoder != null ? "," + audioEncoder.getResumeLatencyStats()
+				+ "," + audioEncoder.getCaptureStartStats() : ""));
+		// build movie after all encoders released without blocking UI thread
+		final EncoderFuture stopped = session.stopAsync(STOP_TIMEOUT_MS);
 		try {
 			mMuxer = new TLMediaMovieBuilder(getActivity(), mMovieName);
-			mMuxer.build(mTLMediaMovieBuilderCallback);
+			mMuxer.buildAfter(stopped, mTLMediaMovieBuilderCallback);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -41,10 +41,13 @@ import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.WindowManager;
 
+import com.serenegiant.glutils.EglPool;
 import com.serenegiant.glutils.GLDrawer2D;
+import com.serenegiant.glutils.RenderFanout;
 import com.serenegiant.media.TLMediaVideoEncoder;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -64,6 +67,10 @@ public final class CameraGLView extends GLSurfaceView {
 	private static final int SCALE_KEEP_ASPECT_VIEWPORT = 1;
 	private static final int SCALE_KEEP_ASPECT = 2;
 	private static final int SCALE_CROP_CENTER = 3;
+	/**
+	 * maximum frame rate of the encoder that is set by #setVideoEncoder
+	 */
+	private static final float DEFAULT_VIDEO_FPS = 30.0f;
 
 	private final CameraSurfaceRenderer mRenderer;
 	private boolean mHasSurface;
@@ -166,25 +173,55 @@ public final class CameraGLView extends GLSurfaceView {
 		return mRenderer != null ? mRenderer.mSTexture : null;
 	}
 
+	/**
+	 * set the encoder to write camera images, encoders that were already added are removed
+	 * @param encoder null to remove all encoders
+	 */
 	public void setVideoEncoder(final TLMediaVideoEncoder encoder) {
 		if (DEBUG) Log.v(TAG, "setVideoEncoder:tex_id=" + mRenderer.hTex);
 		queueEvent(new Runnable() {
 			@Override
 			public void run() {
 				synchronized (mRenderer) {
-					try {
-						if (encoder != null) {
-							encoder.setEglContext(EGL14.eglGetCurrentContext(), mRenderer.hTex);
-						}
-						mRenderer.mVideoEncoder = encoder;
-					} catch (RuntimeException e) {
-						mRenderer.mVideoEncoder = null;
+					mRenderer.clearVideoEncoders();
+					if (encoder != null) {
+						mRenderer.addVideoEncoder(encoder, DEFAULT_VIDEO_FPS);
 					}
 				}
 			}
 		});
 	}
 
+	/**
+	 * add the encoder to write camera images, each camera image is drawn once into all encoders.
+	 * the encoder should be prepared already.
+	 * @param encoder
+	 * @param max_fps maximum frame rate of the encoder, zero or negative value means all camera frames
+	 */
+	public void addVideoEncoder(final TLMediaVideoEncoder encoder, final float max_fps) {
+		if (DEBUG) Log.v(TAG, "addVideoEncoder:" + encoder);
+		queueEvent(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (mRenderer) {
+					mRenderer.addVideoEncoder(encoder, max_fps);
+				}
+			}
+		});
+	}
+
+	public void removeVideoEncoder(final TLMediaVideoEncoder encoder) {
+		if (DEBUG) Log.v(TAG, "removeVideoEncoder:" + encoder);
+		queueEvent(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (mRenderer) {
+					mRenderer.removeVideoEncoder(encoder);
+				}
+			}
+		});
+	}
+
 //********************************************************************************
 //********************************************************************************
 	/**
@@ -199,7 +236,11 @@ public final class CameraGLView extends GLSurfaceView {
 		private GLDrawer2D mDrawer;
 		private final float[] mStMatrix = new float[16];
 		private final float[] mMvpMatrix = new float[16];
-		private TLMediaVideoEncoder mVideoEncoder;
+		/**
+		 * draws camera images into all encoders on its own thread, guarded by this renderer
+		 */
+		private RenderFanout mFanout;
+		private final List<TLMediaVideoEncoder> mVideoEncoders = new ArrayList<TLMediaVideoEncoder>();
 
 		public CameraSurfaceRenderer() {
 			if (DEBUG) Log.v(TAG, "CameraSurfaceRenderer:");
@@ -226,6 +267,12 @@ public final class CameraGLView extends GLSurfaceView {
 			// create object for preview display
 			mDrawer = new GLDrawer2D();
 			mDrawer.setMatrix(mMvpMatrix, 0);
+			synchronized (this) {
+				if (mFanout == null) {
+					mFanout = RenderFanout.createHandler("CameraFanout");
+				}
+				mFanout.setEglContext(EGL14.eglGetCurrentContext(), hTex);
+			}
 		}
 
 		@Override
@@ -239,11 +286,49 @@ public final class CameraGLView extends GLSurfaceView {
 
 		public void onSurfaceDestroyed() {
 			if (DEBUG) Log.v(TAG, "onSurfaceDestroyed:");
+			synchronized (this) {
+				clearVideoEncoders();
+				if (mFanout != null) {
+					mFanout.release();
+					mFanout = null;
+				}
+			}
 			mDrawer = null;
 			if (mSTexture != null) {
 				mSTexture.release();
 				mSTexture = null;
 			}
+			// idle contexts in the pool share the EGLContext of this view that is destroyed now,
+			// they can not be reused by next shared context any more
+			EglPool.getInstance().trim();
+		}
+
+		/**
+		 * this should be called while holding the lock of this renderer
+		 * @param encoder
+		 * @param max_fps
+		 */
+		private void addVideoEncoder(final TLMediaVideoEncoder encoder, final float max_fps) {
+			if ((mFanout == null) || mVideoEncoders.contains(encoder)) return;
+			try {
+				encoder.attachFanout(mFanout, max_fps);
+				mVideoEncoders.add(encoder);
+			} catch (final RuntimeException e) {
+				Log.w(TAG, "addVideoEncoder:", e);
+			}
+		}
+
+		private void removeVideoEncoder(final TLMediaVideoEncoder encoder) {
+			if (mVideoEncoders.remove(encoder)) {
+				encoder.detachFanout();
+			}
+		}
+
+		private void clearVideoEncoders() {
+			for (final TLMediaVideoEncoder encoder: mVideoEncoders) {
+				encoder.detachFanout();
+			}
+			mVideoEncoders.clear();
 		}
 
 		private final void updateViewport() {
@@ -298,7 +383,6 @@ public final class CameraGLView extends GLSurfaceView {
 		}
 
 		private volatile boolean requestUpdateTex = false;
-		private boolean flip = true;
 		/**
 		 * drawing to GLSurface
 		 * we set renderMode to GLSurfaceView.RENDERMODE_WHEN_DIRTY,
@@ -309,7 +393,8 @@ public final class CameraGLView extends GLSurfaceView {
 		public void onDrawFrame(GL10 unused) {
 			GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
-			if (requestUpdateTex) {
+			final boolean updated = requestUpdateTex;
+			if (updated) {
 				requestUpdateTex = false;
 				// update texture(came from camera)
 				mSTexture.updateTexImage();
@@ -318,12 +403,11 @@ public final class CameraGLView extends GLSurfaceView {
 			}
 			// draw to preview screen
 			mDrawer.draw(hTex, mStMatrix);
-			flip = !flip;
-			if (flip) {	// ~30fps
+			if (updated) {
 				synchronized (this) {
-					if (mVideoEncoder != null) {
-						// notify to capturing thread that the camera frame is available.
-						mVideoEncoder.frameAvailableSoon(mStMatrix);
+					if ((mFanout != null) && !mVideoEncoders.isEmpty()) {
+						// draw new camera frame into all encoders, each encoder decimates frames by its maximum frame rate
+						mFanout.frameAvailable(mStMatrix, mSTexture.getTimestamp());
 					}
 				}
 			}
@@ -0,0 +1,111 @@
+package com.serenegiant.utils;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: LatencyStats.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.util.Locale;
+
+/**
+ * Helper class to accumulate count/total/min/max of latency values[nano seconds]
+ * this class is thread safe, values are usually added from private thread
+ * and read from other thread(s)
+ */
+public final class LatencyStats {
+	private final String mName;
+	private long mCount;
+	private long mTotalNs;
+	private long mMinNs = Long.MAX_VALUE;
+	private long mMaxNs;
+
+	/**
+	 * Constructor
+	 * @param name name of this stats, only used for #toString
+	 */
+	public LatencyStats(final String name) {
+		mName = name;
+	}
+
+	/**
+	 * add latency value
+	 * @param value_ns [nano seconds], negative value is ignored
+	 */
+	public synchronized void add(final long value_ns) {
+		if (value_ns < 0) return;
+		mCount++;
+		mTotalNs += value_ns;
+		if (value_ns < mMinNs) mMinNs = value_ns;
+		if (value_ns > mMaxNs) mMaxNs = value_ns;
+	}
+
+	/**
+	 * add latency value that measured from specific start time
+	 * @param start_ns start time that came from System#nanoTime
+	 */
+	public void addSince(final long start_ns) {
+		add(System.nanoTime() - start_ns);
+	}
+
+	public synchronized void reset() {
+		mCount = mTotalNs = mMaxNs = 0;
+		mMinNs = Long.MAX_VALUE;
+	}
+
+	public synchronized long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return total value[nano seconds]
+	 */
+	public synchronized long getTotal() {
+		return mTotalNs;
+	}
+
+	/**
+	 * @return minimum value[nano seconds], zero if no value added yet
+	 */
+	public synchronized long getMin() {
+		return mCount > 0 ? mMinNs : 0;
+	}
+
+	/**
+	 * @return maximum value[nano seconds]
+	 */
+	public synchronized long getMax() {
+		return mMaxNs;
+	}
+
+	/**
+	 * @return average value[nano seconds], zero if no value added yet
+	 */
+	public synchronized long getAverage() {
+		return mCount > 0 ? mTotalNs / mCount : 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(Locale.US, "%s(count=%d,avg=%d,min=%d,max=%d[usec])",
+			mName, mCount, getAverage() / 1000L, getMin() / 1000L, mMaxNs / 1000L);
+	}
+}
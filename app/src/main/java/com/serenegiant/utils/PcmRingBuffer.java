@@ -0,0 +1,212 @@
+package com.serenegiant.utils;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: PcmRingBuffer.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single producer/single consumer ring of preallocated PCM chunks.
+ * Producer(capturing thread) never blocks, if the ring is full, new chunk is dropped and counted as overrun.
+ * Consumer(encoding thread) can wait for next chunk without locking.
+ * Each method is only allowed to call from either one producer thread or one consumer thread.
+ */
+public final class PcmRingBuffer {
+
+	/**
+	 * preallocated chunk of PCM data
+	 */
+	public static final class Slot {
+		/**
+		 * direct buffer to hold PCM data, capacity is the slot size
+		 */
+		public final ByteBuffer buffer;
+		/**
+		 * number of valid bytes in buffer
+		 */
+		public int length;
+		public long presentationTimeUs;
+
+		private Slot(final int size) {
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+	}
+
+	private final Slot[] mSlots;
+	private final int mMask;
+	private final int mSlotSize;
+	/**
+	 * total number of committed slots, only written by producer
+	 */
+	private final AtomicLong mWriteIndex = new AtomicLong();
+	/**
+	 * total number of released slots, only written by consumer
+	 */
+	private final AtomicLong mReadIndex = new AtomicLong();
+	private final AtomicLong mOverrunCount = new AtomicLong();
+	private volatile int mHighWaterMark;
+	/**
+	 * consumer thread that is parking in #take
+	 */
+	private volatile Thread mWaiter;
+
+	/**
+	 * Constructor
+	 * @param num_slots number of slots, this is rounded up to power of 2
+	 * @param slot_size size of each slot in bytes
+	 */
+	public PcmRingBuffer(final int num_slots, final int slot_size) {
+		if ((num_slots <= 0) || (slot_size <= 0)) throw new IllegalArgumentException();
+		int n = 1;
+		for (; n < num_slots; n <<= 1);
+		mSlots = new Slot[n];
+		for (int i = 0; i < n; i++) {
+			mSlots[i] = new Slot(slot_size);
+		}
+		mMask = n - 1;
+		mSlotSize = slot_size;
+	}
+
+	public int getCapacity() {
+		return mSlots.length;
+	}
+
+	public int getSlotSize() {
+		return mSlotSize;
+	}
+
+	/**
+	 * @return number of slots that are committed but not released yet
+	 */
+	public int size() {
+		return (int)(mWriteIndex.get() - mReadIndex.get());
+	}
+
+	/**
+	 * @return maximum number of slots that were used at the same time
+	 */
+	public int getHighWaterMark() {
+		return mHighWaterMark;
+	}
+
+	/**
+	 * @return number of chunks that were dropped because the ring was full
+	 */
+	public long getOverrunCount() {
+		return mOverrunCount.get();
+	}
+
+//********************************************************************************
+// producer side
+//********************************************************************************
+	/**
+	 * get free slot to write, this never blocks
+	 * @return null if the ring is full, overrun is counted in this case
+	 */
+	public Slot obtain() {
+		final long w = mWriteIndex.get();
+		if (w - mReadIndex.get() >= mSlots.length) {
+			mOverrunCount.incrementAndGet();
+			return null;
+		}
+		final Slot slot = mSlots[(int)(w & mMask)];
+		slot.buffer.clear();
+		slot.length = 0;
+		return slot;
+	}
+
+	/**
+	 * publish the slot that was obtained by #obtain to consumer
+	 */
+	public void commit() {
+		final long w = mWriteIndex.get() + 1;
+		// this should be volatile write(not lazySet) because reading mWaiter below must not be
+		// reordered before this store, otherwise consumer that published itself as waiter
+		// and found the ring empty at the same time misses this wakeup
+		mWriteIndex.set(w);
+		final int used = (int)(w - mReadIndex.get());
+		if (used > mHighWaterMark) {
+			mHighWaterMark = used;
+		}
+		final Thread waiter = mWaiter;
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+	}
+
+//********************************************************************************
+// consumer side
+//********************************************************************************
+	/**
+	 * get oldest committed slot without removing
+	 * @return null if the ring is empty
+	 */
+	public Slot peek() {
+		final long r = mReadIndex.get();
+		if (r == mWriteIndex.get()) return null;
+		return mSlots[(int)(r & mMask)];
+	}
+
+	/**
+	 * wait for oldest committed slot without removing
+	 * @param timeout_ns maximum waiting time[nano seconds]
+	 * @return null if timeout or interrupted
+	 */
+	public Slot take(final long timeout_ns) {
+		Slot slot = peek();
+		if (slot != null) return slot;
+		final long limitNs = System.nanoTime() + timeout_ns;
+		mWaiter = Thread.currentThread();
+		try {
+			for ( ; ; ) {
+				// check again after publishing waiter not to miss unpark
+				slot = peek();
+				if (slot != null) break;
+				final long remain_ns = limitNs - System.nanoTime();
+				if ((remain_ns <= 0) || Thread.interrupted()) break;
+				LockSupport.parkNanos(this, remain_ns);
+			}
+		} finally {
+			mWaiter = null;
+		}
+		return slot;
+	}
+
+	/**
+	 * release the slot that was returned by #peek/#take so that producer can reuse it
+	 */
+	public void release() {
+		mReadIndex.lazySet(mReadIndex.get() + 1);
+	}
+
+	/**
+	 * discard all committed slots, this should be called from consumer side
+	 * or while neither producer nor consumer is running
+	 */
+	public void clear() {
+		mReadIndex.set(mWriteIndex.get());
+	}
+}
@@ -0,0 +1,160 @@
+package com.serenegiant.glutils;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: FrameMailboxTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * backpressure policies of FrameMailbox
+ */
+public class FrameMailboxTest {
+
+	private static float[] matrix(final float value) {
+		final float[] result = new float[16];
+		result[0] = value;
+		return result;
+	}
+
+	@Test
+	public void coalesceKeepsNewestFrames() {
+		final FrameMailbox mailbox = new FrameMailbox(null);
+		mailbox.setPolicy(FrameMailbox.POLICY_COALESCE, 2, 0);
+		for (int i = 1; i <= 5; i++) {
+			assertTrue(mailbox.post(i, matrix(i), i * 1000L));
+		}
+		assertEquals(2, mailbox.size());
+		assertEquals(3, mailbox.getCoalescedCount());
+		final FrameMailbox.Frame frame = new FrameMailbox.Frame();
+		assertTrue(mailbox.take(frame));
+		assertEquals(4, frame.texId);
+		assertEquals(4.0f, frame.texMatrix[0], 0.0f);
+		assertEquals(4000L, frame.timestampNs);
+		assertTrue(mailbox.take(frame));
+		assertEquals(5, frame.texId);
+		assertFalse(mailbox.take(frame));
+		assertEquals(5, mailbox.getPostedCount());
+		assertEquals(2, mailbox.getRenderedCount());
+	}
+
+	@Test
+	public void dropNewestKeepsPendingFrames() {
+		final FrameMailbox mailbox = new FrameMailbox(null);
+		mailbox.setPolicy(FrameMailbox.POLICY_DROP_NEWEST, 2, 0);
+		assertTrue(mailbox.post(1, null, 0));
+		assertTrue(mailbox.post(2, null, 0));
+		assertFalse(mailbox.post(3, null, 0));
+		assertEquals(1, mailbox.getDroppedCount());
+		final FrameMailbox.Frame frame = new FrameMailbox.Frame();
+		assertTrue(mailbox.take(frame));
+		assertEquals(1, frame.texId);
+		assertFalse(frame.hasTexMatrix);
+		assertTrue(mailbox.post(4, null, 0));
+		assertTrue(mailbox.take(frame));
+		assertEquals(2, frame.texId);
+		assertTrue(mailbox.take(frame));
+		assertEquals(4, frame.texId);
+	}
+
+	/**
+	 * caller can reuse it's matrix just after #post
+	 */
+	@Test
+	public void postCopiesMatrix() {
+		final FrameMailbox mailbox = new FrameMailbox(null);
+		final float[] tex_matrix = matrix(1.0f);
+		mailbox.post(1, tex_matrix, 0);
+		tex_matrix[0] = 2.0f;
+		final FrameMailbox.Frame frame = new FrameMailbox.Frame();
+		assertTrue(mailbox.take(frame));
+		assertTrue(frame.hasTexMatrix);
+		assertEquals(1.0f, frame.texMatrix[0], 0.0f);
+	}
+
+	@Test
+	public void blockDropsAfterDeadline() {
+		final FrameMailbox mailbox = new FrameMailbox(null);
+		mailbox.setPolicy(FrameMailbox.POLICY_BLOCK, 1, 30);
+		assertTrue(mailbox.post(1, null, 0));
+		final long startNs = System.nanoTime();
+		assertFalse(mailbox.post(2, null, 0));
+		assertTrue(System.nanoTime() - startNs >= 30 * 1000000L);
+		assertEquals(1, mailbox.getDroppedCount());
+		assertEquals(1, mailbox.getBlockedStats().getCount());
+	}
+
+	@Test
+	public void blockWaitsUntilTaken() throws InterruptedException {
+		final FrameMailbox mailbox = new FrameMailbox(null);
+		mailbox.setPolicy(FrameMailbox.POLICY_BLOCK, 1, 5000);
+		assertTrue(mailbox.post(1, null, 0));
+		final Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+				mailbox.take(new FrameMailbox.Frame());
+			}
+		});
+		consumer.start();
+		assertTrue(mailbox.post(2, null, 0));
+		consumer.join();
+		assertEquals(0, mailbox.getDroppedCount());
+		final FrameMailbox.Frame frame = new FrameMailbox.Frame();
+		assertTrue(mailbox.take(frame));
+		assertEquals(2, frame.texId);
+	}
+
+	/**
+	 * #close releases #post that is waiting and rejects following frames
+	 */
+	@Test
+	public void closeReleasesBlockedPost() throws InterruptedException {
+		final FrameMailbox mailbox = new FrameMailbox(null);
+		mailbox.setPolicy(FrameMailbox.POLICY_BLOCK, 1, 5000);
+		assertTrue(mailbox.post(1, null, 0));
+		final boolean[] result = new boolean[] { true };
+		final Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				result[0] = mailbox.post(2, null, 0);
+			}
+		});
+		producer.start();
+		Thread.sleep(50);
+		mailbox.close();
+		producer.join(1000);
+		assertFalse(producer.isAlive());
+		assertFalse(result[0]);
+		assertFalse(mailbox.post(3, null, 0));
+		assertEquals(0, mailbox.size());
+	}
+}
@@ -0,0 +1,145 @@
+package com.serenegiant.glutils;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: RenderHandlerTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * GL/EGL calls of RenderHandler counted with RecordingGLApi and RecordingEglApi
+ */
+public class RenderHandlerTest {
+	private static final long TIMEOUT_MS = 5000;
+	private static final int TEX_ID = 10;
+
+	private RecordingGLApi mGL;
+	private RecordingEglApi mEgl;
+	private RenderHandler mHandler;
+
+	@Before
+	public void setUp() {
+		mGL = new RecordingGLApi();
+		mEgl = new RecordingEglApi();
+		mHandler = RenderHandler.createHandler("RenderHandlerTest", mGL, mEgl);
+		mHandler.setEglContext(null, TEX_ID, new Object(), true);
+	}
+
+	@After
+	public void tearDown() {
+		mHandler.release();
+	}
+
+	private void waitSwap(final long count) throws InterruptedException {
+		final long limit = System.currentTimeMillis() + TIMEOUT_MS;
+		while (mEgl.getSwapCount() < count) {
+			assertTrue("swap timeout", System.currentTimeMillis() < limit);
+			Thread.sleep(1);
+		}
+	}
+
+	private static float[] matrix(final float scale) {
+		final float[] result = new float[16];
+		for (int i = 0; i < 16; i += 5) {
+			result[i] = scale;
+		}
+		return result;
+	}
+
+	/**
+	 * program and attributes are bound only once, the texture matrix is uploaded only when it changed
+	 */
+	@Test
+	public void drawsEachFrameWithoutRedundantState() throws InterruptedException {
+		assertEquals(1, mEgl.getContextCount());
+		assertEquals(1, mGL.getProgramBindCount());
+		final float[] tex_matrix = matrix(1.0f);
+		// first frame uploads MVP matrix once
+		mHandler.draw(tex_matrix);
+		waitSwap(1);
+		mGL.reset();
+		final int n = 20;
+		for (int i = 0; i < n; i++) {
+			mHandler.draw(tex_matrix);
+			waitSwap(2 + i);
+		}
+		assertEquals(n, mGL.getDrawCount());
+		assertEquals(0, mGL.getProgramBindCount());
+		assertEquals(0, mGL.getUniformUploadCount());
+		// external texture is bound on every frame
+		assertEquals(n, mGL.getTextureBindCount());
+		assertEquals(TEX_ID, mGL.getBoundTexture());
+		// bind texture and draw per swap
+		assertEquals(2 * n, mGL.getCallCount());
+
+		final float[] changed = matrix(0.5f);
+		mHandler.draw(changed);
+		waitSwap(2 + n);
+		assertEquals(1, mGL.getUniformUploadCount());
+		final float[] uploaded = new float[16];
+		mGL.getLastUniformMatrix(uploaded);
+		assertArrayEquals(changed, uploaded, 0.0f);
+	}
+
+	/**
+	 * the newest frame is always drawn when swap falls behind on POLICY_DROP_OLDEST
+	 */
+	@Test
+	public void coalescesFramesWhenSwapIsSlow() throws InterruptedException {
+		mEgl.setSwapDelay(20);
+		mHandler.setBackpressurePolicy(RenderHandler.POLICY_DROP_OLDEST, 1, 0);
+		final int n = 50;
+		for (int i = 1; i <= n; i++) {
+			mHandler.draw(null, i);
+			Thread.sleep(1);
+		}
+		final long limit = System.currentTimeMillis() + TIMEOUT_MS;
+		while (mEgl.getLastPresentationTime() != n) {
+			assertTrue("newest frame was not drawn", System.currentTimeMillis() < limit);
+			Thread.sleep(1);
+		}
+		assertTrue(mHandler.getCoalescedFrameCount() > 0);
+		assertEquals(n, mHandler.getRenderedFrameCount() + mHandler.getDroppedFrameCount());
+		// one swap per rendered frame, not per posted frame
+		assertTrue(mEgl.getSwapCount() < n);
+	}
+
+	/**
+	 * all EGL objects and GL objects are released
+	 */
+	@Test
+	public void releaseDeletesAll() throws InterruptedException {
+		mHandler.draw();
+		waitSwap(1);
+		mHandler.release();
+		assertEquals(0, mEgl.getLiveObjectCount());
+		assertEquals(1, mGL.getCallCount("glDeleteProgram"));
+		assertEquals(1, mGL.getCallCount("glDeleteBuffers"));
+	}
+}
@@ -0,0 +1,148 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: AbstractTLMediaAudioEncoderTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * capturing and feeding of AbstractTLMediaAudioEncoder with SyntheticAudioSource
+ */
+public class AbstractTLMediaAudioEncoderTest {
+	private static final boolean DEBUG = false;
+	private static final long TIMEOUT_MS = 5000;
+	private static final int SAMPLE_RATE = 44100;
+	/**
+	 * bytes of one AAC frame of 16bit monaural PCM
+	 */
+	private static final int CHUNK_BYTES = 1024 * 2;
+	private static final long RECORD_MS = 1000;
+
+	private TestContext mContext;
+	private SyntheticEncoderBackend.Factory mFactory;
+
+	@Before
+	public void setUp() throws IOException {
+		mContext = new TestContext();
+		mFactory = new SyntheticEncoderBackend.Factory();
+		mFactory.setRealtime(false);
+	}
+
+	@After
+	public void tearDown() {
+		mContext.delete();
+	}
+
+	/**
+	 * feeder of previous sequence that is still blocked in #encode when resuming
+	 * must finish before next feeder starts, the ring buffer has only one consumer
+	 */
+	@Test
+	public void resumeWaitsForPreviousFeeder() throws Exception {
+		final SyntheticAudioEncoder encoder = new SyntheticAudioEncoder(mContext, "feeder", mFactory,
+			new SyntheticAudioSource(SyntheticAudioSource.TYPE_TONE, SAMPLE_RATE, 1, 440, 0.5f, true), null);
+		encoder.prepareAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		encoder.startAsync(true).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		// longer than the time that pausing waits for the feeder
+		encoder.setEncodeDelay(300);
+		for (int i = 0; i < 3; i++) {
+			encoder.resumeAsync(-1).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			Thread.sleep(100);
+			encoder.pauseAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		}
+		encoder.resumeAsync(-1).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		Thread.sleep(700);
+		encoder.stopAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		assertEquals(1, encoder.getMaxConcurrentEncode());
+		assertTrue(encoder.getCaptureStartStats().getCount() > 0);
+	}
+
+	/**
+	 * resuming should not wait for the feeder of previous sequence more than a bounded time
+	 * even when it is blocked in #encode, next feeder waits for it instead
+	 */
+	@Test
+	public void resumeDoesNotBlockOnPreviousFeeder() throws Exception {
+		final SyntheticAudioEncoder encoder = new SyntheticAudioEncoder(mContext, "feeder", mFactory,
+			new SyntheticAudioSource(SyntheticAudioSource.TYPE_TONE, SAMPLE_RATE, 1, 440, 0.5f, true), null);
+		encoder.prepareAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		encoder.startAsync(true).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		encoder.setEncodeDelay(1500);
+		encoder.resumeAsync(-1).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		Thread.sleep(100);
+		encoder.pauseAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		// resuming future completes before the feeder starts,
+		// so measure until next request is handled on the encoder thread
+		final long startNs = System.nanoTime();
+		encoder.resumeAsync(-1).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		encoder.pauseAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		final long elapsedMs = (System.nanoTime() - startNs) / 1000000L;
+		encoder.setEncodeDelay(0);
+		encoder.resumeAsync(-1).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		Thread.sleep(1500);
+		encoder.stopAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		assertTrue("resume and pause took " + elapsedMs + "ms", elapsedMs < 1000);
+		assertEquals(1, encoder.getMaxConcurrentEncode());
+	}
+
+	/**
+	 * captured PCM is queued into the codec as batches of AAC frames that fill the input buffer
+	 * and drain is requested once for each batch instead of for each read
+	 */
+	@Test
+	public void batchingReducesInputQueuesAndDrains() throws Exception {
+		for (final boolean zeroCopy: new boolean[] {false, true}) {
+			final SyntheticAudioEncoder encoder = new SyntheticAudioEncoder(mContext,
+				zeroCopy ? "zerocopy" : "feeder", mFactory,
+				new SyntheticAudioSource(SyntheticAudioSource.TYPE_TONE, SAMPLE_RATE, 1, 440, 0.5f, true), null);
+			encoder.setZeroCopyCapture(zeroCopy);
+			encoder.prepareAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			encoder.startAsync(false).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			final long startNs = System.nanoTime();
+			Thread.sleep(RECORD_MS);
+			encoder.stopAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			final double sec = (System.nanoTime() - startNs) / 1e9;
+			final double chunks = SAMPLE_RATE * 2 * sec / CHUNK_BYTES;
+			// zero copy capture queues input without #encode, so count batches from their average size
+			final long batch = encoder.getAverageBatchBytes();
+			final double queues = batch > 0 ? chunks * CHUNK_BYTES / batch : 0;
+			final double drains = encoder.getDrainStats().getCount() / sec;
+			if (DEBUG) System.out.println(String.format("%s:chunks/s=%.1f,queues/s=%.1f,drains/s=%.1f,drain=%.3fms/s,avgBatch=%d",
+				zeroCopy ? "zeroCopy" : "feeder", chunks, queues, drains,
+				encoder.getDrainStats().getTotal() / 1e6 / sec, batch));
+			// input buffer of SyntheticEncoderBackend holds 4 chunks
+			assertTrue(batch >= 2 * CHUNK_BYTES);
+			// at most one drain per AAC frame that comes out
+			assertTrue(drains <= chunks + 1);
+		}
+	}
+}
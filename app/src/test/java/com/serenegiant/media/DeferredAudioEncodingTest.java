@@ -0,0 +1,112 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: DeferredAudioEncodingTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * compare capturing side cost of deferred encoding(raw PCM into intermediate file)
+ * with encoding while capturing. AAC encoding that deferred encoding moves into TLMediaMovieBuilder
+ * needs actual MediaCodec and MediaMuxer, so build time can be measured only on device
+ * with TLMediaMovieBuilder#getAudioEncodeStats
+ */
+public class DeferredAudioEncodingTest {
+	private static final boolean DEBUG = false;
+	private static final long TIMEOUT_MS = 5000;
+	private static final int SAMPLE_RATE = 44100;
+	private static final int BIT_RATE = 64000;
+	private static final long RECORD_MS = 1000;
+
+	@Test
+	public void deferredEncodingStoresRawPcm() throws Exception {
+		final Result encoded = record(false);
+		final Result deferred = record(true);
+		if (DEBUG) {
+			System.out.println("encoded:" + encoded);
+			System.out.println("deferred:" + deferred);
+		}
+		// 16bit monaural PCM, allow the time to start capturing
+		assertTrue(deferred.bytesPerSec() > SAMPLE_RATE * 2 * 0.7);
+		assertTrue(encoded.bytesPerSec() < deferred.bytesPerSec() / 4);
+	}
+
+	private static final class Result {
+		private long bytes;
+		private long drainNs;
+		private long drains;
+		private double sec;
+
+		private double bytesPerSec() {
+			return bytes / sec;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("file=%.1fKB/s,drains/s=%.1f,drain=%.3fms/s",
+				bytesPerSec() / 1024, drains / sec, drainNs / 1e6 / sec);
+		}
+	}
+
+	private Result record(final boolean deferred) throws Exception {
+		final TestContext context = new TestContext();
+		try {
+			final SyntheticEncoderBackend.Factory factory = new SyntheticEncoderBackend.Factory();
+			factory.setRealtime(false);
+			factory.setBitRate(BIT_RATE);
+			final SyntheticAudioEncoder encoder = new SyntheticAudioEncoder(context,
+				deferred ? "deferred" : "encoded", factory,
+				new SyntheticAudioSource(SyntheticAudioSource.TYPE_TONE, SAMPLE_RATE, 1, 440, 0.5f, true), null);
+			encoder.setDeferredEncoding(deferred);
+			encoder.prepareAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			encoder.startAsync(false).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			final long startNs = System.nanoTime();
+			Thread.sleep(RECORD_MS);
+			encoder.stopAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			final Result result = new Result();
+			result.sec = (System.nanoTime() - startNs) / 1e9;
+			result.bytes = size(context.getExternalFilesDir(null));
+			result.drains = encoder.getDrainStats().getCount();
+			result.drainNs = encoder.getDrainStats().getTotal();
+			return result;
+		} finally {
+			context.delete();
+		}
+	}
+
+	private static long size(final File file) {
+		final File[] files = file.listFiles();
+		if (files == null) return file.length();
+		long result = 0;
+		for (final File f: files) {
+			result += size(f);
+		}
+		return result;
+	}
+}
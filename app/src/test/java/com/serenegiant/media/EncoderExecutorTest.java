@@ -0,0 +1,91 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: EncoderExecutorTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EncoderExecutorTest {
+	private static final boolean DEBUG = false;
+	private static final long TIMEOUT_MS = 5000;
+	private static final long OUTPUT_DELAY_MS = 300;
+
+	private TestContext mContext;
+	private EncoderExecutor mExecutor;
+
+	@Before
+	public void setUp() throws IOException {
+		mContext = new TestContext();
+		mExecutor = new EncoderExecutor(1, EncoderExecutor.DEFAULT_REQUESTS_PER_STEP);
+	}
+
+	@After
+	public void tearDown() {
+		mExecutor.shutdown();
+		mContext.delete();
+	}
+
+	private SyntheticBufferEncoder start(final String name, final long output_delay_ms) throws Exception {
+		final SyntheticEncoderBackend.Factory factory = new SyntheticEncoderBackend.Factory();
+		factory.setRealtime(false);
+		factory.setOutputDelay(output_delay_ms);
+		final SyntheticBufferEncoder encoder = new SyntheticBufferEncoder(mContext, name, factory, mExecutor);
+		encoder.prepareAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		encoder.startAsync(false).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		return encoder;
+	}
+
+	/**
+	 * stopping encoder that waits EOS for long time should not delay drains of other encoder
+	 * even if the executor has only one worker thread
+	 */
+	@Test
+	public void blockingStopDoesNotDelayOtherEncoder() throws Exception {
+		final SyntheticBufferEncoder slow = start("slow", OUTPUT_DELAY_MS);
+		final SyntheticBufferEncoder fast = start("fast", 0);
+		assertTrue(slow.write());
+		fast.getDispatchStats().reset();
+		final EncoderFuture stopped = slow.stopAsync();
+		final long startNs = System.nanoTime();
+		for (; !stopped.isDone() ; ) {
+			assertTrue(fast.write());
+			Thread.sleep(5);
+		}
+		final long stopMs = (System.nanoTime() - startNs) / 1000000L;
+		if (DEBUG) System.out.println("stop:" + stopMs + "ms,fast:" + fast.getDispatchStats());
+		assertFalse(slow.isStopForced());
+		assertTrue(stopMs >= OUTPUT_DELAY_MS / 2);
+		assertTrue(fast.getDispatchStats().getMax() < OUTPUT_DELAY_MS * 1000000L / 3);
+		assertTrue(mExecutor.getLifecycleStepCount() > 0);
+		fast.stopAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,118 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: SyntheticAudioEncoder.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.content.Context;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * audio encoder that captures PCM data from SyntheticAudioSource and encodes it with
+ * SyntheticEncoderBackend, this also counts callers of #encode that run at the same time
+ */
+class SyntheticAudioEncoder extends AbstractTLMediaAudioEncoder {
+	/**
+	 * 8 AAC frames of 16bit stereo PCM, same as the batch limit of AbstractTLMediaAudioEncoder
+	 */
+	private static final int DEFERRED_INPUT_SIZE = 8 * 1024 * 2 * 2;
+
+	private final AudioSource mSource;
+	private final AtomicInteger mEncoding = new AtomicInteger();
+	private final AtomicInteger mMaxEncoding = new AtomicInteger();
+	private volatile long mEncodeDelayMs;
+
+	SyntheticAudioEncoder(final Context context, final String movie_name,
+		final EncoderBackend.Factory factory, final AudioSource source, final EncoderExecutor executor) {
+
+		super(context, movie_name, null, source.getSampleRate(), source.getChannelCount(), DEFAULT_BIT_RATE, executor);
+		mSource = source;
+		setBackendFactory(factory);
+	}
+
+	/**
+	 * make every #encode call with data take extra time like a codec that has no free input buffer
+	 * @param delay_ms
+	 */
+	void setEncodeDelay(final long delay_ms) {
+		mEncodeDelayMs = delay_ms;
+	}
+
+	/**
+	 * @return maximum number of threads that were in #encode at the same time
+	 */
+	int getMaxConcurrentEncode() {
+		return mMaxEncoding.get();
+	}
+
+	@Override
+	protected MediaFormat internal_prepare() throws IOException {
+		// MediaFormat#createAudioFormat is not available on JVM
+		return new MediaFormat();
+	}
+
+	@Override
+	protected EncoderBackend internal_configure(EncoderBackend previous_codec,
+		final MediaFormat format) throws IOException {
+
+		if ((previous_codec == null) && isDeferredEncoding()) {
+			// #internal_prepare of AbstractTLMediaAudioEncoder that selects the backend is overridden
+			previous_codec = attachBackend(new PcmPassthroughBackend(DEFERRED_INPUT_SIZE));
+		}
+		return super.internal_configure(previous_codec, format);
+	}
+
+	@Override
+	protected AudioSource createAudioSource() {
+		return mSource;
+	}
+
+	@Override
+	protected boolean encode(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
+		if ((buffer == null) || (length <= 0)) {
+			return super.encode(buffer, length, presentationTimeUs);
+		}
+		final int n = mEncoding.incrementAndGet();
+		try {
+			int max;
+			while ((max = mMaxEncoding.get()) < n) {
+				if (mMaxEncoding.compareAndSet(max, n)) break;
+			}
+			final long delay_ms = mEncodeDelayMs;
+			if (delay_ms > 0) {
+				try {
+					Thread.sleep(delay_ms);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			}
+			return super.encode(buffer, length, presentationTimeUs);
+		} finally {
+			mEncoding.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: SyntheticBufferEncoder.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * TLMediaEncoder that queues data from #write into SyntheticEncoderBackend,
+ * one encoded frame comes out for each input
+ */
+class SyntheticBufferEncoder extends TLMediaEncoder {
+	private static final String MIME_TYPE = "video/avc";
+
+	private final ByteBuffer mFrame = ByteBuffer.allocateDirect(1024);
+
+	SyntheticBufferEncoder(final Context context, final String movie_name,
+		final EncoderBackend.Factory factory, final EncoderExecutor executor) {
+
+		super(context, movie_name, TYPE_VIDEO, null, executor);
+		setBackendFactory(factory);
+	}
+
+	/**
+	 * queue one frame if this encoder accepts it
+	 * @return true if the frame was queued
+	 */
+	boolean write() {
+		if (!frameAvailableSoon()) return false;
+		mFrame.clear();
+		return encode(mFrame, mFrame.capacity(), toPTSUs(System.nanoTime()));
+	}
+
+	/**
+	 * obtain input buffer of the codec to write one frame into directly
+	 * @return null if this encoder does not accept the frame
+	 */
+	ByteBuffer obtain() {
+		if (!frameAvailableSoon()) return null;
+		return obtainInputBuffer(TIMEOUT_USEC);
+	}
+
+	/**
+	 * queue input buffer that was returned by #obtain
+	 */
+	void queueObtained() {
+		queueObtainedInput(mFrame.capacity(), toPTSUs(System.nanoTime()));
+	}
+
+	@Override
+	protected boolean useInputPTS() {
+		return true;
+	}
+
+	@Override
+	protected MediaFormat internal_prepare() throws IOException {
+		// MediaFormat#createVideoFormat is not available on JVM
+		return new MediaFormat();
+	}
+
+	@Override
+	protected EncoderBackend internal_configure(EncoderBackend previous_codec,
+		final MediaFormat format) throws IOException {
+
+		if (previous_codec == null)
+			previous_codec = createBackend(MIME_TYPE);
+		previous_codec.configure(format, MediaCodec.CONFIGURE_FLAG_ENCODE);
+		return previous_codec;
+	}
+}
@@ -0,0 +1,156 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: SyntheticEncoderBackendTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SyntheticEncoderBackendTest {
+	private static final String VIDEO = "video/avc";
+	private static final String AUDIO = "audio/mp4a-latm";
+
+	private static EncoderBackend start(final SyntheticEncoderBackend.Factory factory,
+		final String mime_type, final boolean surface_input) throws IOException {
+
+		final EncoderBackend backend = factory.create(mime_type);
+		backend.configure(new MediaFormat(), MediaCodec.CONFIGURE_FLAG_ENCODE);
+		if (surface_input) {
+			backend.createInputSurface();
+		}
+		backend.start();
+		final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		assertEquals(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED, backend.dequeueOutputBuffer(info, 0));
+		return backend;
+	}
+
+	/**
+	 * queue input until the codec stops accepting it, the caller should never be blocked
+	 * @return number of queued input buffers
+	 */
+	private static int fill(final EncoderBackend backend, final int size) {
+		int result = 0;
+		for (; result < 100; result++) {
+			final int index = backend.dequeueInputBuffer(1000);
+			if (index < 0) {
+				assertEquals(MediaCodec.INFO_TRY_AGAIN_LATER, index);
+				break;
+			}
+			backend.queueInputBuffer(index, 0, size, result * 1000L, 0);
+		}
+		return result;
+	}
+
+	/**
+	 * dequeue and release all available output
+	 * @return size of each output
+	 */
+	private static List<Integer> drain(final EncoderBackend backend) {
+		final List<Integer> result = new ArrayList<Integer>();
+		final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		for (int index = backend.dequeueOutputBuffer(info, 0); index >= 0;
+			index = backend.dequeueOutputBuffer(info, 0)) {
+
+			result.add(info.size);
+			backend.releaseOutputBuffer(index);
+		}
+		return result;
+	}
+
+	@Test(timeout = 5000)
+	public void inputTimesOutWhileAllOutputsArePending() throws Exception {
+		final EncoderBackend backend = start(new SyntheticEncoderBackend.Factory(), VIDEO, false);
+		final int queued = fill(backend, 100);
+		assertTrue(queued > 0);
+		assertTrue(queued < 100);
+		// releasing output generates pending frames and returns input buffers
+		final List<Integer> frames = drain(backend);
+		assertEquals(queued, frames.size());
+		assertTrue(backend.dequeueInputBuffer(0) >= 0);
+		backend.release();
+	}
+
+	@Test(timeout = 5000)
+	public void audioInputMakesFramesOfAACSize() throws Exception {
+		final SyntheticEncoderBackend backend = (SyntheticEncoderBackend)
+			start(new SyntheticEncoderBackend.Factory(), AUDIO, false);
+		// 1024 samples of monaural 16bit PCM makes one frame
+		final int queued = fill(backend, 1024 * 2 * 2);
+		assertEquals(queued * 2, drain(backend).size());
+		assertEquals(queued * 2, backend.getFrameCount());
+		backend.release();
+	}
+
+	@Test(timeout = 5000)
+	public void stopWhileAllOutputsArePending() throws Exception {
+		final SyntheticEncoderBackend.Factory factory = new SyntheticEncoderBackend.Factory();
+		factory.setRealtime(false);
+		final EncoderBackend video = start(factory, VIDEO, true);
+		final EncoderBackend audio = start(factory, AUDIO, false);
+		fill(audio, 8192);
+		Thread.sleep(50);
+		// generator thread and input path are stalled on free output buffer now
+		video.stop();
+		audio.stop();
+		video.release();
+		audio.release();
+	}
+
+	@Test(timeout = 5000)
+	public void outputIsDeterministic() throws Exception {
+		final SyntheticEncoderBackend.Factory factory = new SyntheticEncoderBackend.Factory();
+		factory.setKeyFrame(5, 4);
+		final List<Integer> first = new ArrayList<Integer>();
+		final List<Integer> second = new ArrayList<Integer>();
+		long firstBytes = 0;
+		for (int i = 0; i < 2; i++) {
+			final SyntheticEncoderBackend backend = (SyntheticEncoderBackend)start(factory, VIDEO, false);
+			final List<Integer> sizes = i == 0 ? first : second;
+			for (int j = 0; j < 5; j++) {
+				fill(backend, 100);
+				sizes.addAll(drain(backend));
+			}
+			if (i == 0) {
+				firstBytes = backend.getTotalBytes();
+			} else {
+				assertEquals(firstBytes, backend.getTotalBytes());
+			}
+			backend.release();
+		}
+		assertEquals(first, second);
+		// key frame is 4 times larger than other frames and comes every 5 frames
+		for (int i = 0; i < first.size(); i++) {
+			assertEquals((int)first.get(0) / ((i % 5) == 0 ? 1 : 4), (int)first.get(i));
+		}
+	}
+}
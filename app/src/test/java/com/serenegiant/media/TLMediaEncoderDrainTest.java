@@ -0,0 +1,273 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: TLMediaEncoderDrainTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import com.serenegiant.utils.LatencyStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * compare wakeups to drain and latency from input to output
+ * between asynchronous(callback) and polling drain on SyntheticEncoderBackend
+ */
+public class TLMediaEncoderDrainTest {
+	private static final boolean DEBUG = false;
+	private static final int NUM_FRAMES = 30;
+	private static final long FRAME_INTERVAL_MS = 30;
+	/**
+	 * latency of the codec, longer than the time that polling drain waits for output
+	 */
+	private static final long OUTPUT_DELAY_MS = 15;
+	private static final long TIMEOUT_MS = 5000;
+
+	private TestContext mContext;
+
+	@Before
+	public void setUp() throws IOException {
+		mContext = new TestContext();
+	}
+
+	@After
+	public void tearDown() {
+		mContext.delete();
+	}
+
+	/**
+	 * polling drain waits for output in the codec on the encoder thread and the output
+	 * that comes after the wait timed out is drained only on next frame.
+	 * asynchronous drain wakes up only when output is available
+	 */
+	@Test
+	public void asyncDrainWakesUpLessWithLowerLatency() throws Exception {
+		final Result polling = record(false);
+		final Result async = record(true);
+		if (DEBUG) System.out.println("polling:" + polling + "\nasync:" + async);
+		assertEquals(NUM_FRAMES, polling.frames);
+		assertEquals(NUM_FRAMES, async.frames);
+		assertTrue(async.wakeups() < polling.wakeups());
+		assertTrue(async.latency.getAverage() < polling.latency.getAverage());
+		assertTrue(async.drainNs < polling.drainNs);
+	}
+
+	private static final class Result {
+		private long drains;
+		/**
+		 * number of times waiting output in the codec timed out
+		 */
+		private long timeouts;
+		private long emptyDrains;
+		private long drainNs;
+		private long frames;
+		private long elapsedNs;
+		private LatencyStats latency;
+
+		/**
+		 * @return number of times the encoder thread woke up, by drain request or by timeout of waiting output
+		 */
+		private long wakeups() {
+			return drains + timeouts;
+		}
+
+		@Override
+		public String toString() {
+			final double sec = elapsedNs / 1e9;
+			return String.format("frames=%d,wakeups/s=%.1f,empty/s=%.1f,drain=%.3fms/frame,latency(avg=%.3fms,max=%.3fms)",
+				frames, wakeups() / sec, emptyDrains / sec, drainNs / 1e6 / frames,
+				latency.getAverage() / 1e6, latency.getMax() / 1e6);
+		}
+	}
+
+	private Result record(final boolean async) throws Exception {
+		final LatencyFactory factory = new LatencyFactory();
+		final SyntheticBufferEncoder encoder = new SyntheticBufferEncoder(mContext,
+			async ? "async" : "polling", factory, null);
+		encoder.setAsyncDrain(async);
+		encoder.prepareAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		encoder.startAsync(false).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		assertEquals(async, encoder.isAsyncDrain());
+		final long startNs = System.nanoTime();
+		for (int i = 0; i < NUM_FRAMES; i++) {
+			assertTrue(encoder.write());
+			Thread.sleep(FRAME_INTERVAL_MS);
+		}
+		final Result result = new Result();
+		result.elapsedNs = System.nanoTime() - startNs;
+		encoder.stopAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		result.drains = encoder.getDrainStats().getCount();
+		result.emptyDrains = encoder.getEmptyDrainCount();
+		result.drainNs = encoder.getDrainStats().getTotal();
+		result.timeouts = factory.timeouts.get();
+		result.frames = factory.latency.getCount();
+		result.latency = factory.latency;
+		return result;
+	}
+
+	/**
+	 * create SyntheticEncoderBackend that measures time from queueing input to dequeueing its output
+	 */
+	private static final class LatencyFactory extends SyntheticEncoderBackend.Factory {
+		private final LatencyStats latency = new LatencyStats("input-to-output");
+		private final AtomicLong timeouts = new AtomicLong();
+
+		private LatencyFactory() {
+			setRealtime(false);
+			setOutputDelay(OUTPUT_DELAY_MS);
+		}
+
+		@Override
+		public EncoderBackend create(final String mime_type) throws IOException {
+			return new LatencyBackend(super.create(mime_type), latency, timeouts);
+		}
+	}
+
+	private static final class LatencyBackend implements EncoderBackend {
+		private final EncoderBackend mBackend;
+		private final LatencyStats mLatency;
+		private final AtomicLong mTimeouts;
+		private final Map<Long, Long> mQueuedNs = new ConcurrentHashMap<Long, Long>();
+
+		private LatencyBackend(final EncoderBackend backend, final LatencyStats latency, final AtomicLong timeouts) {
+			mBackend = backend;
+			mLatency = latency;
+			mTimeouts = timeouts;
+		}
+
+		@Override
+		public boolean setCallback(final Callback callback) {
+			return mBackend.setCallback(callback);
+		}
+
+		@Override
+		public boolean isAsync() {
+			return mBackend.isAsync();
+		}
+
+		@Override
+		public void configure(final MediaFormat format, final int flags) throws IOException {
+			mBackend.configure(format, flags);
+		}
+
+		@Override
+		public Surface createInputSurface() {
+			return mBackend.createInputSurface();
+		}
+
+		@Override
+		public void start() {
+			mBackend.start();
+		}
+
+		@Override
+		public void stop() {
+			mBackend.stop();
+		}
+
+		@Override
+		public void flush() {
+			mBackend.flush();
+		}
+
+		@Override
+		public boolean requestSyncFrame() {
+			return mBackend.requestSyncFrame();
+		}
+
+		@Override
+		public void release() {
+			mBackend.release();
+		}
+
+		@Override
+		public int dequeueInputBuffer(final long timeoutUs) {
+			return mBackend.dequeueInputBuffer(timeoutUs);
+		}
+
+		@Override
+		public ByteBuffer getInputBuffer(final int index) {
+			return mBackend.getInputBuffer(index);
+		}
+
+		@Override
+		public void queueInputBuffer(final int index, final int offset, final int size,
+			final long presentationTimeUs, final int flags) {
+
+			if (size > 0) {
+				mQueuedNs.put(presentationTimeUs, System.nanoTime());
+			}
+			mBackend.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+		}
+
+		@Override
+		public int dequeueOutputBuffer(final MediaCodec.BufferInfo info, final long timeoutUs) {
+			final int result = mBackend.dequeueOutputBuffer(info, timeoutUs);
+			if ((result == MediaCodec.INFO_TRY_AGAIN_LATER) && (timeoutUs > 0)) {
+				mTimeouts.incrementAndGet();
+			}
+			if ((result >= 0) && (info.size > 0)) {
+				final Long queuedNs = mQueuedNs.remove(info.presentationTimeUs);
+				if (queuedNs != null) {
+					mLatency.addSince(queuedNs);
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public ByteBuffer getOutputBuffer(final int index) {
+			return mBackend.getOutputBuffer(index);
+		}
+
+		@Override
+		public void releaseOutputBuffer(final int index) {
+			mBackend.releaseOutputBuffer(index);
+		}
+
+		@Override
+		public MediaFormat getOutputFormat() {
+			return mBackend.getOutputFormat();
+		}
+
+		@Override
+		public void signalEndOfInputStream() {
+			mBackend.signalEndOfInputStream();
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: TLMediaEncoderTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * lifecycle of TLMediaEncoder on SyntheticEncoderBackend
+ */
+public class TLMediaEncoderTest {
+	private static final long TIMEOUT_MS = 5000;
+
+	private TestContext mContext;
+	private SyntheticEncoderBackend.Factory mFactory;
+
+	@Before
+	public void setUp() throws IOException {
+		mContext = new TestContext();
+		mFactory = new SyntheticEncoderBackend.Factory();
+		mFactory.setRealtime(false);
+	}
+
+	@After
+	public void tearDown() {
+		mContext.delete();
+	}
+
+	private SyntheticBufferEncoder start(final String name) throws Exception {
+		final SyntheticBufferEncoder encoder = new SyntheticBufferEncoder(mContext, name, mFactory, null);
+		encoder.prepareAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		encoder.startAsync(false).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		return encoder;
+	}
+
+	private static void write(final SyntheticBufferEncoder encoder, final int num_frames) {
+		for (int i = 0; i < num_frames; i++) {
+			assertTrue(encoder.write());
+		}
+	}
+
+	@Test
+	public void stopWaitsEOSUntilDeadline() throws Exception {
+		final SyntheticBufferEncoder encoder = start("stop");
+		write(encoder, 10);
+		encoder.stopAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		assertFalse(encoder.isStopForced());
+
+		final SyntheticBufferEncoder forced = start("forced");
+		write(forced, 10);
+		// deadline of zero is a valid deadline that already passed
+		forced.stopAsync(0).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		assertTrue(forced.isStopForced());
+	}
+
+	/**
+	 * frames requested by #resume(int) should come out of the codec before it is flushed
+	 * even if the codec holds them for a while
+	 */
+	@Test
+	public void autoPauseWaitsForRequestedFrames() throws Exception {
+		mFactory.setOutputDelay(30);
+		final SyntheticBufferEncoder encoder = new SyntheticBufferEncoder(mContext, "pause", mFactory, null);
+		encoder.setKeepCodecOnPause(true);
+		encoder.prepareAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		encoder.startAsync(true).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		for (int i = 0; i < 3; i++) {
+			encoder.resumeAsync(5).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			int n = 0;
+			for (; encoder.write(); n++) {
+			}
+			assertEquals(5, n);
+			assertTrue(encoder.waitPaused(TIMEOUT_MS));
+		}
+		assertEquals(0, encoder.getUndershootFrames());
+		assertEquals(0, encoder.getOvershootFrames());
+		encoder.stopAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * resetting while running finishes current sequence and keeps this encoder reusable
+	 */
+	@Test
+	public void resetWhileRunningThenPrepareAndResume() throws Exception {
+		for (final boolean keep: new boolean[] {false, true}) {
+			final SyntheticBufferEncoder encoder = new SyntheticBufferEncoder(mContext, "reset", mFactory, null);
+			encoder.setKeepCodecOnPause(keep);
+			encoder.prepareAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			encoder.startAsync(false).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			write(encoder, 10);
+			encoder.resetAsync("reset2").get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			assertFalse(encoder.write());
+			encoder.prepareAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			encoder.startAsync(true).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			encoder.resumeAsync(-1).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			write(encoder, 10);
+			encoder.stopAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			assertFalse(encoder.isStopForced());
+		}
+	}
+
+	/**
+	 * pausing flushes or releases the codec while the other thread keeps writing,
+	 * input that is being queued must finish before that and must not go into next sequence
+	 */
+	@Test
+	public void writeWhilePausing() throws Exception {
+		// codec holds all input buffers for a while, so the writer keeps waiting for free input buffer
+		mFactory.setOutputDelay(30);
+		for (final boolean keep: new boolean[] {false, true}) {
+			final SyntheticBufferEncoder encoder = new SyntheticBufferEncoder(mContext, "writing", mFactory, null);
+			encoder.setKeepCodecOnPause(keep);
+			encoder.setBackpressurePolicy(TLMediaEncoder.BACKPRESSURE_BLOCK, 1000);
+			encoder.prepareAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			encoder.startAsync(true).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			final Throwable[] error = new Throwable[1];
+			final AtomicBoolean stop = new AtomicBoolean();
+			final Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (!stop.get()) {
+							encoder.write();
+						}
+					} catch (Throwable e) {
+						error[0] = e;
+					}
+				}
+			});
+			writer.start();
+			try {
+				for (int i = 0; i < 20; i++) {
+					encoder.resumeAsync(-1).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+					Thread.sleep(10);
+					encoder.pauseAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+				}
+			} finally {
+				stop.set(true);
+				writer.join();
+			}
+			encoder.stopAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			if (error[0] != null) {
+				throw new AssertionError(error[0]);
+			}
+			assertFalse(encoder.isStopForced());
+		}
+	}
+
+	/**
+	 * input buffer obtained for zero copy input before pausing was flushed or released with the codec,
+	 * it must not be queued after resuming
+	 */
+	@Test
+	public void obtainedInputIsDiscardedAfterPausing() throws Exception {
+		for (final boolean keep: new boolean[] {false, true}) {
+			final SyntheticBufferEncoder encoder = new SyntheticBufferEncoder(mContext, "obtained", mFactory, null);
+			encoder.setKeepCodecOnPause(keep);
+			encoder.prepareAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			encoder.startAsync(false).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			assertNotNull(encoder.obtain());
+			encoder.pauseAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			encoder.resumeAsync(-1).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			encoder.queueObtained();
+			assertNotNull(encoder.obtain());
+			encoder.queueObtained();
+			write(encoder, 10);
+			encoder.stopAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			assertFalse(encoder.isStopForced());
+		}
+	}
+}
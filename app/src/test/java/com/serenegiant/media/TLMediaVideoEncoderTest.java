@@ -0,0 +1,105 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: TLMediaVideoEncoderTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * stopping video encoder whose input is Surface on SyntheticEncoderBackend
+ */
+public class TLMediaVideoEncoderTest {
+	private static final long TIMEOUT_MS = 5000;
+
+	private TestContext mContext;
+
+	@Before
+	public void setUp() throws IOException {
+		mContext = new TestContext();
+	}
+
+	@After
+	public void tearDown() {
+		mContext.delete();
+	}
+
+	/**
+	 * EOS should be sent through the codec and come back well before the stop deadline.
+	 * outputs come in order, so receiving EOS means no frame was left in the codec.
+	 */
+	@Test
+	public void stopSendsEOSThroughSurface() throws Exception {
+		final TLMediaVideoEncoder encoder = createEncoder();
+		encoder.prepareAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		encoder.startAsync(false).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		Thread.sleep(200);
+		final long startNs = System.nanoTime();
+		encoder.stopAsync(TLMediaEncoder.DEFAULT_STOP_TIMEOUT_MS).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		final long elapsedMs = (System.nanoTime() - startNs) / 1000000L;
+		assertFalse(encoder.isStopForced());
+		assertTrue(elapsedMs < TLMediaEncoder.DEFAULT_STOP_TIMEOUT_MS / 2);
+	}
+
+	/**
+	 * EOS of the sequence that is finished by resetting should not stop the encoder
+	 */
+	@Test
+	public void resetWhileRunningThenPrepareAndResume() throws Exception {
+		final TLMediaVideoEncoder encoder = createEncoder();
+		encoder.prepareAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		encoder.startAsync(false).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		Thread.sleep(100);
+		encoder.resetAsync("video2").get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		encoder.prepareAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		encoder.startAsync(true).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		encoder.resumeAsync(-1).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		Thread.sleep(100);
+		encoder.stopAsync().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		assertFalse(encoder.isStopForced());
+	}
+
+	private TLMediaVideoEncoder createEncoder() {
+		final SyntheticEncoderBackend.Factory factory = new SyntheticEncoderBackend.Factory();
+		factory.setFrameRate(30);
+		final TLMediaVideoEncoder encoder = new TLMediaVideoEncoder(mContext, "video", null) {
+			@Override
+			protected MediaFormat internal_prepare() throws IOException {
+				// MediaFormat#createVideoFormat is not available on JVM
+				return new MediaFormat();
+			}
+		};
+		encoder.setBackendFactory(factory);
+		return encoder;
+	}
+}
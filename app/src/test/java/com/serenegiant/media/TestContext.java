@@ -0,0 +1,65 @@
+package com.serenegiant.media;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: TestContext.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import android.test.mock.MockContext;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Context that supplies temporary directory as external files directory of encoders
+ */
+class TestContext extends MockContext {
+	private final File mDir;
+
+	TestContext() throws IOException {
+		mDir = File.createTempFile("encoder", "");
+		mDir.delete();
+		mDir.mkdirs();
+	}
+
+	@Override
+	public File getExternalFilesDir(final String type) {
+		return type != null ? new File(mDir, type) : mDir;
+	}
+
+	/**
+	 * delete all files that encoders wrote
+	 */
+	void delete() {
+		delete(mDir);
+	}
+
+	private static void delete(final File file) {
+		final File[] files = file.listFiles();
+		if (files != null) {
+			for (final File f: files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,99 @@
+package com.serenegiant.utils;
+
+/*
+ * TimeLapseRecordingSample
+ * Sample project to capture audio and video periodically from internal mic/camera
+ * and save as time lapsed MPEG4 file.
+ *
+ * Copyright (c) 2015 saki t_saki@serenegiant.com
+ *
+ * File name: PcmRingBufferTest.java
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+*/
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class PcmRingBufferTest {
+	private static final int NUM_CHUNKS = 20000;
+	private static final long TAKE_TIMEOUT_NS = 1000000000L;	// 1[sec]
+	private static final long SLOW_TAKE_NS = 100000000L;	// 100[msec]
+
+	@Test
+	public void overrunWhenFull() {
+		final PcmRingBuffer ring = new PcmRingBuffer(3, 16);
+		assertEquals(4, ring.getCapacity());
+		for (int i = 0; i < 4; i++) {
+			assertNotNull(ring.obtain());
+			ring.commit();
+		}
+		assertNull(ring.obtain());
+		assertEquals(1, ring.getOverrunCount());
+		assertEquals(4, ring.getHighWaterMark());
+		ring.peek();
+		ring.release();
+		assertNotNull(ring.obtain());
+		ring.clear();
+		assertEquals(0, ring.size());
+	}
+
+	/**
+	 * consumer waits every chunk one by one, lost wakeup makes take wait until it's timeout
+	 */
+	@Test(timeout = 30000)
+	public void takeNeverMissesWakeup() throws Exception {
+		final PcmRingBuffer ring = new PcmRingBuffer(4, 16);
+		final Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < NUM_CHUNKS; ) {
+					final PcmRingBuffer.Slot slot = ring.obtain();
+					if (slot == null) {
+						Thread.yield();
+						continue;
+					}
+					slot.buffer.putInt(0, i);
+					slot.length = 4;
+					slot.presentationTimeUs = i;
+					ring.commit();
+					i++;
+					// let consumer park before next chunk in most cases
+					for (final long t = System.nanoTime(); System.nanoTime() - t < 2000 ; ) {
+					}
+				}
+			}
+		});
+		producer.start();
+		int slow = 0;
+		for (int i = 0; i < NUM_CHUNKS; i++) {
+			final long startNs = System.nanoTime();
+			final PcmRingBuffer.Slot slot = ring.take(TAKE_TIMEOUT_NS);
+			if (System.nanoTime() - startNs > SLOW_TAKE_NS) {
+				slow++;
+			}
+			assertNotNull(slot);
+			assertEquals(i, slot.buffer.getInt(0));
+			assertEquals(i, slot.presentationTimeUs);
+			ring.release();
+		}
+		producer.join();
+		assertEquals(0, slow);
+		assertEquals(0, ring.size());
+	}
+}